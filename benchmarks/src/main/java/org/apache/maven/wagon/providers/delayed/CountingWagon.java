@@ -0,0 +1,370 @@
+package org.apache.maven.wagon.providers.delayed;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.maven.wagon.ConnectionException;
+import org.apache.maven.wagon.ResourceDoesNotExistException;
+import org.apache.maven.wagon.TransferFailedException;
+import org.apache.maven.wagon.Wagon;
+import org.apache.maven.wagon.authentication.AuthenticationException;
+import org.apache.maven.wagon.authentication.AuthenticationInfo;
+import org.apache.maven.wagon.authorization.AuthorizationException;
+import org.apache.maven.wagon.events.SessionListener;
+import org.apache.maven.wagon.events.TransferListener;
+import org.apache.maven.wagon.proxy.ProxyInfo;
+import org.apache.maven.wagon.proxy.ProxyInfoProvider;
+import org.apache.maven.wagon.repository.Repository;
+
+/**
+ * Wraps a wagon, counts the remote calls and the bytes transferred and delays every remote call by the configured
+ * latency.
+ * <p>
+ * Thread-safe if the wrapped wagon is.
+ */
+class CountingWagon
+    implements Wagon
+{
+    private final Wagon wagon;
+
+    private final Map<String, AtomicLong> calls = new TreeMap<String, AtomicLong>();
+
+    private final AtomicLong bytesRead = new AtomicLong();
+
+    private final AtomicLong bytesWritten = new AtomicLong();
+
+    private volatile long latencyMillis;
+
+    /**
+     * @param wagon the wrapped wagon
+     */
+    CountingWagon( Wagon wagon )
+    {
+        this.wagon = wagon;
+    }
+
+    /**
+     * @return the wrapped wagon
+     */
+    Wagon getWagon()
+    {
+        return wagon;
+    }
+
+    /**
+     * @param latencyMillis the time added to every remote call
+     */
+    void setLatencyMillis( long latencyMillis )
+    {
+        this.latencyMillis = latencyMillis;
+    }
+
+    /**
+     * @return the number of calls by method name
+     */
+    synchronized Map<String, Long> getCalls()
+    {
+        Map<String, Long> res = new TreeMap<String, Long>();
+        for ( Map.Entry<String, AtomicLong> entry : calls.entrySet() )
+        {
+            res.put( entry.getKey(), entry.getValue().get() );
+        }
+        return res;
+    }
+
+    /**
+     * @return the total number of remote calls
+     */
+    synchronized long getTotalCalls()
+    {
+        long res = 0;
+        for ( AtomicLong n : calls.values() )
+        {
+            res += n.get();
+        }
+        return res;
+    }
+
+    /**
+     * @return the bytes downloaded by get() and getIfNewer()
+     */
+    long getBytesRead()
+    {
+        return bytesRead.get();
+    }
+
+    /**
+     * @return the bytes uploaded by put() and putDirectory()
+     */
+    long getBytesWritten()
+    {
+        return bytesWritten.get();
+    }
+
+    synchronized void reset()
+    {
+        calls.clear();
+        bytesRead.set( 0 );
+        bytesWritten.set( 0 );
+    }
+
+    @Override
+    public void get( String resourceName, File destination )
+        throws TransferFailedException, ResourceDoesNotExistException, AuthorizationException
+    {
+        call( "get" );
+        wagon.get( resourceName, destination );
+        bytesRead.addAndGet( destination.length() );
+    }
+
+    @Override
+    public boolean getIfNewer( String resourceName, File destination, long timestamp )
+        throws TransferFailedException, ResourceDoesNotExistException, AuthorizationException
+    {
+        call( "getIfNewer" );
+        boolean res = wagon.getIfNewer( resourceName, destination, timestamp );
+        if ( res )
+        {
+            bytesRead.addAndGet( destination.length() );
+        }
+        return res;
+    }
+
+    @Override
+    public void put( File source, String destination )
+        throws TransferFailedException, ResourceDoesNotExistException, AuthorizationException
+    {
+        call( "put" );
+        wagon.put( source, destination );
+        bytesWritten.addAndGet( source.length() );
+    }
+
+    @Override
+    public void putDirectory( File sourceDirectory, String destinationDirectory )
+        throws TransferFailedException, ResourceDoesNotExistException, AuthorizationException
+    {
+        call( "putDirectory" );
+        wagon.putDirectory( sourceDirectory, destinationDirectory );
+        bytesWritten.addAndGet( size( sourceDirectory ) );
+    }
+
+    @Override
+    public boolean resourceExists( String resourceName )
+        throws TransferFailedException, AuthorizationException
+    {
+        call( "resourceExists" );
+        return wagon.resourceExists( resourceName );
+    }
+
+    @Override
+    public List<String> getFileList( String destinationDirectory )
+        throws TransferFailedException, ResourceDoesNotExistException, AuthorizationException
+    {
+        call( "getFileList" );
+        return wagon.getFileList( destinationDirectory );
+    }
+
+    @Override
+    public boolean supportsDirectoryCopy()
+    {
+        return wagon.supportsDirectoryCopy();
+    }
+
+    @Override
+    public Repository getRepository()
+    {
+        return wagon.getRepository();
+    }
+
+    @Override
+    public void connect( Repository source )
+        throws ConnectionException, AuthenticationException
+    {
+        wagon.connect( source );
+    }
+
+    @Override
+    public void connect( Repository source, ProxyInfo proxyInfo )
+        throws ConnectionException, AuthenticationException
+    {
+        wagon.connect( source, proxyInfo );
+    }
+
+    @Override
+    public void connect( Repository source, ProxyInfoProvider proxyInfoProvider )
+        throws ConnectionException, AuthenticationException
+    {
+        wagon.connect( source, proxyInfoProvider );
+    }
+
+    @Override
+    public void connect( Repository source, AuthenticationInfo authenticationInfo )
+        throws ConnectionException, AuthenticationException
+    {
+        wagon.connect( source, authenticationInfo );
+    }
+
+    @Override
+    public void connect( Repository source, AuthenticationInfo authenticationInfo, ProxyInfo proxyInfo )
+        throws ConnectionException, AuthenticationException
+    {
+        wagon.connect( source, authenticationInfo, proxyInfo );
+    }
+
+    @Override
+    public void connect( Repository source, AuthenticationInfo authenticationInfo, ProxyInfoProvider proxyInfoProvider )
+        throws ConnectionException, AuthenticationException
+    {
+        wagon.connect( source, authenticationInfo, proxyInfoProvider );
+    }
+
+    @SuppressWarnings( "deprecation" )
+    @Override
+    public void openConnection()
+        throws ConnectionException, AuthenticationException
+    {
+        wagon.openConnection();
+    }
+
+    @Override
+    public void disconnect()
+        throws ConnectionException
+    {
+        wagon.disconnect();
+    }
+
+    @Override
+    public void setTimeout( int timeoutValue )
+    {
+        wagon.setTimeout( timeoutValue );
+    }
+
+    @Override
+    public int getTimeout()
+    {
+        return wagon.getTimeout();
+    }
+
+    @Override
+    public void setReadTimeout( int timeoutValue )
+    {
+        wagon.setReadTimeout( timeoutValue );
+    }
+
+    @Override
+    public int getReadTimeout()
+    {
+        return wagon.getReadTimeout();
+    }
+
+    @Override
+    public void addSessionListener( SessionListener listener )
+    {
+        wagon.addSessionListener( listener );
+    }
+
+    @Override
+    public void removeSessionListener( SessionListener listener )
+    {
+        wagon.removeSessionListener( listener );
+    }
+
+    @Override
+    public boolean hasSessionListener( SessionListener listener )
+    {
+        return wagon.hasSessionListener( listener );
+    }
+
+    @Override
+    public void addTransferListener( TransferListener listener )
+    {
+        wagon.addTransferListener( listener );
+    }
+
+    @Override
+    public void removeTransferListener( TransferListener listener )
+    {
+        wagon.removeTransferListener( listener );
+    }
+
+    @Override
+    public boolean hasTransferListener( TransferListener listener )
+    {
+        return wagon.hasTransferListener( listener );
+    }
+
+    @Override
+    public boolean isInteractive()
+    {
+        return wagon.isInteractive();
+    }
+
+    @Override
+    public void setInteractive( boolean interactive )
+    {
+        wagon.setInteractive( interactive );
+    }
+
+    private void call( String method )
+    {
+        AtomicLong n;
+        synchronized ( this )
+        {
+            n = calls.get( method );
+            if ( n == null )
+            {
+                n = new AtomicLong();
+                calls.put( method, n );
+            }
+        }
+        n.incrementAndGet();
+        if ( latencyMillis > 0 )
+        {
+            try
+            {
+                Thread.sleep( latencyMillis );
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static long size( File file )
+    {
+        File[] list = file.listFiles();
+        if ( list == null )
+        {
+            return file.length();
+        }
+        long res = 0;
+        for ( File child : list )
+        {
+            res += size( child );
+        }
+        return res;
+    }
+}
@@ -0,0 +1,417 @@
+package org.apache.maven.wagon.providers.delayed;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.maven.wagon.ResourceDoesNotExistException;
+import org.apache.maven.wagon.Wagon;
+import org.apache.maven.wagon.WagonException;
+import org.apache.maven.wagon.repository.Repository;
+import org.codehaus.plexus.DefaultPlexusContainer;
+import org.codehaus.plexus.PlexusContainer;
+import org.codehaus.plexus.util.FileUtils;
+
+/**
+ * Deploys several builds of a multi-module SNAPSHOT project the way Maven does it, through
+ * {@link DelayedWagonProvider}, and reports the wall time, the remote calls and the bytes transferred of each mode:
+ * <ul>
+ * <li>direct - the underlying wagon, not wrapped</li>
+ * <li>delayed - one delayed session per module deploy</li>
+ * <li>shared - one delayed session for the whole run, committed at the end</li>
+ * </ul>
+ * Every module deploy downloads and merges the version and the artifact metadata, verifies the downloaded metadata
+ * against its SHA-1 and uploads a jar, a pom and the merged metadata, each with SHA-1 and MD5 checksums.
+ * <p>
+ * Usage: <code>java -cp target/benchmarks.jar org.apache.maven.wagon.providers.delayed.DeployBenchmark [modules
+ * [builds [latencyMillis [svnRepositoryDir]]]]</code>
+ * <p>
+ * The in-memory {@link StubWagon} is always measured. When a copy of <code>src/test/resources/test-repo-svn</code> is
+ * given, the scm wagon is measured too, through <code>scm:svn:file://</code>, which needs the svn executable. The
+ * underlying wagon of a mode is a single instance, so the <code>wagon.delayed.*</code> system properties that make
+ * the delayed wagon open more connections, like <code>commitThreads</code>, must be left unset.
+ */
+public final class DeployBenchmark
+{
+    private static final String[] MODES = { "direct", "delayed", "shared" };
+
+    private static final String GROUP_DIR = "org/example/deploy/";
+
+    private static final String VERSION = "1.0-SNAPSHOT";
+
+    private static final String METADATA = "maven-metadata.xml";
+
+    private static final int JAR_SIZE = 64 * 1024;
+
+    private static final Pattern BUILD_NUMBER = Pattern.compile( "<buildNumber>(\\d+)</buildNumber>" );
+
+    /**
+     * Where the deploys go.
+     */
+    private abstract static class Target
+    {
+        private final String name;
+
+        Target( String name )
+        {
+            this.name = name;
+        }
+
+        abstract Wagon newWagon()
+            throws Exception;
+
+        abstract Repository newRepository()
+            throws IOException;
+    }
+
+    /**
+     * The measurements of one mode.
+     */
+    private static final class Result
+    {
+        private final String mode;
+
+        private final long wallMillis;
+
+        private final Map<String, Long> calls;
+
+        private final long totalCalls;
+
+        private final long bytesWritten;
+
+        private final long bytesRead;
+
+        Result( String mode, long wallMillis, CountingWagon remote )
+        {
+            this.mode = mode;
+            this.wallMillis = wallMillis;
+            this.calls = remote.getCalls();
+            this.totalCalls = remote.getTotalCalls();
+            this.bytesWritten = remote.getBytesWritten();
+            this.bytesRead = remote.getBytesRead();
+        }
+    }
+
+    private final PlexusContainer container;
+
+    private final int modules;
+
+    private final int builds;
+
+    private final long latencyMillis;
+
+    private final File workDir;
+
+    private int temps;
+
+    private DeployBenchmark( PlexusContainer container, int modules, int builds, long latencyMillis, File workDir )
+    {
+        this.container = container;
+        this.modules = modules;
+        this.builds = builds;
+        this.latencyMillis = latencyMillis;
+        this.workDir = workDir;
+    }
+
+    public static void main( String[] args )
+        throws Exception
+    {
+        int modules = args.length > 0 ? Integer.parseInt( args[0] ) : 20;
+        int builds = args.length > 1 ? Integer.parseInt( args[1] ) : 3;
+        long latencyMillis = args.length > 2 ? Long.parseLong( args[2] ) : 20;
+        final File svnRepository = args.length > 3 ? new File( args[3] ).getAbsoluteFile() : null;
+
+        final File workDir = Files.createTempDirectory( "wagon-delayed-deploy" ).toFile();
+        final DefaultPlexusContainer container = new DefaultPlexusContainer();
+        try
+        {
+            DeployBenchmark benchmark = new DeployBenchmark( container, modules, builds, latencyMillis, workDir );
+            System.out.println( modules + " modules, " + builds + " builds, " + latencyMillis + " ms latency" );
+
+            benchmark.report( benchmark.run( new Target( "stub" )
+            {
+                @Override
+                Wagon newWagon()
+                {
+                    return new StubWagon( Collections.<String>emptyList(), true );
+                }
+
+                @Override
+                Repository newRepository()
+                {
+                    return new Repository( "bench", "stub://bench" );
+                }
+            } ) );
+
+            if ( svnRepository != null )
+            {
+                benchmark.report( benchmark.run( new Target( "svn" )
+                {
+                    @Override
+                    Wagon newWagon()
+                        throws Exception
+                    {
+                        return container.lookup( Wagon.class, "scm" );
+                    }
+
+                    @Override
+                    Repository newRepository()
+                        throws IOException
+                    {
+                        File copy = Files.createTempDirectory( workDir.toPath(), "svn" ).toFile();
+                        FileUtils.copyDirectoryStructure( svnRepository, copy );
+                        String path = copy.getAbsolutePath().replace( '\\', '/' );
+                        return new Repository( "bench", "scm:svn:file://" + ( path.startsWith( "/" ) ? "" : "/" )
+                            + path );
+                    }
+                } ) );
+            }
+        }
+        finally
+        {
+            container.dispose();
+            FileUtils.deleteDirectory( workDir );
+        }
+    }
+
+    private List<Result> run( Target target )
+        throws Exception
+    {
+        List<Result> res = new ArrayList<Result>();
+        for ( String mode : MODES )
+        {
+            CountingWagon remote = new CountingWagon( target.newWagon() );
+            remote.setLatencyMillis( latencyMillis );
+            String hint = "bench-" + target.name + "-" + mode;
+            container.addComponent( remote, Wagon.class, hint );
+
+            DelayedWagonProvider provider = new DelayedWagonProvider( container );
+            if ( !"direct".equals( mode ) )
+            {
+                provider.getProtocolsToWrap().add( hint );
+            }
+            provider.setShareSessions( "shared".equals( mode ) );
+            Repository repository = target.newRepository();
+
+            long start = System.nanoTime();
+            for ( int build = 1; build <= builds; build++ )
+            {
+                for ( int module = 0; module < modules; module++ )
+                {
+                    deployModule( provider, hint, repository, "module-" + module, build );
+                }
+            }
+            provider.commitSharedSessions();
+            long wallMillis = ( System.nanoTime() - start ) / 1000000;
+
+            res.add( new Result( target.name + " " + mode, wallMillis, remote ) );
+            verify( remote, repository );
+        }
+        return res;
+    }
+
+    private void deployModule( DelayedWagonProvider provider, String hint, Repository repository, String artifactId,
+                               int build )
+        throws Exception
+    {
+        String artifactDir = GROUP_DIR + artifactId + "/";
+        String versionDir = artifactDir + VERSION + "/";
+        String timestamp = String.format( "20200101.%06d", build );
+
+        Wagon wagon = provider.lookup( hint );
+        try
+        {
+            wagon.connect( repository );
+            try
+            {
+                String versionMetadata = fetch( wagon, versionDir + METADATA );
+                int buildNumber = versionMetadata == null ? 1 : buildNumber( versionMetadata ) + 1;
+                String base = versionDir + artifactId + "-" + VERSION.replace( "SNAPSHOT", timestamp ) + "-"
+                    + buildNumber;
+                upload( wagon, base + ".jar", jar( artifactId, build ) );
+                upload( wagon, base + ".pom", text( "<project><artifactId>" + artifactId
+                    + "</artifactId></project>\n" ) );
+                upload( wagon, versionDir + METADATA, text( "<metadata><artifactId>" + artifactId
+                    + "</artifactId><version>" + VERSION + "</version><versioning><snapshot><timestamp>" + timestamp
+                    + "</timestamp><buildNumber>" + buildNumber + "</buildNumber></snapshot></versioning>"
+                    + "</metadata>\n" ) );
+
+                // the version list does not change, only lastUpdated does
+                fetch( wagon, artifactDir + METADATA );
+                upload( wagon, artifactDir + METADATA, text( "<metadata><artifactId>" + artifactId
+                    + "</artifactId><versioning><versions><version>" + VERSION
+                    + "</version></versions><lastUpdated>" + timestamp.replace( ".", "" )
+                    + "</lastUpdated></versioning></metadata>\n" ) );
+            }
+            finally
+            {
+                wagon.disconnect();
+            }
+        }
+        finally
+        {
+            provider.release( wagon );
+        }
+    }
+
+    /**
+     * Check that every module was deployed by every build.
+     */
+    private void verify( Wagon remote, Repository repository )
+        throws Exception
+    {
+        remote.connect( repository );
+        try
+        {
+            for ( int module = 0; module < modules; module++ )
+            {
+                String artifactId = "module-" + module;
+                String metadata = fetch( remote, GROUP_DIR + artifactId + "/" + VERSION + "/" + METADATA );
+                if ( metadata == null || buildNumber( metadata ) != builds )
+                {
+                    throw new IllegalStateException( "bad metadata of " + artifactId + ": " + metadata );
+                }
+            }
+        }
+        finally
+        {
+            remote.disconnect();
+        }
+    }
+
+    private void report( List<Result> results )
+    {
+        Result direct = results.get( 0 );
+        for ( Result result : results )
+        {
+            System.out.println( String.format( "%-14s %7d ms %6d calls %6d saved %11d bytes up %9d bytes down %s",
+                                               result.mode, result.wallMillis, result.totalCalls,
+                                               direct.totalCalls - result.totalCalls, result.bytesWritten,
+                                               result.bytesRead, result.calls ) );
+        }
+    }
+
+    /**
+     * @return the content or null if missing
+     */
+    private String fetch( Wagon wagon, String resourceName )
+        throws WagonException, IOException
+    {
+        byte[] content = get( wagon, resourceName );
+        if ( content == null )
+        {
+            return null;
+        }
+        byte[] checksum = get( wagon, resourceName + ".sha1" );
+        if ( checksum == null
+            || !new String( checksum, StandardCharsets.UTF_8 ).trim().equals( checksum( content, "SHA-1" ) ) )
+        {
+            throw new IllegalStateException( "checksum mismatch: " + resourceName );
+        }
+        return new String( content, StandardCharsets.UTF_8 );
+    }
+
+    /**
+     * @return the content or null if missing
+     */
+    private byte[] get( Wagon wagon, String resourceName )
+        throws WagonException, IOException
+    {
+        File file = newTempFile();
+        try
+        {
+            wagon.get( resourceName, file );
+            return Files.readAllBytes( file.toPath() );
+        }
+        catch ( ResourceDoesNotExistException e )
+        {
+            return null;
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+
+    private void upload( Wagon wagon, String resourceName, byte[] content )
+        throws WagonException, IOException
+    {
+        put( wagon, resourceName, content );
+        put( wagon, resourceName + ".sha1", text( checksum( content, "SHA-1" ) ) );
+        put( wagon, resourceName + ".md5", text( checksum( content, "MD5" ) ) );
+    }
+
+    private void put( Wagon wagon, String resourceName, byte[] content )
+        throws WagonException, IOException
+    {
+        File file = newTempFile();
+        try
+        {
+            Files.write( file.toPath(), content );
+            wagon.put( file, resourceName );
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+
+    private File newTempFile()
+    {
+        return new File( workDir, "tmp" + temps++ );
+    }
+
+    private static int buildNumber( String versionMetadata )
+    {
+        Matcher m = BUILD_NUMBER.matcher( versionMetadata );
+        if ( !m.find() )
+        {
+            throw new IllegalStateException( "no build number: " + versionMetadata );
+        }
+        return Integer.parseInt( m.group( 1 ) );
+    }
+
+    private static byte[] jar( String artifactId, int build )
+    {
+        byte[] res = new byte[JAR_SIZE];
+        new Random( artifactId.hashCode() * 31 + build ).nextBytes( res );
+        return res;
+    }
+
+    private static byte[] text( String s )
+    {
+        return s.getBytes( StandardCharsets.UTF_8 );
+    }
+
+    private static String checksum( byte[] content, String algorithm )
+    {
+        return Digests.hex( Digests.newDigest( algorithm ).digest( content ) );
+    }
+}
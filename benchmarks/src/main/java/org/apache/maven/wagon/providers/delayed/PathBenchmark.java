@@ -0,0 +1,116 @@
+package org.apache.maven.wagon.providers.delayed;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Path bookkeeping done on every call: canonicalization, interning and the common directory of a session.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class PathBenchmark
+{
+    @Param( { "1000", "10000", "100000", "1000000" } )
+    int sessionSize;
+
+    private String[] names;
+
+    private String[] slashedNames;
+
+    private Set<String> added;
+
+    private ResourcePath.Interner interner;
+
+    private int next;
+
+    @Setup( Level.Trial )
+    public void setUp()
+    {
+        List<String> files = RepositoryLayout.files( sessionSize );
+        names = files.toArray( new String[files.size()] );
+        slashedNames = new String[names.length];
+        for ( int i = 0; i < names.length; i++ )
+        {
+            slashedNames[i] = "/" + names[i];
+        }
+        added = RepositoryLayout.withAncestors( files );
+        interner = new ResourcePath.Interner();
+        for ( String name : names )
+        {
+            interner.intern( name );
+        }
+    }
+
+    private int next()
+    {
+        int res = next;
+        next = res + 1 == names.length ? 0 : res + 1;
+        return res;
+    }
+
+    /**
+     * Names passed by Maven are canonical already.
+     */
+    @Benchmark
+    public String canonicalFastPath()
+    {
+        return ResourcePath.canonical( names[next()] );
+    }
+
+    @Benchmark
+    public String canonicalNormalize()
+    {
+        return ResourcePath.canonical( slashedNames[next()] );
+    }
+
+    @Benchmark
+    public ResourcePath internExisting()
+    {
+        return interner.intern( names[next()] );
+    }
+
+    @Benchmark
+    @BenchmarkMode( Mode.AverageTime )
+    @OutputTimeUnit( TimeUnit.MILLISECONDS )
+    public String findCommonDir()
+    {
+        return DelayedWagon.findCommonDir( added );
+    }
+}
@@ -0,0 +1,101 @@
+package org.apache.maven.wagon.providers.delayed;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Generates the resource names of a Maven repository: artifacts spread over groups, each with several versions, a
+ * jar and a pom per version, checksums for every file and metadata per artifact.
+ */
+final class RepositoryLayout
+{
+    static final int ARTIFACTS_PER_GROUP = 20;
+
+    static final int VERSIONS_PER_ARTIFACT = 5;
+
+    private static final String[] CHECKSUMS = { "", ".sha1", ".md5" };
+
+    private RepositoryLayout()
+    {
+    }
+
+    /**
+     * @param size the number of files
+     * @return the canonical names of the files, grouped by directory
+     */
+    static List<String> files( int size )
+    {
+        List<String> res = new ArrayList<String>( size );
+        for ( int a = 0; res.size() < size; a++ )
+        {
+            String artifactId = "artifact-" + a;
+            String artifactDir = groupDir( a ) + artifactId + "/";
+            for ( int v = 0; v < VERSIONS_PER_ARTIFACT; v++ )
+            {
+                String version = "1." + v;
+                String base = artifactDir + version + "/" + artifactId + "-" + version;
+                for ( String checksum : CHECKSUMS )
+                {
+                    res.add( base + ".jar" + checksum );
+                    res.add( base + ".pom" + checksum );
+                }
+            }
+            for ( String checksum : CHECKSUMS )
+            {
+                res.add( artifactDir + "maven-metadata.xml" + checksum );
+            }
+        }
+        return res.subList( 0, size );
+    }
+
+    /**
+     * @param a artifact number
+     * @return the group directory of the artifact, with a trailing "/"
+     */
+    static String groupDir( int a )
+    {
+        int g = a / ARTIFACTS_PER_GROUP;
+        return "org/example/team" + g % 10 + "/group" + g + "/";
+    }
+
+    /**
+     * @param files canonical file names
+     * @return the files and their parent directories with and without the trailing "/", as added by DelayedWagon
+     */
+    static Set<String> withAncestors( Collection<String> files )
+    {
+        Set<String> res = new HashSet<String>();
+        for ( String file : files )
+        {
+            res.add( file );
+            for ( int i = file.lastIndexOf( '/' ); i != -1; i = file.lastIndexOf( '/', i - 1 ) )
+            {
+                res.add( file.substring( 0, i + 1 ) );
+                res.add( file.substring( 0, i ) );
+            }
+        }
+        return res;
+    }
+}
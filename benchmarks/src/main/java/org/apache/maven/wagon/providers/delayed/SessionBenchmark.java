@@ -0,0 +1,155 @@
+package org.apache.maven.wagon.providers.delayed;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.maven.wagon.WagonException;
+import org.apache.maven.wagon.repository.Repository;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Calls answered by a connected DelayedWagon without a round trip, after the repository was indexed at connect.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class SessionBenchmark
+{
+    private static final int PUT_NAMES = 1000;
+
+    @Param( { "1000", "10000", "100000", "1000000" } )
+    int sessionSize;
+
+    private CountingWagon stub;
+
+    private DelayedWagon wagon;
+
+    private String[] names;
+
+    private String[] missingNames;
+
+    private String[] dirs;
+
+    private String[] putNames;
+
+    private File source;
+
+    private int next;
+
+    @Setup( Level.Trial )
+    public void setUp()
+        throws IOException, WagonException
+    {
+        List<String> files = RepositoryLayout.files( sessionSize );
+        names = files.toArray( new String[files.size()] );
+        missingNames = new String[names.length];
+        dirs = new String[names.length];
+        for ( int i = 0; i < names.length; i++ )
+        {
+            missingNames[i] = names[i] + ".asc";
+            dirs[i] = names[i].substring( 0, names[i].lastIndexOf( '/' ) );
+        }
+        putNames = new String[PUT_NAMES];
+        for ( int i = 0; i < PUT_NAMES; i++ )
+        {
+            putNames[i] = "org/example/staged/artifact/1.0/file-" + i + ".jar";
+        }
+
+        source = File.createTempFile( "wagon-delayed-bench", ".jar" );
+        Files.write( source.toPath(), new byte[1024] );
+
+        stub = new CountingWagon( new StubWagon( files, true ) );
+        wagon = new DelayedWagon( stub );
+        wagon.setSnapshotDirectory( "" );
+        wagon.connect( new Repository( "bench", "stub://bench" ) );
+        stub.reset();
+    }
+
+    @TearDown( Level.Trial )
+    public void tearDown()
+        throws WagonException
+    {
+        long calls = stub.getTotalCalls();
+        wagon.disconnect();
+        source.delete();
+        if ( calls != 0 )
+        {
+            throw new IllegalStateException( "calls not answered locally: " + stub.getCalls() );
+        }
+    }
+
+    private int next()
+    {
+        int res = next;
+        next = res + 1 == names.length ? 0 : res + 1;
+        return res;
+    }
+
+    @Benchmark
+    public boolean resourceExistsHit()
+        throws WagonException
+    {
+        return wagon.resourceExists( names[next()] );
+    }
+
+    /**
+     * Typical probe for a signature or an optional classifier, answered by the listing of the parent.
+     */
+    @Benchmark
+    public boolean resourceExistsMiss()
+        throws WagonException
+    {
+        return wagon.resourceExists( missingNames[next()] );
+    }
+
+    @Benchmark
+    public List<String> getFileList()
+        throws WagonException
+    {
+        return wagon.getFileList( dirs[next()] );
+    }
+
+    @Benchmark
+    public void put()
+        throws WagonException
+    {
+        wagon.put( source, putNames[next() % PUT_NAMES] );
+    }
+}
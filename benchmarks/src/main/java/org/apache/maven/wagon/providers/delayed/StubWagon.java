@@ -0,0 +1,247 @@
+package org.apache.maven.wagon.providers.delayed;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.maven.wagon.AbstractWagon;
+import org.apache.maven.wagon.ConnectionException;
+import org.apache.maven.wagon.ResourceDoesNotExistException;
+import org.apache.maven.wagon.TransferFailedException;
+import org.apache.maven.wagon.authentication.AuthenticationException;
+
+/**
+ * In-memory underlying wagon. Wrap it in a {@link CountingWagon} to count the calls and to add latency.
+ * <p>
+ * Thread-safe.
+ */
+class StubWagon
+    extends AbstractWagon
+{
+    private final Map<String, byte[]> files = new HashMap<String, byte[]>();
+
+    private final Map<String, Set<String>> children = new HashMap<String, Set<String>>();
+
+    private final boolean directoryCopy;
+
+    private final long lastModified = System.currentTimeMillis();
+
+    /**
+     * @param initialFiles canonical names of the files the repository starts with, the content is the name
+     * @param directoryCopy what {@link #supportsDirectoryCopy()} returns
+     */
+    StubWagon( Collection<String> initialFiles, boolean directoryCopy )
+    {
+        this.directoryCopy = directoryCopy;
+        for ( String name : initialFiles )
+        {
+            store( name, name.getBytes() );
+        }
+    }
+
+    /**
+     * @param name canonical resource name
+     * @return the stored content or null
+     */
+    synchronized byte[] getContent( String name )
+    {
+        return files.get( name );
+    }
+
+    @Override
+    protected void openConnectionInternal()
+        throws ConnectionException, AuthenticationException
+    {
+        // in memory
+    }
+
+    @Override
+    protected void closeConnection()
+        throws ConnectionException
+    {
+        // in memory
+    }
+
+    @Override
+    public void get( String resourceName, File destination )
+        throws TransferFailedException, ResourceDoesNotExistException
+    {
+        write( content( resourceName ), destination );
+    }
+
+    @Override
+    public boolean getIfNewer( String resourceName, File destination, long timestamp )
+        throws TransferFailedException, ResourceDoesNotExistException
+    {
+        byte[] content = content( resourceName );
+        if ( timestamp >= lastModified )
+        {
+            return false;
+        }
+        write( content, destination );
+        return true;
+    }
+
+    @Override
+    public void put( File source, String destination )
+        throws TransferFailedException
+    {
+        putFile( source, destination );
+    }
+
+    @Override
+    public void putDirectory( File sourceDirectory, String destinationDirectory )
+        throws TransferFailedException
+    {
+        putTree( sourceDirectory, canonical( destinationDirectory ) );
+    }
+
+    @Override
+    public boolean resourceExists( String resourceName )
+    {
+        String name = canonical( resourceName );
+        synchronized ( this )
+        {
+            return files.containsKey( name ) || children.containsKey( name );
+        }
+    }
+
+    @Override
+    public List<String> getFileList( String destinationDirectory )
+        throws ResourceDoesNotExistException
+    {
+        String name = canonical( destinationDirectory );
+        synchronized ( this )
+        {
+            Set<String> res = children.get( name );
+            if ( res == null )
+            {
+                throw new ResourceDoesNotExistException( "no such directory: " + destinationDirectory );
+            }
+            return new ArrayList<String>( res );
+        }
+    }
+
+    @Override
+    public boolean supportsDirectoryCopy()
+    {
+        return directoryCopy;
+    }
+
+    private synchronized byte[] content( String resourceName )
+        throws ResourceDoesNotExistException
+    {
+        byte[] res = files.get( canonical( resourceName ) );
+        if ( res == null )
+        {
+            throw new ResourceDoesNotExistException( "no such resource: " + resourceName );
+        }
+        return res;
+    }
+
+    private void write( byte[] content, File destination )
+        throws TransferFailedException
+    {
+        try
+        {
+            File parent = destination.getAbsoluteFile().getParentFile();
+            parent.mkdirs();
+            Files.write( destination.toPath(), content );
+        }
+        catch ( IOException e )
+        {
+            throw new TransferFailedException( "Failure writing " + destination, e );
+        }
+    }
+
+    private void putTree( File dir, String prefix )
+        throws TransferFailedException
+    {
+        File[] list = dir.listFiles();
+        if ( list == null )
+        {
+            return;
+        }
+        for ( File file : list )
+        {
+            String name = prefix.length() == 0 ? file.getName() : prefix + "/" + file.getName();
+            if ( file.isDirectory() )
+            {
+                putTree( file, name );
+            }
+            else
+            {
+                putFile( file, name );
+            }
+        }
+    }
+
+    private void putFile( File source, String destination )
+        throws TransferFailedException
+    {
+        byte[] content;
+        try
+        {
+            content = Files.readAllBytes( source.toPath() );
+        }
+        catch ( IOException e )
+        {
+            throw new TransferFailedException( "Failure reading " + source, e );
+        }
+        store( canonical( destination ), content );
+    }
+
+    private synchronized void store( String name, byte[] content )
+    {
+        files.put( name, content );
+        String entry = name.substring( name.lastIndexOf( '/' ) + 1 );
+        String dir = name;
+        while ( dir.length() != 0 )
+        {
+            int i = dir.lastIndexOf( '/' );
+            dir = i == -1 ? "" : dir.substring( 0, i );
+            Set<String> set = children.get( dir );
+            if ( set == null )
+            {
+                set = new TreeSet<String>();
+                children.put( dir, set );
+            }
+            if ( !set.add( entry ) )
+            {
+                break;
+            }
+            entry = dir.substring( dir.lastIndexOf( '/' ) + 1 ) + "/";
+        }
+    }
+
+    private static String canonical( String name )
+    {
+        return ResourcePath.canonical( name );
+    }
+}
@@ -0,0 +1,222 @@
+package org.apache.maven.wagon.providers.delayed;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import org.codehaus.plexus.util.FileUtils;
+
+/**
+ * Deletes directories on a background daemon thread. A directory is first renamed to a tombstone next to it, so the
+ * caller can reuse the name at once. When the backlog is full or the rename fails, the caller deletes the directory
+ * itself.
+ * <p>
+ * Tombstones left by an exiting JVM are collected by the first sweep of their directory in the next one.
+ */
+final class CacheReaper
+{
+    private static final String TOMBSTONE = ".deleting-";
+
+    private static final Pattern TOMBSTONE_NAME = Pattern.compile( ".+" + Pattern.quote( TOMBSTONE ) + "\\d+-\\d+" );
+
+    private static final int MAX_BACKLOG = 16;
+
+    private static final BlockingQueue<File> QUEUE = new ArrayBlockingQueue<File>( MAX_BACKLOG );
+
+    /**
+     * the tombstones queued or being deleted
+     */
+    private static final Set<File> PENDING = Collections.synchronizedSet( new HashSet<File>() );
+
+    /**
+     * the directories swept completely by this JVM
+     */
+    private static final Set<File> SWEPT = Collections.synchronizedSet( new HashSet<File>() );
+
+    private static final AtomicInteger SEQ = new AtomicInteger();
+
+    private static Thread thread;
+
+    private CacheReaper()
+    {
+    }
+
+    /**
+     * Remove a directory, in the background when possible.
+     *
+     * @param dir the directory, may be missing
+     * @throws IOException when the directory stays in place
+     */
+    static void delete( File dir )
+        throws IOException
+    {
+        File tombstone =
+            new File( dir.getAbsolutePath() + TOMBSTONE + System.nanoTime() + "-" + SEQ.incrementAndGet() );
+        try
+        {
+            Files.move( dir.toPath(), tombstone.toPath(), StandardCopyOption.ATOMIC_MOVE );
+        }
+        catch ( NoSuchFileException e )
+        {
+            return;
+        }
+        catch ( IOException e )
+        {
+            FileUtils.deleteDirectory( dir );
+            return;
+        }
+        if ( !enqueue( tombstone ) )
+        {
+            FileUtils.deleteDirectory( tombstone );
+        }
+    }
+
+    /**
+     * Remove the content of a directory, in the background when possible.
+     *
+     * @param dir the directory, kept or recreated empty
+     * @throws IOException when unable to empty it
+     */
+    static void clean( File dir )
+        throws IOException
+    {
+        delete( dir );
+        File parent = dir.getAbsoluteFile().getParentFile();
+        if ( parent != null )
+        {
+            sweep( parent );
+        }
+        if ( !dir.mkdir() )
+        {
+            throw new IOException( "unable to mkdir: " + dir );
+        }
+    }
+
+    /**
+     * Queue the tombstones in a directory, left by any JVM. Only the first complete sweep of a directory lists it.
+     *
+     * @param dir the directory, may be missing
+     */
+    static void sweep( File dir )
+    {
+        dir = dir.getAbsoluteFile();
+        if ( SWEPT.contains( dir ) )
+        {
+            return;
+        }
+        File[] stale = dir.listFiles( new FileFilter()
+        {
+            @Override
+            public boolean accept( File f )
+            {
+                return TOMBSTONE_NAME.matcher( f.getName() ).matches();
+            }
+        } );
+        if ( stale != null )
+        {
+            for ( File f : stale )
+            {
+                if ( !PENDING.contains( f ) && !enqueue( f ) )
+                {
+                    // the backlog is full, the next sweep takes the rest
+                    return;
+                }
+            }
+        }
+        SWEPT.add( dir );
+    }
+
+    private static synchronized boolean enqueue( File tombstone )
+    {
+        if ( !QUEUE.offer( tombstone ) )
+        {
+            return false;
+        }
+        PENDING.add( tombstone );
+        if ( thread == null )
+        {
+            start();
+        }
+        return true;
+    }
+
+    private static synchronized void start()
+    {
+        thread = new Thread( new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    for ( ;; )
+                    {
+                        File tombstone = QUEUE.take();
+                        try
+                        {
+                            FileUtils.deleteDirectory( tombstone );
+                        }
+                        catch ( Exception e )
+                        {
+                            // left for the next session
+                        }
+                        finally
+                        {
+                            PENDING.remove( tombstone );
+                        }
+                    }
+                }
+                catch ( InterruptedException e )
+                {
+                    exited( Thread.currentThread() );
+                }
+            }
+        }, "wagon-delayed-reaper" );
+        thread.setDaemon( true );
+        thread.start();
+    }
+
+    /**
+     * An interrupted reaper is replaced by the next enqueue, or at once when tombstones are waiting.
+     */
+    private static synchronized void exited( Thread reaper )
+    {
+        if ( thread == reaper )
+        {
+            thread = null;
+            if ( !QUEUE.isEmpty() )
+            {
+                start();
+            }
+        }
+    }
+}
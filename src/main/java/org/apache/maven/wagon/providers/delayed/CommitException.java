@@ -0,0 +1,54 @@
+package org.apache.maven.wagon.providers.delayed;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.apache.maven.wagon.TransferFailedException;
+
+/**
+ * Failure to commit some of the delayed resources.
+ */
+public class CommitException
+    extends TransferFailedException
+{
+    private static final long serialVersionUID = 1L;
+
+    private final Map<String, Exception> failures;
+
+    /**
+     * @param message the message
+     * @param failures the cause for each resource that failed to commit
+     */
+    public CommitException( String message, Map<String, Exception> failures )
+    {
+        super( message + ": " + failures.keySet(), failures.isEmpty() ? null : failures.values().iterator().next() );
+        this.failures = Collections.unmodifiableMap( failures );
+    }
+
+    /**
+     * @return the cause for each resource that failed to commit
+     */
+    public Map<String, Exception> getFailures()
+    {
+        return failures;
+    }
+}
@@ -0,0 +1,247 @@
+package org.apache.maven.wagon.providers.delayed;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Write-ahead journal of the resources staged in an explicit cache directory and of the commit progress, so that a
+ * later session can resume a failed commit.
+ * <p>
+ * The journal is kept in the cache directory, in the file "commit.journal". Each line records one event:
+ * <code>S stamp length path</code> after a resource is staged and <code>C path</code> after it is committed. The first
+ * line names the repository URL; a journal of another repository is discarded together with the staged files.
+ * <p>
+ * Thread-safe.
+ */
+final class CommitJournal
+{
+    private static final String HEADER = "#wagon-delayed-journal 1 ";
+
+    private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+    private final File stagingDir;
+
+    private final File file;
+
+    private final String url;
+
+    private FileOutputStream out;
+
+    private Writer writer;
+
+    /**
+     * @param cacheDir the cache directory, the journal is kept in it
+     * @param stagingDir the directory of the staged files
+     * @param url the repository URL
+     */
+    CommitJournal( File cacheDir, File stagingDir, String url )
+    {
+        this.stagingDir = stagingDir;
+        this.file = getFile( cacheDir );
+        this.url = String.valueOf( url );
+    }
+
+    /**
+     * @param cacheDir the cache directory
+     * @return the journal file of the cache directory
+     */
+    static File getFile( File cacheDir )
+    {
+        return new File( cacheDir, "commit.journal" );
+    }
+
+    /**
+     * Read the journal of a previous session and start a new one with the resources it left uncommitted.
+     *
+     * @return the stamps of the uncommitted resources whose staged files are intact
+     * @throws IOException when unable to read or write the journal
+     */
+    synchronized Map<String, Long> open()
+        throws IOException
+    {
+        Map<String, Long> stamps = new LinkedHashMap<String, Long>();
+        Map<String, Long> lengths = new LinkedHashMap<String, Long>();
+        if ( file.isFile() )
+        {
+            read( stamps, lengths );
+        }
+
+        File tmp = new File( file.getPath() + ".tmp" );
+        Writer w = new OutputStreamWriter( new FileOutputStream( tmp ), UTF8 );
+        try
+        {
+            w.write( HEADER + url + "\n" );
+            for ( Map.Entry<String, Long> entry : lengths.entrySet() )
+            {
+                String res = entry.getKey();
+                File staged = new File( stagingDir, res );
+                if ( staged.isFile() && staged.length() == entry.getValue() )
+                {
+                    w.write( "S " + stamps.get( res ) + " " + entry.getValue() + " " + res + "\n" );
+                }
+                else
+                {
+                    stamps.remove( res );
+                }
+            }
+        }
+        finally
+        {
+            w.close();
+        }
+        Files.move( tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING );
+
+        out = new FileOutputStream( file, true );
+        writer = new OutputStreamWriter( out, UTF8 );
+        return stamps;
+    }
+
+    /**
+     * @param resourceName canonical resource name
+     * @param stamp the put time
+     * @param length the size of the staged file
+     * @throws IOException when unable to write
+     */
+    synchronized void staged( String resourceName, long stamp, long length )
+        throws IOException
+    {
+        append( "S " + stamp + " " + length + " " + resourceName + "\n" );
+    }
+
+    /**
+     * @param resourceName canonical resource name
+     * @throws IOException when unable to write
+     */
+    synchronized void committed( String resourceName )
+        throws IOException
+    {
+        append( "C " + resourceName + "\n" );
+    }
+
+    /**
+     * Force the journal to the storage device before the commit starts.
+     *
+     * @throws IOException when unable to write
+     */
+    synchronized void sync()
+        throws IOException
+    {
+        if ( out != null )
+        {
+            out.getChannel().force( false );
+        }
+    }
+
+    /**
+     * Close the journal and keep it for the next session.
+     */
+    synchronized void close()
+    {
+        if ( writer != null )
+        {
+            try
+            {
+                writer.close();
+            }
+            catch ( IOException e )
+            {
+                //
+            }
+            writer = null;
+            out = null;
+        }
+    }
+
+    /**
+     * Close and delete the journal after a complete commit.
+     */
+    synchronized void delete()
+    {
+        close();
+        file.delete();
+    }
+
+    private void append( String record )
+        throws IOException
+    {
+        if ( writer == null )
+        {
+            throw new IOException( "Journal is closed: " + file );
+        }
+        writer.write( record );
+        writer.flush();
+    }
+
+    private void read( Map<String, Long> stamps, Map<String, Long> lengths )
+        throws IOException
+    {
+        BufferedReader r = new BufferedReader( new InputStreamReader( new FileInputStream( file ), UTF8 ) );
+        try
+        {
+            String line = r.readLine();
+            if ( line == null || !line.equals( HEADER + url ) )
+            {
+                return;
+            }
+            while ( ( line = r.readLine() ) != null )
+            {
+                try
+                {
+                    if ( line.startsWith( "S " ) )
+                    {
+                        String[] fields = line.split( " ", 4 );
+                        String res = fields[3];
+                        long stamp = Long.parseLong( fields[1] );
+                        long length = Long.parseLong( fields[2] );
+                        stamps.put( res, stamp );
+                        lengths.put( res, length );
+                    }
+                    else if ( line.startsWith( "C " ) )
+                    {
+                        String res = line.substring( 2 );
+                        stamps.remove( res );
+                        lengths.remove( res );
+                    }
+                }
+                catch ( RuntimeException e )
+                {
+                    // torn write of a crashed build
+                }
+            }
+        }
+        finally
+        {
+            r.close();
+        }
+    }
+}
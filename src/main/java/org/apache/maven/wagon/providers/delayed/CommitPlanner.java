@@ -0,0 +1,319 @@
+package org.apache.maven.wagon.providers.delayed;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Splits the added resources into a few disjoint subtrees and decides how to commit each of them.
+ * <p>
+ * The split starts with the deepest directory common to all files and repeatedly replaces the shallowest
+ * directory that has no files of its own with its subdirectories, as long as the number of subtrees stays within the
+ * limit. Each subtree is then committed either with one putDirectory() or with one put() per file, whichever is
+ * cheaper by a cost model based on the number of calls, the file count and the directory depth inside the subtree.
+ * Every call is a separate commit for an SCM wagon, so with a single subtree several files always go in one
+ * putDirectory().
+ */
+final class CommitPlanner
+{
+    /**
+     * fixed cost of one put() or putDirectory(), a checkout and a commit for an SCM wagon
+     */
+    static final int CALL_COST = 3;
+
+    /**
+     * cost of each file
+     */
+    static final int FILE_COST = 2;
+
+    /**
+     * cost of each directory level inside a subtree committed with putDirectory()
+     */
+    static final int DEPTH_COST = 1;
+
+    /**
+     * A commit step.
+     */
+    static final class Step
+    {
+        private final String directory;
+
+        private final boolean putDirectory;
+
+        private final List<String> files;
+
+        private final boolean wholeSubtree;
+
+        Step( String directory, boolean putDirectory, List<String> files )
+        {
+            this( directory, putDirectory, files, true );
+        }
+
+        Step( String directory, boolean putDirectory, List<String> files, boolean wholeSubtree )
+        {
+            this.directory = directory;
+            this.putDirectory = putDirectory;
+            this.files = files;
+            this.wholeSubtree = wholeSubtree;
+        }
+
+        /**
+         * @return canonical directory, with a trailing "/" unless it is the root
+         */
+        String getDirectory()
+        {
+            return directory;
+        }
+
+        /**
+         * @return true to commit the directory, false to commit the files one by one
+         */
+        boolean isPutDirectory()
+        {
+            return putDirectory;
+        }
+
+        /**
+         * @return the files of the subtree
+         */
+        List<String> getFiles()
+        {
+            return files;
+        }
+
+        /**
+         * @return false if the step is a batch that commits only some of the added files of its directory
+         */
+        boolean isWholeSubtree()
+        {
+            return wholeSubtree;
+        }
+
+        @Override
+        public String toString()
+        {
+            return ( putDirectory ? "putDirectory " : "put " ) + directory + " " + files;
+        }
+    }
+
+    private static final class Node
+    {
+        private final String path;
+
+        private final int depth;
+
+        private final Map<String, Node> children = new TreeMap<String, Node>();
+
+        private final List<String> files = new ArrayList<String>();
+
+        Node( String path, int depth )
+        {
+            this.path = path;
+            this.depth = depth;
+        }
+
+        /**
+         * @return the deepest node that contains all files of this one
+         */
+        Node compress()
+        {
+            Node node = this;
+            while ( node.files.isEmpty() && node.children.size() == 1 )
+            {
+                node = node.children.values().iterator().next();
+            }
+            return node;
+        }
+
+        void collect( List<String> res )
+        {
+            res.addAll( files );
+            for ( Node child : children.values() )
+            {
+                child.collect( res );
+            }
+        }
+
+        int maxDepth()
+        {
+            int res = depth;
+            for ( Node child : children.values() )
+            {
+                res = Math.max( res, child.maxDepth() );
+            }
+            return res;
+        }
+    }
+
+    private CommitPlanner()
+    {
+    }
+
+    /**
+     * @param addedResources canonical names of the added files and their parent directories, like in DelayedWagon
+     * @param maxSubtrees the maximum number of steps, 1 for a single commit
+     * @return the commit steps in resource name order
+     */
+    static List<Step> plan( Collection<String> addedResources, int maxSubtrees )
+    {
+        Node root = new Node( "", 0 );
+        for ( String s : addedResources )
+        {
+            if ( !s.endsWith( "/" ) && !addedResources.contains( s + "/" ) )
+            {
+                addFile( root, s );
+            }
+        }
+        if ( root.files.isEmpty() && root.children.isEmpty() )
+        {
+            return Collections.emptyList();
+        }
+
+        List<Node> cut = new ArrayList<Node>();
+        cut.add( root.compress() );
+        for ( ;; )
+        {
+            Node best = null;
+            for ( Node node : cut )
+            {
+                if ( node.files.isEmpty() && cut.size() - 1 + node.children.size() <= maxSubtrees
+                    && ( best == null || node.depth < best.depth ) )
+                {
+                    best = node;
+                }
+            }
+            if ( best == null )
+            {
+                break;
+            }
+            int i = cut.indexOf( best );
+            cut.remove( i );
+            for ( Node child : best.children.values() )
+            {
+                cut.add( i++, child.compress() );
+            }
+        }
+
+        List<Step> res = new ArrayList<Step>();
+        for ( Node node : cut )
+        {
+            List<String> files = new ArrayList<String>();
+            node.collect( files );
+            int perFile = ( CALL_COST + FILE_COST ) * files.size();
+            int perDir = CALL_COST + FILE_COST * files.size() + DEPTH_COST * ( node.maxDepth() - node.depth );
+            res.add( new Step( node.path, files.size() > 1 && ( maxSubtrees == 1 || perDir < perFile ), files ) );
+        }
+        return res;
+    }
+
+    /**
+     * Split the putDirectory() steps that exceed the limits into batches of consecutive files. Since the files of a
+     * step are ordered by subtree, a batch tends to cover whole subtrees and its directory is the deepest one common
+     * to its files. A file larger than <code>maxBytes</code> makes a batch of its own.
+     *
+     * @param steps the steps returned by {@link #plan(Collection, int)}
+     * @param lengths the lengths of the files in bytes
+     * @param maxFiles the maximum number of files in a batch, 0 for no limit
+     * @param maxBytes the maximum total length of a batch, 0 for no limit
+     * @return the steps to commit in order
+     */
+    static List<Step> batch( List<Step> steps, Map<String, Long> lengths, int maxFiles, long maxBytes )
+    {
+        List<Step> res = new ArrayList<Step>();
+        for ( Step step : steps )
+        {
+            if ( !step.putDirectory )
+            {
+                res.add( step );
+                continue;
+            }
+            List<Step> batches = new ArrayList<Step>();
+            List<String> batch = new ArrayList<String>();
+            long bytes = 0;
+            for ( String file : step.files )
+            {
+                Long length = lengths.get( file );
+                long len = length == null ? 0 : length;
+                if ( !batch.isEmpty()
+                    && ( maxFiles > 0 && batch.size() >= maxFiles || maxBytes > 0 && bytes + len > maxBytes ) )
+                {
+                    batches.add( newBatch( batch ) );
+                    batch = new ArrayList<String>();
+                    bytes = 0;
+                }
+                batch.add( file );
+                bytes += len;
+            }
+            if ( batches.isEmpty() )
+            {
+                res.add( step );
+            }
+            else
+            {
+                batches.add( newBatch( batch ) );
+                res.addAll( batches );
+            }
+        }
+        return res;
+    }
+
+    private static Step newBatch( List<String> files )
+    {
+        String dir = files.get( 0 );
+        dir = dir.substring( 0, dir.lastIndexOf( '/' ) + 1 );
+        for ( String file : files )
+        {
+            while ( !file.startsWith( dir ) )
+            {
+                dir = dir.substring( 0, dir.lastIndexOf( '/', dir.length() - 2 ) + 1 );
+            }
+        }
+        return new Step( dir, true, files, false );
+    }
+
+    private static void addFile( Node root, String file )
+    {
+        Node node = root;
+        int start = 0;
+        for ( ;; )
+        {
+            int i = file.indexOf( '/', start );
+            if ( i == -1 )
+            {
+                break;
+            }
+            String name = file.substring( start, i );
+            Node child = node.children.get( name );
+            if ( child == null )
+            {
+                child = new Node( file.substring( 0, i + 1 ), node.depth + 1 );
+                node.children.put( name, child );
+            }
+            node = child;
+            start = i + 1;
+        }
+        node.files.add( file );
+    }
+}
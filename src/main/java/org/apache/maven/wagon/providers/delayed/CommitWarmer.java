@@ -0,0 +1,38 @@
+package org.apache.maven.wagon.providers.delayed;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+/**
+ * Prepares the remote side of a commit while the build is still staging, for example by checking out the target
+ * directory of an SCM repository.
+ */
+public interface CommitWarmer
+{
+    /**
+     * Called on a background thread once the common directory of the staged resources stops changing, and again if
+     * it changes later. Transfers of the wagon may run at the same time.
+     *
+     * @param wagon the connected delayed wagon, its underlying wagon is {@link DelayedWagon#getWagon()}
+     * @param directory the common directory of the staged resources, without the trailing "/"
+     * @throws Exception ignored, the commit does not depend on the warm-up
+     */
+    void warm( DelayedWagon wagon, String directory )
+        throws Exception;
+}
@@ -0,0 +1,341 @@
+package org.apache.maven.wagon.providers.delayed;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Size-bounded cache of downloaded resources with their remote timestamps, kept between sessions.
+ * <p>
+ * Each repository URL has its own subdirectory with a <code>data</code> tree and an <code>index</code> file listing
+ * <code>stamp length sha1 path</code> from the least to the most recently used entry. The least recently used
+ * entries are evicted when the total length exceeds the limit. The index is merged with the entries added by
+ * concurrent builds when saved. A cached copy is served only if its SHA-1 still matches, so that a file changed in
+ * place, e.g. through a hard link, is downloaded again.
+ */
+final class ContentCache
+{
+    private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+    private static final String DIGEST_ALGORITHM = "SHA-1";
+
+    private static final Pattern SHA1_HEX = Pattern.compile( "[0-9a-f]{40}" );
+
+    private static final class Entry
+    {
+        private final long stamp;
+
+        private final long length;
+
+        private final String sha1;
+
+        Entry( long stamp, long length, String sha1 )
+        {
+            this.stamp = stamp;
+            this.length = length;
+            this.sha1 = sha1;
+        }
+    }
+
+    private final File root;
+
+    private final File dataDir;
+
+    private final long maxBytes;
+
+    private final boolean linkFiles;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>( 16, 0.75f, true );
+
+    private long size;
+
+    /**
+     * @param dir the cache directory shared by all repositories
+     * @param url the repository URL
+     * @param maxBytes the size limit
+     * @param linkFiles true to allow hard links to the cached files
+     */
+    ContentCache( File dir, String url, long maxBytes, boolean linkFiles )
+    {
+        this.root = new File( dir, MetadataCache.digestHex( String.valueOf( url ) ) );
+        this.dataDir = new File( root, "data" );
+        this.maxBytes = maxBytes;
+        this.linkFiles = linkFiles;
+    }
+
+    /**
+     * Read the index.
+     *
+     * @throws IOException when unable to read the index
+     */
+    synchronized void load()
+        throws IOException
+    {
+        entries.clear();
+        size = 0;
+        File index = new File( root, "index" );
+        if ( !index.isFile() )
+        {
+            return;
+        }
+        RandomAccessFile raf = new RandomAccessFile( index, "rw" );
+        try
+        {
+            FileLock lock = raf.getChannel().lock();
+            try
+            {
+                for ( Map.Entry<String, Entry> e : read( raf.getChannel() ).entrySet() )
+                {
+                    add( e.getKey(), e.getValue() );
+                }
+            }
+            finally
+            {
+                lock.release();
+            }
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    /**
+     * @param resourceName canonical resource name
+     * @return the remote timestamp of the cached copy or null
+     */
+    synchronized Long getStamp( String resourceName )
+    {
+        Entry entry = entries.get( resourceName );
+        return entry == null ? null : entry.stamp;
+    }
+
+    /**
+     * Copy the cached resource, verifying its digest in the same pass.
+     *
+     * @param resourceName canonical resource name
+     * @param stamp the expected remote timestamp
+     * @param destination destination file
+     * @return false if the resource with that timestamp is not cached or the cached copy is corrupt
+     */
+    synchronized boolean get( String resourceName, long stamp, File destination )
+    {
+        Entry entry = entries.get( resourceName );
+        if ( entry == null || entry.stamp != stamp )
+        {
+            return false;
+        }
+        try
+        {
+            Map<String, String> digests =
+                FileTransfer.copyWithDigests( new File( dataDir, resourceName ), destination, linkFiles );
+            if ( entry.sha1.equals( digests.get( DIGEST_ALGORITHM ) ) )
+            {
+                return true;
+            }
+        }
+        catch ( IOException e )
+        {
+            // dropped like a corrupt copy
+        }
+        destination.delete();
+        remove( resourceName );
+        return false;
+    }
+
+    /**
+     * Cache a downloaded resource, evicting the least recently used ones when over the limit.
+     *
+     * @param resourceName canonical resource name
+     * @param stamp the remote timestamp
+     * @param source the downloaded file
+     */
+    synchronized void put( String resourceName, long stamp, File source )
+    {
+        long length = source.length();
+        if ( length > maxBytes )
+        {
+            return;
+        }
+        remove( resourceName );
+        File dataFile = new File( dataDir, resourceName );
+        File tmpFile = null;
+        String sha1;
+        try
+        {
+            // unique across the builds sharing the cache, not just the threads of this one
+            dataFile.getParentFile().mkdirs();
+            tmpFile = File.createTempFile( dataFile.getName() + ".tmp", "", dataFile.getParentFile() );
+            sha1 = FileTransfer.copyWithDigests( source, tmpFile, linkFiles ).get( DIGEST_ALGORITHM );
+            if ( !tmpFile.renameTo( dataFile ) )
+            {
+                dataFile.delete();
+                if ( !tmpFile.renameTo( dataFile ) )
+                {
+                    throw new IOException( "unable to rename " + tmpFile );
+                }
+            }
+        }
+        catch ( IOException e )
+        {
+            if ( tmpFile != null )
+            {
+                tmpFile.delete();
+            }
+            return;
+        }
+        add( resourceName, new Entry( stamp, length, sha1 ) );
+        evict();
+    }
+
+    /**
+     * Write the index, merged with the entries added by concurrent builds.
+     *
+     * @throws IOException when unable to write the index
+     */
+    synchronized void save()
+        throws IOException
+    {
+        root.mkdirs();
+        RandomAccessFile raf = new RandomAccessFile( new File( root, "index" ), "rw" );
+        try
+        {
+            FileChannel channel = raf.getChannel();
+            FileLock lock = channel.lock();
+            try
+            {
+                // entries of others are older than ours
+                LinkedHashMap<String, Entry> merged = read( channel );
+                merged.keySet().removeAll( entries.keySet() );
+                for ( Map.Entry<String, Entry> e : entries.entrySet() )
+                {
+                    merged.put( e.getKey(), e.getValue() );
+                }
+                entries.clear();
+                size = 0;
+                for ( Map.Entry<String, Entry> e : merged.entrySet() )
+                {
+                    add( e.getKey(), e.getValue() );
+                }
+                evict();
+
+                channel.truncate( 0 );
+                channel.position( 0 );
+                Writer w = new OutputStreamWriter( Channels.newOutputStream( channel ), UTF8 );
+                for ( Map.Entry<String, Entry> e : entries.entrySet() )
+                {
+                    Entry entry = e.getValue();
+                    w.write( entry.stamp + " " + entry.length + " " + entry.sha1 + " " + e.getKey() + "\n" );
+                }
+                w.flush();
+            }
+            finally
+            {
+                lock.release();
+            }
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    /**
+     * @return the total length of the cached resources
+     */
+    synchronized long getSize()
+    {
+        return size;
+    }
+
+    private LinkedHashMap<String, Entry> read( FileChannel channel )
+        throws IOException
+    {
+        LinkedHashMap<String, Entry> res = new LinkedHashMap<String, Entry>();
+        channel.position( 0 );
+        BufferedReader r = new BufferedReader( new InputStreamReader( Channels.newInputStream( channel ), UTF8 ) );
+        String line;
+        while ( ( line = r.readLine() ) != null )
+        {
+            try
+            {
+                // entries of an index without digests are dropped
+                String[] fields = line.split( " ", 4 );
+                Entry entry = new Entry( Long.parseLong( fields[0] ), Long.parseLong( fields[1] ), fields[2] );
+                if ( SHA1_HEX.matcher( entry.sha1 ).matches()
+                    && new File( dataDir, fields[3] ).length() == entry.length )
+                {
+                    res.put( fields[3], entry );
+                }
+            }
+            catch ( RuntimeException e )
+            {
+                // torn write of a crashed build
+            }
+        }
+        return res;
+    }
+
+    private void add( String resourceName, Entry entry )
+    {
+        Entry old = entries.put( resourceName, entry );
+        if ( old != null )
+        {
+            size -= old.length;
+        }
+        size += entry.length;
+    }
+
+    private void remove( String resourceName )
+    {
+        Entry old = entries.remove( resourceName );
+        if ( old != null )
+        {
+            size -= old.length;
+            new File( dataDir, resourceName ).delete();
+        }
+    }
+
+    private void evict()
+    {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while ( size > maxBytes && it.hasNext() )
+        {
+            Map.Entry<String, Entry> e = it.next();
+            it.remove();
+            size -= e.getValue().length;
+            new File( dataDir, e.getKey() ).delete();
+        }
+    }
+}
@@ -21,17 +21,41 @@
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
 
 import org.apache.maven.wagon.AbstractWagon;
 import org.apache.maven.wagon.ConnectionException;
 import org.apache.maven.wagon.ResourceDoesNotExistException;
+import org.apache.maven.wagon.StreamingWagon;
 import org.apache.maven.wagon.TransferFailedException;
 import org.apache.maven.wagon.Wagon;
 import org.apache.maven.wagon.authentication.AuthenticationException;
@@ -48,6 +72,9 @@
 
 /**
  * A wagon that delays put operations until disconnect()
+ * <p>
+ * Between connect() and disconnect() an instance may be used by several threads at once. Calls to the underlying
+ * wagon are serialized, the cached state is not.
  */
 public class DelayedWagon
     extends AbstractWagon
@@ -67,7 +94,15 @@ public DelayedWagon( Wagon wagon )
         implements TransferListener
     {
 
-        private TransferEvent lastTransferStarted;
+        /**
+         * per thread, because the underlying wagon fires events in the calling thread
+         */
+        private final ThreadLocal<TransferEvent> lastTransferStarted = new ThreadLocal<TransferEvent>();
+
+        /**
+         * set while the calling thread makes an internal transfer, not reported to the listeners
+         */
+        private final ThreadLocal<Boolean> quiet = new ThreadLocal<Boolean>();
 
         @Override
         public void transferInitiated( TransferEvent transferEvent )
@@ -78,7 +113,11 @@ public void transferInitiated( TransferEvent transferEvent )
         @Override
         public void transferStarted( TransferEvent transferEvent )
         {
-            lastTransferStarted = transferEvent;
+            if ( quiet.get() != null )
+            {
+                return;
+            }
+            lastTransferStarted.set( transferEvent );
             if ( transferEvent.getRequestType() == TransferEvent.REQUEST_GET )
             {
                 fireGetStarted( transferEvent.getResource(), transferEvent.getLocalFile() );
@@ -112,25 +151,226 @@ public void debug( String message )
 
     private final TransLsn transLsn = new TransLsn();
 
+    /**
+     * larger resources are always staged as files
+     */
+    private static final long MEMORY_STAGING_MAX_LENGTH = 1024 * 1024;
+
+    private static final String DEDUP_ALGORITHM = "SHA-1";
+
+    /**
+     * the checksum files of {@link #DEDUP_ALGORITHM}
+     */
+    private static final String DEDUP_EXTENSION = ".sha1";
+
+    private static final Pattern DEDUP_HEX = Pattern.compile( "[0-9a-fA-F]{40}" );
+
+    /**
+     * runs the asynchronous commits, on non-daemon threads so that the JVM does not exit before they finish
+     */
+    private static final ExecutorService COMMIT_EXECUTOR =
+        new ThreadPoolExecutor( 0, Integer.MAX_VALUE, 1, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                                new NamedThreadFactory( "wagon-delayed-async-commit-", false ) );
+
+    /**
+     * the repository URLs of the asynchronous commits in progress, a connect to the same repository waits for them
+     */
+    private static final Map<Future<?>, String> COMMITS = new ConcurrentHashMap<Future<?>, String>();
+
+    private static class NamedThreadFactory
+        implements ThreadFactory
+    {
+        private final AtomicInteger seq = new AtomicInteger();
+
+        private final String prefix;
+
+        private final boolean daemon;
+
+        NamedThreadFactory( String prefix, boolean daemon )
+        {
+            this.prefix = prefix;
+            this.daemon = daemon;
+        }
+
+        @Override
+        public Thread newThread( Runnable r )
+        {
+            Thread t = new Thread( r, prefix + seq.incrementAndGet() );
+            t.setDaemon( daemon );
+            return t;
+        }
+    }
+
+    /**
+     * number of puts that must leave the common directory unchanged before the warm-up starts
+     */
+    private static final int WARMUP_STABLE_PUTS = 8;
+
+    private static final ExecutorService WARMUP_EXECUTOR =
+        new ThreadPoolExecutor( 0, 1, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                                new NamedThreadFactory( "wagon-delayed-warmup-", true ) );
+
+    /**
+     * the write-behind uploader
+     */
+    private static final ScheduledExecutorService FLUSH_EXECUTOR = newFlushExecutor();
+
+    private static final String[] CHECKSUM_EXTENSIONS = { ".sha1", ".md5", ".sha256", ".sha512" };
+
+    private static final int CHECKSUM_MAX_LENGTH = 256;
+
     private final Wagon wagon;
 
+    private WagonLookup wagonLookup;
+
+    private int commitThreads = 1;
+
+    private int maxCommitSubtrees = 1;
+
+    private int commitBatchMaxFiles;
+
+    private long commitBatchMaxBytes;
+
+    private File metadataCacheDir;
+
+    private long metadataCacheTtl = 10 * 60 * 1000L;
+
+    private MetadataCache metadataCache;
+
+    private File contentCacheDir;
+
+    private long contentCacheMaxBytes = 256L * 1024 * 1024;
+
+    private ContentCache contentCache;
+
+    private boolean linkFiles;
+
+    private long stagingMemoryBudget;
+
+    private StagingStorage stagingStorage;
+
+    private CommitJournal journal;
+
+    private long dedupMaxBytes;
+
+    private boolean asyncDelete;
+
+    private boolean asyncCommit;
+
+    private volatile Future<?> pendingCommit;
+
+    /**
+     * set while an asynchronous commit is submitted or running, puts into the session are refused
+     */
+    private volatile boolean committing;
+
+    private CommitWarmer commitWarmer;
+
+    private long flushQuietMillis;
+
+    private long flushMaxBytes;
+
+    private String snapshotDirectory;
+
+    private int snapshotThreads = 4;
+
+    /**
+     * null until the first update, so that creating a wagon does not create the default metrics
+     */
+    private volatile DelayedWagonMetrics metrics;
+
+    private final FlushTracker flushTracker = new FlushTracker();
+
+    /**
+     * guards the warm-up state below
+     */
+    private final Object warmupLock = new Object();
+
+    private ResourcePath stagedPrefix;
+
+    private int stablePuts;
+
+    private ResourcePath warmedPrefix;
+
+    /**
+     * digests of the remote content replaced by staged resources, empty when the content was not downloaded
+     */
+    private final Map<String, String> remoteDigests = new ConcurrentHashMap<String, String>();
+
+    /**
+     * digests of the staged resources by algorithm
+     */
+    private final Map<String, Map<String, String>> stagedDigests = new ConcurrentHashMap<String, Map<String, String>>();
+
+    /**
+     * content of the staged checksum files
+     */
+    private final Map<String, byte[]> stagedChecksums = new ConcurrentHashMap<String, byte[]>();
+
+    private Repository connectionRepository;
+
+    private AuthenticationInfo connectionAuthenticationInfo;
+
+    private ProxyInfo connectionProxyInfo;
+
+    private ProxyInfoProvider connectionProxyInfoProvider;
+
     private boolean explicitCacheDir;
 
+    private boolean commitJournal;
+
     private File cacheDir;
 
+    /**
+     * downloaded content, under cacheDir
+     */
+    private File downloadDir;
+
+    /**
+     * staged puts, under cacheDir
+     */
+    private File stagingDir;
+
     private Exception commitException;
 
-    private boolean connected;
+    private volatile boolean connected;
 
-    private HashSet<String> addedResources = new HashSet<String>();
+    /**
+     * the remote timestamp bounds and the added, missing and listed resources
+     */
+    private final ResourceStateTable states = new ResourceStateTable();
+
+    /**
+     * the canonical paths of the session
+     */
+    private final ResourcePath.Interner paths = new ResourcePath.Interner();
+
+    /**
+     * the resources with a known upper bound, for prefix lookups
+     */
+    private final PathTrie knownResources = new PathTrie();
 
-    private HashMap<String, String> missingResources = new HashMap<String, String>();
+    /**
+     * remote existence checks in flight
+     */
+    private final SingleFlight<Boolean> existsCalls = new SingleFlight<Boolean>();
 
-    private HashSet<String> listedDirs = new HashSet<String>();
+    /**
+     * read-locked by transfers, write-locked by connect() and disconnect()
+     */
+    private final ReentrantReadWriteLock sessionLock = new ReentrantReadWriteLock();
 
-    private HashMap<String, Long> guessStampsHi = new HashMap<String, Long>();
+    /**
+     * striped locks that serialize transfers of the same resource
+     */
+    private final Object[] resourceLocks = new Object[64];
 
-    private HashMap<String, Long> guessStampsLo = new HashMap<String, Long>();
+    {
+        for ( int i = 0; i < resourceLocks.length; i++ )
+        {
+            resourceLocks[i] = new Object();
+        }
+    }
 
     /**
      * Underlying wagon.
@@ -154,42 +394,82 @@ public boolean getIfNewer( String resourceNameArg, File destination, long timest
         throws TransferFailedException, ResourceDoesNotExistException, AuthorizationException
     {
         String resourceName = canonRes( resourceNameArg );
+        Lock lock = sessionLock.readLock();
+        lock.lock();
+        try
+        {
+            synchronized ( resourceLock( resourceName ) )
+            {
+                return getIfNewerLocked( resourceName, destination, timestamp );
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private boolean getIfNewerLocked( String resourceName, File destination, long timestamp )
+        throws TransferFailedException, ResourceDoesNotExistException, AuthorizationException
+    {
         Resource resource = new Resource( resourceName );
 
         fireGetInitiated( resource, destination );
 
         try
         {
-            String message = missingResources.get( resourceName );
+            String message = states.getMissingMessage( resourceName );
             if ( message != null )
             {
+                metrics().count( DelayedWagonMetrics.NEGATIVE_HITS );
+                metrics().count( DelayedWagonMetrics.GET_HITS );
                 throw new ResourceDoesNotExistException( message );
             }
 
-            Long guessStampHi = guessStampsHi.get( resourceName );
-            if ( guessStampHi != null && timestamp >= guessStampHi )
+            long guessStampHi = states.getStampHi( resourceName );
+            if ( guessStampHi != ResourceStateTable.NONE && timestamp >= guessStampHi )
             {
+                metrics().count( DelayedWagonMetrics.STAMP_BOUND_HITS );
+                metrics().count( DelayedWagonMetrics.GET_HITS );
                 return false;
             }
 
-            File cachedFile = new File( cacheDir, resourceName );
-
-            transLsn.lastTransferStarted = null;
-
-            if ( guessStampHi == null )
+            if ( stagingStorage.contains( resourceName ) )
             {
-                cachedFile.getParentFile().mkdirs();
-                if ( timestamp == 0 )
-                {
-                    wagon.get( resourceName, cachedFile );
-                    guessStampsHi.put( resourceName, Long.MAX_VALUE );
-                }
-                else
+                metrics().count( DelayedWagonMetrics.GET_HITS );
+                fireGetStarted( resource, destination );
+                try
                 {
-                    if ( !getIfNewer0( resourceName, cachedFile, timestamp ) )
+                    byte[] checksum = stagedChecksums.get( resourceName );
+                    if ( checksum != null )
                     {
-                        return false;
+                        Files.deleteIfExists( destination.toPath() );
+                        Files.write( destination.toPath(), checksum );
                     }
+                    else
+                    {
+                        stagingStorage.retrieve( resourceName, destination );
+                    }
+                }
+                catch ( IOException e )
+                {
+                    throw new TransferFailedException( "Failure transferring " + resourceName, e );
+                }
+                postProcessListeners( resource, destination, TransferEvent.REQUEST_GET );
+                fireGetCompleted( resource, destination );
+                return true;
+            }
+
+            File cachedFile = new File( downloadDir, resourceName );
+
+            transLsn.lastTransferStarted.remove();
+
+            // the stamps may be known without the content, from a listing or from the metadata cache
+            if ( guessStampHi == ResourceStateTable.NONE || !cachedFile.isFile() )
+            {
+                if ( !fetchCachedFile( resourceName, cachedFile, timestamp, guessStampHi ) )
+                {
+                    return false;
                 }
             }
             else if ( !updateCachedFile( resourceName, cachedFile, timestamp ) )
@@ -197,17 +477,22 @@ else if ( !updateCachedFile( resourceName, cachedFile, timestamp ) )
                 return false;
             }
 
-            if ( transLsn.lastTransferStarted != null )
+            TransferEvent transferStarted = transLsn.lastTransferStarted.get();
+            if ( transferStarted != null )
             {
-                Resource res2 = transLsn.lastTransferStarted.getResource();
+                Resource res2 = transferStarted.getResource();
                 if ( res2 != null )
                 {
                     resource = res2;
                     long lastMod = res2.getLastModified();
                     if ( lastMod != 0 )
                     {
-                        guessStampsHi.put( resourceName, lastMod );
-                        guessStampsLo.put( resourceName, lastMod );
+                        putStampHi( resourceName, lastMod );
+                        states.putStampLo( resourceName, lastMod );
+                        if ( contentCache != null )
+                        {
+                            contentCache.put( resourceName, lastMod, cachedFile );
+                        }
                     }
                 }
             }
@@ -218,7 +503,7 @@ else if ( !updateCachedFile( resourceName, cachedFile, timestamp ) )
 
             try
             {
-                FileUtils.copyFile( cachedFile, destination );
+                FileTransfer.copy( cachedFile, destination, linkFiles );
             }
             catch ( IOException e )
             {
@@ -229,7 +514,7 @@ else if ( !updateCachedFile( resourceName, cachedFile, timestamp ) )
         {
             if ( e instanceof ResourceDoesNotExistException )
             {
-                missingResources.put( resourceName, "cached: " + e.getMessage() );
+                states.putMissing( resourceName, e.getMessage() );
             }
             fireTransferError( resource, e, TransferEvent.REQUEST_GET );
             throw e;
@@ -240,32 +525,82 @@ else if ( !updateCachedFile( resourceName, cachedFile, timestamp ) )
         return true;
     }
 
+    private boolean fetchCachedFile( String resourceName, File cachedFile, long timestamp, long guessStampHi )
+        throws TransferFailedException, ResourceDoesNotExistException, AuthorizationException
+    {
+        cachedFile.getParentFile().mkdirs();
+
+        Long cachedStamp = contentCache == null ? null : contentCache.getStamp( resourceName );
+        if ( cachedStamp != null && timestamp < cachedStamp )
+        {
+            // the content cache has a copy newer than requested, ask the remote unless the bounds prove it current
+            boolean current = cachedStamp == guessStampHi && cachedStamp == states.getStampLo( resourceName );
+            if ( !current && remoteGetIfNewer( resourceName, cachedFile, cachedStamp ) )
+            {
+                states.putStampLo( resourceName, cachedStamp );
+                return true;
+            }
+            if ( contentCache.get( resourceName, cachedStamp, cachedFile ) )
+            {
+                if ( current )
+                {
+                    metrics().count( DelayedWagonMetrics.STAMP_BOUND_HITS );
+                    metrics().count( DelayedWagonMetrics.GET_HITS );
+                }
+                putStampHi( resourceName, cachedStamp );
+                states.putStampLo( resourceName, cachedStamp );
+                return true;
+            }
+        }
+
+        if ( timestamp == 0 )
+        {
+            remoteGet( resourceName, cachedFile );
+            if ( guessStampHi == ResourceStateTable.NONE )
+            {
+                putStampHi( resourceName, Long.MAX_VALUE );
+            }
+            return true;
+        }
+        return getIfNewer0( resourceName, cachedFile, timestamp );
+    }
+
     private boolean updateCachedFile( String resourceName, File cachedFile, long timestamp )
         throws TransferFailedException, ResourceDoesNotExistException, AuthorizationException
     {
-        return timestamp == 0 || isCachedFileNewer( resourceName, timestamp )
-            || getIfNewer0( resourceName, cachedFile, timestamp );
+        if ( timestamp == 0 )
+        {
+            metrics().count( DelayedWagonMetrics.GET_HITS );
+            return true;
+        }
+        if ( isCachedFileNewer( resourceName, timestamp ) )
+        {
+            metrics().count( DelayedWagonMetrics.STAMP_BOUND_HITS );
+            metrics().count( DelayedWagonMetrics.GET_HITS );
+            return true;
+        }
+        return getIfNewer0( resourceName, cachedFile, timestamp );
     }
 
     private boolean isCachedFileNewer( String resourceName, long timestamp )
     {
-        Long guessStampLo = guessStampsLo.get( resourceName );
-        return guessStampLo != null && timestamp <= guessStampLo;
+        long guessStampLo = states.getStampLo( resourceName );
+        return guessStampLo != ResourceStateTable.NONE && timestamp <= guessStampLo;
     }
 
     private boolean getIfNewer0( String resourceName, File cachedFile, long timestamp )
         throws TransferFailedException, ResourceDoesNotExistException, AuthorizationException
     {
-        boolean received = wagon.getIfNewer( resourceName, cachedFile, timestamp );
+        boolean received = remoteGetIfNewer( resourceName, cachedFile, timestamp );
         if ( received )
         {
             // resource is newer than timestamp
-            guessStampsLo.put( resourceName, timestamp );
+            states.putStampLo( resourceName, timestamp );
         }
         else
         {
             // resource not newer than timestamp
-            guessStampsHi.put( resourceName, timestamp );
+            putStampHi( resourceName, timestamp );
         }
         return received;
     }
@@ -284,33 +619,27 @@ public void put( File source, String destinationArg )
 
         try
         {
-            if ( guessStampsHi.containsKey( destination + "/" ) )
+            if ( states.isKnown( dirKey( paths.intern( destination ) ) ) )
             {
                 throw new TransferFailedException( destination + "is a directory" );
             }
 
             firePutStarted( resource, source );
 
-            File cachedFile = new File( cacheDir, destination );
-            FileUtils.copyFile( source, cachedFile );
-
-            Long timestamp = System.currentTimeMillis();
-            guessStampsHi.put( destination, timestamp );
-            guessStampsLo.put( destination, timestamp );
-
-            for ( ;; )
+            // fail fast rather than wait for the commit to end
+            checkNotCommitting();
+            Lock lock = sessionLock.readLock();
+            lock.lock();
+            try
             {
-                addedResources.add( destination );
-                missingResources.remove( destination );
-                int i = destination.lastIndexOf( '/' );
-                if ( i == -1 )
+                synchronized ( resourceLock( destination ) )
                 {
-                    break;
+                    stage( source, destination );
                 }
-                destination = destination.substring( 0, i + 1 );
-                addedResources.add( destination );
-                missingResources.remove( destination );
-                destination = destination.substring( 0, i );
+            }
+            finally
+            {
+                lock.unlock();
             }
         }
         catch ( Exception e )
@@ -324,428 +653,1808 @@ public void put( File source, String destinationArg )
         firePutCompleted( resource, source );
     }
 
-    @Override
-    public void putDirectory( File sourceDirectory, String destinationDirectoryArg )
-        throws TransferFailedException, ResourceDoesNotExistException, AuthorizationException
-    {
-        String destinationDirectory = canonRes( destinationDirectoryArg );
-        String dstPref = destinationDirectory.length() == 0 ? destinationDirectory : destinationDirectory + "/";
-        putDirectory0( sourceDirectory, dstPref );
-    }
-
-    private void putDirectory0( File sourceDirectory, String dstPref )
-        throws TransferFailedException, ResourceDoesNotExistException, AuthorizationException
+    private void checkNotCommitting()
+        throws IOException
     {
-        File[] files = sourceDirectory.listFiles();
-
-        for ( File file : files )
+        if ( committing )
         {
-            String destination = dstPref + file.getName();
-            if ( file.isFile() )
-            {
-                put( file, destination );
-            }
-            else if ( file.isDirectory() )
-            {
-                putDirectory0( file, destination + "/" );
-            }
-            else
-            {
-                throw new TransferFailedException( "Unknown file type: " + file.getAbsolutePath() );
-            }
+            throw new IOException( "Disconnected, the session is being committed" );
         }
     }
 
-    @Override
-    public boolean resourceExists( String resourceName )
-        throws TransferFailedException, AuthorizationException
+    private void stage( File source, String destinationArg )
+        throws IOException
     {
-        String canonResource = canonRes( resourceName );
-        if ( guessStampsHi.containsKey( canonResource ) )
+        checkNotCommitting();
+        if ( dedupMaxBytes > 0 && !stagingStorage.contains( destinationArg ) )
         {
-            return true;
+            noteReplacedContent( destinationArg );
         }
-
-        String pref = canonResource + "/";
-
-        if ( missingResources.containsKey( canonResource ) )
+        Map<String, String> digests = stagingStorage.store( destinationArg, source );
+        stagedDigests.put( destinationArg, new ConcurrentHashMap<String, String>( digests ) );
+        if ( isChecksum( destinationArg ) && source.length() <= CHECKSUM_MAX_LENGTH )
         {
-            return false;
+            stagedChecksums.put( destinationArg, Files.readAllBytes( source.toPath() ) );
         }
-
-        if ( resourceName.endsWith( "/" ) && missingResources.containsKey( pref ) )
+        else
         {
-            return false;
+            stagedChecksums.remove( destinationArg );
         }
 
-        // check if parent directory of some resource
-        for ( String s : guessStampsHi.keySet() )
+        metrics().count( DelayedWagonMetrics.STAGED_FILES );
+        metrics().count( DelayedWagonMetrics.STAGED_BYTES, source.length() );
+
+        long timestamp = System.currentTimeMillis();
+        if ( journal != null )
         {
-            if ( s.startsWith( pref ) )
-            {
-                return true;
-            }
+            journal.staged( destinationArg, timestamp, new File( stagingDir, destinationArg ).length() );
         }
-
-        boolean res = wagon.resourceExists( resourceName );
-        if ( res )
+        markStaged( destinationArg, timestamp );
+        if ( commitWarmer != null )
         {
-            guessStampsHi.put( canonResource, Long.MAX_VALUE );
-            if ( resourceName.endsWith( "/" ) )
-            {
-                guessStampsHi.put( canonResource + "/", Long.MAX_VALUE );
-            }
+            trackStagedPrefix( destinationArg );
         }
-        else
+        if ( flushQuietMillis > 0 || flushMaxBytes > 0 )
         {
-            if ( resourceName.endsWith( "/" ) )
-            {
-                canonResource = pref;
-            }
-            missingResources.put( canonResource, "cached: missing resource: " + canonResource );
+            scheduleFlush( destinationArg, source.length() );
         }
-        return res;
     }
 
-    @Override
-    public List<String> getFileList( String destinationDirectory )
-        throws TransferFailedException, ResourceDoesNotExistException, AuthorizationException
+    private static ScheduledExecutorService newFlushExecutor()
     {
-        String canonResource = canonRes( destinationDirectory );
-        String dirResource = canonResource + "/";
-        String prefix = canonResource.length() == 0 ? canonResource : dirResource;
+        ScheduledThreadPoolExecutor res =
+            new ScheduledThreadPoolExecutor( 1, new NamedThreadFactory( "wagon-delayed-flush-", true ) );
+        res.setKeepAliveTime( 1, TimeUnit.SECONDS );
+        res.allowCoreThreadTimeOut( true );
+        return res;
+    }
 
-        if ( listedDirs.contains( dirResource ) )
+    /**
+     * Flush the directory of a staged resource when it reaches the size threshold or after the quiet interval.
+     */
+    private void scheduleFlush( String resourceName, long length )
+    {
+        String dir = paths.intern( resourceName ).getParent().getDirName();
+        long bytes = flushTracker.staged( dir, resourceName, length, System.currentTimeMillis() );
+        // one task per directory, the quiet timer is pushed back by the puts made before it fires
+        if ( flushMaxBytes > 0 && bytes >= flushMaxBytes )
         {
-            HashSet<String> fileSet = new HashSet<String>();
-            for ( String s : guessStampsHi.keySet() )
+            if ( flushTracker.claimTask( dir, true ) )
             {
-                if ( s.startsWith( prefix ) && !s.endsWith( "/" ) )
-                {
-                    int i = s.indexOf( '/', prefix.length() );
-                    String sFile = s.substring( prefix.length(), i == -1 ? s.length() : i );
-                    fileSet.add( sFile );
-                }
+                FLUSH_EXECUTOR.execute( newFlushTask( dir, true ) );
             }
-            return new ArrayList<String>( fileSet );
         }
-        // guessStampsHi.containsKey( dirResource )
-        List<String> res = wagon.getFileList( destinationDirectory );
-        guessStampsHi.put( canonResource, Long.MAX_VALUE );
-        guessStampsHi.put( dirResource, Long.MAX_VALUE );
-        listedDirs.add( dirResource );
-        for ( String s : res )
+        else if ( flushQuietMillis > 0 && flushTracker.claimTask( dir, false ) )
         {
-            canonResource = prefix + canonRes( s );
-            if ( !guessStampsHi.containsKey( canonResource ) )
-            {
-                guessStampsHi.put( canonResource, Long.MAX_VALUE );
-            }
+            FLUSH_EXECUTOR.schedule( newFlushTask( dir, false ), flushQuietMillis, TimeUnit.MILLISECONDS );
         }
-        return res;
     }
 
-    private static String canonRes( String s )
+    private Runnable newFlushTask( final String dir, final boolean due )
     {
-        // normalize only works reliably with /absolute/dirs/
-        String res = FileUtils.normalize( "/" + s + "/" );
-        res = res.length() > 1 ? res.substring( 1, res.length() - 1 ) : "";
-        return res;
+        return new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                long wait = flushTracker.releaseTask( dir, due, flushQuietMillis, System.currentTimeMillis() );
+                if ( !due && wait > 0 )
+                {
+                    if ( flushTracker.claimTask( dir, false ) )
+                    {
+                        FLUSH_EXECUTOR.schedule( newFlushTask( dir, false ), wait, TimeUnit.MILLISECONDS );
+                    }
+                    return;
+                }
+                flush( dir );
+            }
+        };
     }
 
-    @Override
-    public boolean supportsDirectoryCopy()
+    /**
+     * @return true if a disconnect() waits for the transfers to finish or an asynchronous commit is pending
+     */
+    private boolean isCommitWaiting()
     {
-        return true;
+        return committing || sessionLock.hasQueuedThreads();
     }
 
-    @Override
-    public Repository getRepository()
+    private void flush( String dir )
     {
-        return wagon.getRepository();
+        // as for the warm-up, skip when a commit already waits; the commit uploads what stays staged
+        Lock lock = sessionLock.readLock();
+        if ( !lock.tryLock() )
+        {
+            return;
+        }
+        try
+        {
+            if ( connected && !isCommitWaiting() )
+            {
+                Map<String, Long> versions =
+                    flushTracker.take( dir, flushQuietMillis, flushMaxBytes, System.currentTimeMillis() );
+                if ( versions != null )
+                {
+                    flushLocked( dir, versions );
+                }
+            }
+        }
+        catch ( Exception e )
+        {
+            // the resources stay staged and the commit uploads them
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private void flushLocked( String dir, Map<String, Long> versions )
+        throws Exception
+    {
+        File flushDir = new File( cacheDir, "flush" );
+        FileUtils.deleteDirectory( flushDir );
+        List<String> files = new ArrayList<String>();
+        for ( Map.Entry<String, Long> entry : versions.entrySet() )
+        {
+            String resName = entry.getKey();
+            synchronized ( resourceLock( resName ) )
+            {
+                if ( flushTracker.isCurrent( resName, entry.getValue() ) && stagingStorage.contains( resName ) )
+                {
+                    stagingStorage.retrieve( resName, new File( flushDir, resName.substring( dir.length() ) ) );
+                    files.add( resName );
+                }
+            }
+        }
+        if ( files.isEmpty() )
+        {
+            return;
+        }
+
+        synchronized ( wagon )
+        {
+            if ( wagon.supportsDirectoryCopy() )
+            {
+                wagon.putDirectory( flushDir, canonRes( dir ) );
+            }
+            else
+            {
+                for ( String resName : files )
+                {
+                    wagon.put( new File( flushDir, resName.substring( dir.length() ) ), resName );
+                }
+            }
+        }
+
+        List<String> unstaged = new ArrayList<String>();
+        for ( String resName : files )
+        {
+            synchronized ( resourceLock( resName ) )
+            {
+                // unless staged again during the upload
+                if ( flushTracker.isCurrent( resName, versions.get( resName ) ) )
+                {
+                    unstageFlushed( resName, new File( flushDir, resName.substring( dir.length() ) ) );
+                    unstaged.add( resName );
+                }
+            }
+        }
+        if ( !unstaged.isEmpty() )
+        {
+            clearEmptyAncestors( unstaged );
+        }
+    }
+
+    /**
+     * Clear the added flags of the directories left without staged files by a flush. A put racing with this may lose
+     * the flags of its directories, the commit plan derives them from the file names.
+     */
+    private void clearEmptyAncestors( List<String> unstaged )
+    {
+        Set<ResourcePath> busy = new HashSet<ResourcePath>();
+        for ( String resName : addedFiles() )
+        {
+            ResourcePath dir = paths.intern( resName ).getParent();
+            while ( dir != ResourcePath.ROOT && busy.add( dir ) )
+            {
+                dir = dir.getParent();
+            }
+        }
+        for ( String resName : unstaged )
+        {
+            ResourcePath dir = paths.intern( resName ).getParent();
+            while ( dir != ResourcePath.ROOT && !busy.contains( dir ) )
+            {
+                states.remove( dir.getDirName() );
+                states.remove( dir.getName() );
+                dir = dir.getParent();
+            }
+        }
+    }
+
+    /**
+     * Keep the uploaded copy of a flushed resource as downloaded content, so that it is still served locally.
+     */
+    private void unstageFlushed( String resName, File uploaded )
+        throws IOException, TransferFailedException
+    {
+        File cachedFile = new File( downloadDir, resName );
+        cachedFile.getParentFile().mkdirs();
+        Files.move( uploaded.toPath(), cachedFile.toPath(), StandardCopyOption.REPLACE_EXISTING );
+        stagingStorage.remove( resName );
+        stagedDigests.remove( resName );
+        stagedChecksums.remove( resName );
+        remoteDigests.remove( resName );
+        states.remove( resName );
+        // like a committed resource, it exists with an unknown remote timestamp
+        putStampHi( resName, Long.MAX_VALUE );
+        states.removeStampLo( resName );
+        flushTracker.flushed( resName );
+        journalCommitted( resName );
+    }
+
+    /**
+     * Start the warm-up when the common directory of the staged resources is stable.
+     */
+    private void trackStagedPrefix( String resourceName )
+    {
+        ResourcePath dir = paths.intern( resourceName ).getParent();
+        final ResourcePath prefix;
+        synchronized ( warmupLock )
+        {
+            prefix = stagedPrefix == null ? dir : stagedPrefix.commonAncestor( dir );
+            if ( prefix.equals( stagedPrefix ) )
+            {
+                stablePuts++;
+            }
+            else
+            {
+                stagedPrefix = prefix;
+                stablePuts = 1;
+            }
+            if ( stablePuts < WARMUP_STABLE_PUTS || prefix == ResourcePath.ROOT || prefix.equals( warmedPrefix ) )
+            {
+                return;
+            }
+            warmedPrefix = prefix;
+        }
+
+        final CommitWarmer warmer = commitWarmer;
+        WARMUP_EXECUTOR.execute( new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                // a read lock does not keep out a queued writer, ask whether a commit already waits for it; a commit
+                // that queues after this check waits for the warm-up
+                Lock lock = sessionLock.readLock();
+                if ( !lock.tryLock() )
+                {
+                    return;
+                }
+                try
+                {
+                    if ( connected && !isCommitWaiting() )
+                    {
+                        warmer.warm( DelayedWagon.this, prefix.getName() );
+                    }
+                }
+                catch ( Exception e )
+                {
+                    // the commit does not depend on it
+                }
+                finally
+                {
+                    lock.unlock();
+                }
+            }
+        } );
+    }
+
+    /**
+     * Remember what the remote has under a name before it is staged for the first time.
+     */
+    private void noteReplacedContent( String resourceName )
+        throws IOException
+    {
+        File cachedFile = new File( downloadDir, resourceName );
+        if ( cachedFile.isFile() )
+        {
+            // downloaded in this session
+            remoteDigests.put( resourceName, Digests.digest( cachedFile, DEDUP_ALGORITHM ) );
+        }
+        else if ( states.isKnown( resourceName ) && !states.isMissing( resourceName ) )
+        {
+            remoteDigests.put( resourceName, "" );
+        }
+    }
+
+    private void markStaged( String destination, long timestamp )
+    {
+        putStampHi( destination, timestamp );
+        states.putStampLo( destination, timestamp );
+        addWithAncestors( destination );
+    }
+
+    private void addWithAncestors( String destination )
+    {
+        states.add( destination );
+        states.removeMissing( destination );
+        for ( ResourcePath dir = paths.intern( destination ).getParent(); dir != ResourcePath.ROOT;
+            dir = dir.getParent() )
+        {
+            states.add( dir.getDirName() );
+            states.removeMissing( dir.getDirName() );
+            states.add( dir.getName() );
+            states.removeMissing( dir.getName() );
+        }
     }
 
     @Override
-    public void connect( Repository source )
-        throws ConnectionException, AuthenticationException
+    public void putDirectory( File sourceDirectory, String destinationDirectoryArg )
+        throws TransferFailedException, ResourceDoesNotExistException, AuthorizationException
+    {
+        String destinationDirectory = canonRes( destinationDirectoryArg );
+        String dstPref = destinationDirectory.length() == 0 ? destinationDirectory : destinationDirectory + "/";
+        putDirectory0( sourceDirectory, dstPref );
+    }
+
+    private void putDirectory0( File sourceDirectory, String dstPref )
+        throws TransferFailedException, ResourceDoesNotExistException, AuthorizationException
+    {
+        File[] files = sourceDirectory.listFiles();
+
+        for ( File file : files )
+        {
+            String destination = dstPref + file.getName();
+            if ( file.isFile() )
+            {
+                put( file, destination );
+            }
+            else if ( file.isDirectory() )
+            {
+                putDirectory0( file, destination + "/" );
+            }
+            else
+            {
+                throw new TransferFailedException( "Unknown file type: " + file.getAbsolutePath() );
+            }
+        }
+    }
+
+    @Override
+    public boolean resourceExists( String resourceName )
+        throws TransferFailedException, AuthorizationException
+    {
+        Lock lock = sessionLock.readLock();
+        lock.lock();
+        try
+        {
+            return resourceExistsLocked( resourceName );
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private boolean resourceExistsLocked( final String resourceName )
+        throws TransferFailedException, AuthorizationException
+    {
+        final String canonResource = canonRes( resourceName );
+        final String pref = dirKey( paths.intern( canonResource ) );
+        Boolean cached = cachedResourceExists( resourceName, canonResource, pref );
+        if ( cached != null )
+        {
+            return cached;
+        }
+
+        // concurrent checks of the same resource share one remote call
+        final boolean isDir = resourceName.endsWith( "/" );
+        try
+        {
+            return existsCalls.run( isDir ? pref : canonResource, new Callable<Boolean>()
+            {
+                @Override
+                public Boolean call()
+                    throws Exception
+                {
+                    // a flight that just ended may have answered it
+                    Boolean answered = cachedResourceExists( resourceName, canonResource, pref );
+                    if ( answered != null )
+                    {
+                        return answered;
+                    }
+                    return remoteResourceExistsCached( resourceName, canonResource, isDir );
+                }
+            } );
+        }
+        catch ( TransferFailedException e )
+        {
+            throw e;
+        }
+        catch ( AuthorizationException e )
+        {
+            throw e;
+        }
+        catch ( Exception e )
+        {
+            throw new TransferFailedException( "Failure checking " + resourceName, e );
+        }
+    }
+
+    /**
+     * @return the answer known without a remote call or null
+     */
+    private Boolean cachedResourceExists( String resourceName, String canonResource, String pref )
+    {
+        if ( states.isKnown( canonResource ) )
+        {
+            metrics().count( DelayedWagonMetrics.EXISTS_HITS );
+            return true;
+        }
+
+        if ( states.isMissing( canonResource ) || resourceName.endsWith( "/" ) && states.isMissing( pref ) )
+        {
+            metrics().count( DelayedWagonMetrics.NEGATIVE_HITS );
+            metrics().count( DelayedWagonMetrics.EXISTS_HITS );
+            return false;
+        }
+
+        // check if parent directory of some resource
+        if ( knownResources.isParent( canonResource ) )
+        {
+            metrics().count( DelayedWagonMetrics.EXISTS_HITS );
+            return true;
+        }
+
+        if ( isInListedDir( canonResource ) )
+        {
+            metrics().count( DelayedWagonMetrics.NEGATIVE_HITS );
+            metrics().count( DelayedWagonMetrics.EXISTS_HITS );
+            return false;
+        }
+        return null;
+    }
+
+    private boolean remoteResourceExistsCached( String resourceName, String canonResource, boolean isDir )
+        throws TransferFailedException, AuthorizationException
+    {
+        boolean res = remoteResourceExists( resourceName );
+        if ( res )
+        {
+            putStampHi( canonResource, Long.MAX_VALUE );
+            if ( isDir )
+            {
+                putStampHi( canonResource + "/", Long.MAX_VALUE );
+            }
+        }
+        else
+        {
+            String missing = isDir ? canonResource + "/" : canonResource;
+            states.putMissing( missing, null );
+        }
+        return res;
+    }
+
+    @Override
+    public List<String> getFileList( String destinationDirectory )
+        throws TransferFailedException, ResourceDoesNotExistException, AuthorizationException
+    {
+        Lock lock = sessionLock.readLock();
+        lock.lock();
+        try
+        {
+            return getFileListLocked( destinationDirectory );
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private List<String> getFileListLocked( String destinationDirectory )
+        throws TransferFailedException, ResourceDoesNotExistException, AuthorizationException
+    {
+        ResourcePath dir = paths.intern( canonRes( destinationDirectory ) );
+
+        if ( states.isListed( dirKey( dir ) ) )
+        {
+            metrics().count( DelayedWagonMetrics.LIST_HITS );
+            return knownResources.listChildren( dir.getName() );
+        }
+        // states.isKnown( dirKey( dir ) )
+        List<String> res = remoteGetFileList( destinationDirectory );
+        addListing( dir, res );
+        return res;
+    }
+
+    private void addListing( ResourcePath dir, List<String> entries )
+    {
+        String dirResource = dirKey( dir );
+        String prefix = dir.getDirName();
+        putStampHi( dir.getName(), Long.MAX_VALUE );
+        putStampHi( dirResource, Long.MAX_VALUE );
+        for ( String s : entries )
+        {
+            String entry = prefix + canonRes( s );
+            if ( !states.isKnown( entry ) )
+            {
+                putStampHi( entry, Long.MAX_VALUE );
+            }
+        }
+        states.setListed( dirResource );
+    }
+
+    /**
+     * Only the listings inside the snapshot directory are trusted to be complete, so that a resource added by another
+     * client after an ordinary getFileList() is still checked remotely.
+     *
+     * @return true if the parent directory was listed, so the resource is known to be missing unless indexed
+     */
+    private boolean isInListedDir( String canonResource )
+    {
+        if ( snapshotDirectory == null || canonResource.length() == 0 )
+        {
+            return false;
+        }
+        ResourcePath parent = paths.intern( canonResource ).getParent();
+        ResourcePath snapshot = paths.intern( canonRes( snapshotDirectory ) );
+        return snapshot.equals( snapshot.commonAncestor( parent ) ) && states.isListed( dirKey( parent ) );
+    }
+
+    /**
+     * @return the state table name of a directory, "/" for the root
+     */
+    private static String dirKey( ResourcePath dir )
+    {
+        return dir == ResourcePath.ROOT ? "/" : dir.getDirName();
+    }
+
+    /**
+     * List the snapshot directory recursively and index everything in it.
+     */
+    private void takeSnapshot()
+    {
+        final String dir = canonRes( snapshotDirectory );
+        try
+        {
+            new ParallelListing( wagonLookup == null || connectionRepository == null ? 1 : snapshotThreads )
+            {
+                @Override
+                Wagon openWagon()
+                    throws Exception
+                {
+                    return openWorkerWagon();
+                }
+
+                @Override
+                void closeWagon( Wagon w )
+                {
+                    closeWorkerWagon( w );
+                }
+
+                @Override
+                void listed( String listedDir, List<String> entries )
+                {
+                    addListing( paths.intern( listedDir ), entries );
+                }
+            }.run( wagon, dir );
+        }
+        catch ( TransferFailedException e )
+        {
+            // the directories listed so far are still complete, the rest is fetched on demand
+        }
+    }
+
+    /**
+     * Download to a new file, because the old one may be linked elsewhere.
+     */
+    private void remoteGet( String resourceName, File destination )
+        throws TransferFailedException, ResourceDoesNotExistException, AuthorizationException
+    {
+        metrics().count( DelayedWagonMetrics.GET_MISSES );
+        File part = new File( destination.getPath() + ".part" );
+        try
+        {
+            synchronized ( wagon )
+            {
+                wagon.get( resourceName, part );
+            }
+            replaceFile( part, destination );
+        }
+        finally
+        {
+            part.delete();
+        }
+    }
+
+    /**
+     * Download to a new file, because the old one may be linked elsewhere.
+     */
+    private boolean remoteGetIfNewer( String resourceName, File destination, long timestamp )
+        throws TransferFailedException, ResourceDoesNotExistException, AuthorizationException
+    {
+        metrics().count( DelayedWagonMetrics.GET_MISSES );
+        File part = new File( destination.getPath() + ".part" );
+        try
+        {
+            boolean received;
+            synchronized ( wagon )
+            {
+                received = wagon.getIfNewer( resourceName, part, timestamp );
+            }
+            if ( received )
+            {
+                replaceFile( part, destination );
+            }
+            return received;
+        }
+        finally
+        {
+            part.delete();
+        }
+    }
+
+    private static void replaceFile( File source, File destination )
+        throws TransferFailedException
+    {
+        try
+        {
+            Files.move( source.toPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING );
+        }
+        catch ( IOException e )
+        {
+            throw new TransferFailedException( "Failure transferring " + destination, e );
+        }
+    }
+
+    private boolean remoteResourceExists( String resourceName )
+        throws TransferFailedException, AuthorizationException
+    {
+        metrics().count( DelayedWagonMetrics.EXISTS_MISSES );
+        synchronized ( wagon )
+        {
+            return wagon.resourceExists( resourceName );
+        }
+    }
+
+    private List<String> remoteGetFileList( String destinationDirectory )
+        throws TransferFailedException, ResourceDoesNotExistException, AuthorizationException
+    {
+        metrics().count( DelayedWagonMetrics.LIST_MISSES );
+        synchronized ( wagon )
+        {
+            return wagon.getFileList( destinationDirectory );
+        }
+    }
+
+    private Object resourceLock( String resourceName )
+    {
+        return resourceLocks[( resourceName.hashCode() & Integer.MAX_VALUE ) % resourceLocks.length];
+    }
+
+    private void putStampHi( String resourceName, long timestamp )
+    {
+        if ( states.putStampHi( resourceName, timestamp ) )
+        {
+            knownResources.add( resourceName );
+        }
+    }
+
+    private static String canonRes( String s )
+    {
+        return ResourcePath.canonical( s );
+    }
+
+    @Override
+    public boolean supportsDirectoryCopy()
+    {
+        return true;
+    }
+
+    @Override
+    public Repository getRepository()
+    {
+        return wagon.getRepository();
+    }
+
+    @Override
+    public void connect( Repository source )
+        throws ConnectionException, AuthenticationException
+    {
+        createCacheDir( source );
+        try
+        {
+            wagon.connect( source );
+            onConnected( source, null, null, null );
+        }
+        finally
+        {
+            deleteCacheIfDisconnected();
+        }
+    }
+
+    @Override
+    public void connect( Repository source, ProxyInfo proxyInfo )
+        throws ConnectionException, AuthenticationException
+    {
+        createCacheDir( source );
+        try
+        {
+            wagon.connect( source, proxyInfo );
+            onConnected( source, null, proxyInfo, null );
+        }
+        finally
+        {
+            deleteCacheIfDisconnected();
+        }
+    }
+
+    @Override
+    public void connect( Repository source, ProxyInfoProvider proxyInfoProvider )
+        throws ConnectionException, AuthenticationException
+    {
+        createCacheDir( source );
+        try
+        {
+            wagon.connect( source, proxyInfoProvider );
+            onConnected( source, null, null, proxyInfoProvider );
+        }
+        finally
+        {
+            deleteCacheIfDisconnected();
+        }
+    }
+
+    @Override
+    public void connect( Repository source, AuthenticationInfo authenticationInfo )
+        throws ConnectionException, AuthenticationException
+    {
+        createCacheDir( source );
+        try
+        {
+            wagon.connect( source, authenticationInfo );
+            onConnected( source, authenticationInfo, null, null );
+        }
+        finally
+        {
+            deleteCacheIfDisconnected();
+        }
+    }
+
+    @Override
+    public void connect( Repository source, AuthenticationInfo authenticationInfo, ProxyInfo proxyInfo )
+        throws ConnectionException, AuthenticationException
+    {
+        createCacheDir( source );
+        try
+        {
+            wagon.connect( source, authenticationInfo, proxyInfo );
+            onConnected( source, authenticationInfo, proxyInfo, null );
+        }
+        finally
+        {
+            deleteCacheIfDisconnected();
+        }
+    }
+
+    @Override
+    public void connect( Repository source, AuthenticationInfo authenticationInfo, ProxyInfoProvider proxyInfoProvider )
+        throws ConnectionException, AuthenticationException
+    {
+        createCacheDir( source );
+        try
+        {
+            wagon.connect( source, authenticationInfo, proxyInfoProvider );
+            onConnected( source, authenticationInfo, null, proxyInfoProvider );
+        }
+        finally
+        {
+            deleteCacheIfDisconnected();
+        }
+    }
+
+    @SuppressWarnings( "deprecation" )
+    @Override
+    public void openConnection()
+        throws ConnectionException, AuthenticationException
+    {
+        createCacheDir( wagon.getRepository() );
+        try
+        {
+            wagon.openConnection();
+            onConnected( null, null, null, null );
+        }
+        finally
+        {
+            deleteCacheIfDisconnected();
+        }
+    }
+
+    @Override
+    public void disconnect()
+        throws ConnectionException
+    {
+        // wait for the transfers in progress
+        Lock lock = sessionLock.writeLock();
+        lock.lock();
+        try
+        {
+            if ( pendingCommit != null )
+            {
+                // already committing, the result is reported by awaitCommit()
+                return;
+            }
+            if ( asyncCommit && connected )
+            {
+                // the task waits for this lock to be released, meanwhile no put may stage into the session
+                committing = true;
+                FutureTask<Void> commit = new FutureTask<Void>( new Callable<Void>()
+                {
+                    @Override
+                    public Void call()
+                        throws ConnectionException
+                    {
+                        Lock commitLock = sessionLock.writeLock();
+                        commitLock.lock();
+                        try
+                        {
+                            disconnectLocked();
+                        }
+                        finally
+                        {
+                            committing = false;
+                            commitLock.unlock();
+                        }
+                        return null;
+                    }
+                } )
+                {
+                    @Override
+                    protected void done()
+                    {
+                        COMMITS.remove( this );
+                    }
+                };
+                Repository repository = wagon.getRepository();
+                if ( repository != null && repository.getUrl() != null )
+                {
+                    COMMITS.put( commit, repository.getUrl() );
+                }
+                pendingCommit = commit;
+                COMMIT_EXECUTOR.execute( commit );
+                return;
+            }
+            disconnectLocked();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true while the commit started by an asynchronous disconnect() runs.
+     */
+    public boolean isCommitPending()
+    {
+        Future<?> commit = pendingCommit;
+        return commit != null && !commit.isDone();
+    }
+
+    /**
+     * Wait for the commit started by an asynchronous disconnect().
+     *
+     * @throws ConnectionException when the commit failed.
+     */
+    public void awaitCommit()
+        throws ConnectionException
+    {
+        Future<?> commit = pendingCommit;
+        if ( commit == null )
+        {
+            return;
+        }
+        try
+        {
+            commit.get();
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new ConnectionException( "Interrupted while waiting for the commit", e );
+        }
+        catch ( ExecutionException e )
+        {
+            Throwable cause = e.getCause();
+            if ( cause instanceof ConnectionException )
+            {
+                throw (ConnectionException) cause;
+            }
+            throw new ConnectionException( "Commit failed", cause );
+        }
+        finally
+        {
+            if ( commit.isDone() && pendingCommit == commit )
+            {
+                pendingCommit = null;
+            }
+        }
+    }
+
+    /**
+     * Wait for the asynchronous commits of other delayed wagons to the repository, so that this session sees them.
+     * Their failures are reported by their own awaitCommit().
+     */
+    private static void awaitRepositoryCommits( Repository source )
+        throws ConnectionException
+    {
+        if ( source == null || source.getUrl() == null )
+        {
+            return;
+        }
+        for ( Map.Entry<Future<?>, String> entry : COMMITS.entrySet() )
+        {
+            if ( !source.getUrl().equals( entry.getValue() ) )
+            {
+                continue;
+            }
+            try
+            {
+                entry.getKey().get();
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+                throw new ConnectionException( "Interrupted while waiting for the commit to " + source.getUrl(), e );
+            }
+            catch ( ExecutionException e )
+            {
+                // not ours to report
+            }
+        }
+    }
+
+    private void awaitCommitQuietly()
+    {
+        try
+        {
+            awaitCommit();
+        }
+        catch ( ConnectionException e )
+        {
+            // the state of the failed commit is checked by the caller
+        }
+    }
+
+    private void disconnectLocked()
+        throws ConnectionException
+    {
+        if ( !connected )
+        {
+            return;
+        }
+
+        commitException = new Exception( "unknown" );
+        String commonPrefix = "";
+        try
+        {
+            long start = System.nanoTime();
+            dropUnchanged();
+            if ( journal != null )
+            {
+                journal.sync();
+            }
+            metrics().time( DelayedWagonMetrics.PREPARE, start );
+
+            start = System.nanoTime();
+            if ( !wagon.supportsDirectoryCopy() )
+            {
+                putAdded( addedFiles() );
+            }
+            else if ( states.getAddedCount() != 0 )
+            {
+                Set<String> addedResources = states.getAdded();
+                commonPrefix = canonRes( findCommonDir( addedResources ) );
+                List<CommitPlanner.Step> steps = CommitPlanner.plan( addedResources, maxCommitSubtrees );
+                if ( commitBatchMaxFiles > 0 || commitBatchMaxBytes > 0 )
+                {
+                    steps = CommitPlanner.batch( steps, stagedLengths( steps ), commitBatchMaxFiles,
+                                                 commitBatchMaxBytes );
+                }
+                for ( CommitPlanner.Step step : steps )
+                {
+                    if ( step.isPutDirectory() )
+                    {
+                        String dir = canonRes( step.getDirectory() );
+                        File source = step.isWholeSubtree() ? new File( stagingDir, dir ) : prepareBatch( step );
+                        wagon.putDirectory( source, dir );
+                        for ( String resName : step.getFiles() )
+                        {
+                            journalCommitted( resName );
+                        }
+                        journalCheckpoint();
+                    }
+                    else
+                    {
+                        putAdded( step.getFiles() );
+                    }
+                }
+            }
+            metrics().time( DelayedWagonMetrics.COMMIT, start );
+
+            saveMetadataCache();
+            if ( journal != null )
+            {
+                journal.delete();
+            }
+
+            // we don't clear these in finally, because commit errors are irrecoverable
+            // a failed-to-commit wagon can only be reconnected to resume from the journal
+            clearState();
+
+            connected = false;
+        }
+        catch ( Exception e )
+        {
+            if ( metadataCache != null )
+            {
+                // the remote state is unknown after a partial commit
+                metadataCache.invalidate();
+                metadataCache = null;
+            }
+            commitException = e;
+            // TODO: exception thrown by disconnect() will not fail the build
+            throw new ConnectionException( "Commit failed", e );
+        }
+        finally
+        {
+            if ( connected )
+            {
+                fireTransferError( new Resource( commonPrefix ), commitException, TransferEvent.REQUEST_PUT );
+                if ( journal != null )
+                {
+                    // can be reconnected to resume the commit
+                    connected = false;
+                }
+            }
+
+            saveContentCache();
+            stagingStorage.clear();
+            if ( journal != null )
+            {
+                journal.close();
+                journal = null;
+            }
+            long start = System.nanoTime();
+            deleteCache();
+            metrics().time( DelayedWagonMetrics.DELETE_CACHE, start );
+            wagon.disconnect();
+        }
+    }
+
+    private void deleteCacheIfDisconnected()
+    {
+        if ( !connected )
+        {
+            deleteCache();
+        }
+    }
+
+    private void deleteCache()
+    {
+        try
+        {
+            File save = cacheDir;
+            if ( !explicitCacheDir )
+            {
+                cacheDir = null;
+                deleteDirectory( save );
+            }
+        }
+        catch ( Exception e )
+        {
+            //
+        }
+    }
+
+    private void deleteDirectory( File dir )
+        throws IOException
+    {
+        if ( asyncDelete )
+        {
+            CacheReaper.delete( dir );
+        }
+        else
+        {
+            FileUtils.deleteDirectory( dir );
+        }
+    }
+
+    /**
+     * @param addedResources canonical names of the added files and their parent directories, as in the state table
+     * @return the deepest directory containing all added files and leaf directories, with a trailing "/", or null
+     */
+    static String findCommonDir( Set<String> addedResources )
+    {
+        if ( addedResources.isEmpty() )
+        {
+            return null;
+        }
+        ResourcePath.Interner interner = new ResourcePath.Interner();
+
+        // directories with something added below are not leaves
+        Set<ResourcePath> inner = new HashSet<ResourcePath>();
+        for ( String s : addedResources )
+        {
+            ResourcePath path = interner.intern( canonRes( s ) );
+            for ( ResourcePath dir = path.getParent(); dir != ResourcePath.ROOT && inner.add( dir );
+                dir = dir.getParent() )
+            {
+                // mark
+            }
+        }
+
+        ResourcePath common = null;
+        for ( String s : addedResources )
+        {
+            ResourcePath path = interner.intern( canonRes( s ) );
+            boolean isDir = s.endsWith( "/" ) || addedResources.contains( path.getDirName() );
+            if ( isDir && inner.contains( path ) )
+            {
+                continue;
+            }
+            ResourcePath dir = isDir ? path : path.getParent();
+            common = common == null ? dir : common.commonAncestor( dir );
+            if ( common == ResourcePath.ROOT )
+            {
+                break;
+            }
+        }
+        return common == null ? "" : common.getDirName();
+    }
+
+    private void putAdded( List<String> files )
+        throws TransferFailedException, ResourceDoesNotExistException, AuthorizationException
+    {
+        if ( commitThreads > 1 && files.size() > 1 && wagonLookup != null && connectionRepository != null )
+        {
+            new ParallelCommit( commitThreads )
+            {
+                @Override
+                Wagon openWagon()
+                    throws Exception
+                {
+                    return openWorkerWagon();
+                }
+
+                @Override
+                void closeWagon( Wagon w )
+                {
+                    closeWorkerWagon( w );
+                }
+
+                @Override
+                void committed( String resName )
+                    throws TransferFailedException
+                {
+                    journalCommitted( resName );
+                }
+
+                @Override
+                void put( Wagon w, File baseDir, String resName )
+                    throws Exception
+                {
+                    putStaged( w, resName );
+                }
+            }.run( wagon, stagingDir, files );
+            return;
+        }
+
+        for ( String resName : files )
+        {
+            putStaged( wagon, resName );
+            journalCommitted( resName );
+        }
+    }
+
+    /**
+     * Put a staged resource, streamed from memory when it is not staged as a file.
+     */
+    private void putStaged( Wagon w, String resName )
+        throws TransferFailedException, ResourceDoesNotExistException, AuthorizationException
+    {
+        File file = stagingStorage.getFile( resName );
+        if ( file != null )
+        {
+            w.put( file, resName );
+            return;
+        }
+        try
+        {
+            if ( !( w instanceof StreamingWagon ) )
+            {
+                // not expected, the memory staging is only used when the underlying wagon streams
+                file = new File( stagingDir, resName );
+                stagingStorage.retrieve( resName, file );
+                w.put( file, resName );
+                return;
+            }
+            InputStream in = stagingStorage.openStream( resName );
+            try
+            {
+                ( (StreamingWagon) w ).putFromStream( in, resName, stagingStorage.getLength( resName ), 0 );
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch ( IOException e )
+        {
+            throw new TransferFailedException( "Failure reading " + resName, e );
+        }
+    }
+
+    private Map<String, Long> stagedLengths( List<CommitPlanner.Step> steps )
+    {
+        Map<String, Long> res = new HashMap<String, Long>();
+        for ( CommitPlanner.Step step : steps )
+        {
+            for ( String resName : step.getFiles() )
+            {
+                res.put( resName, new File( stagingDir, resName ).length() );
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Link or copy the files of a batch into a separate tree for putDirectory(). The staged files stay in place
+     * until the commit succeeds, so a failed batch can be resumed from the journal.
+     */
+    private File prepareBatch( CommitPlanner.Step step )
+        throws IOException
+    {
+        File batchDir = new File( cacheDir, "batch" );
+        FileUtils.deleteDirectory( batchDir );
+        int prefix = step.getDirectory().length();
+        for ( String resName : step.getFiles() )
+        {
+            FileTransfer.copy( new File( stagingDir, resName ), new File( batchDir, resName.substring( prefix ) ),
+                               true );
+        }
+        return batchDir;
+    }
+
+    /**
+     * Force the commit records of the finished step to the storage device.
+     */
+    private void journalCheckpoint()
+        throws TransferFailedException
     {
-        createCacheDir();
-        try
+        if ( journal != null )
         {
-            wagon.connect( source );
-            connected = true;
+            try
+            {
+                journal.sync();
+            }
+            catch ( IOException e )
+            {
+                throw new TransferFailedException( "Unable to write the commit journal", e );
+            }
         }
-        finally
+    }
+
+    private void journalCommitted( String resName )
+        throws TransferFailedException
+    {
+        if ( journal != null )
         {
-            deleteCacheIfDisconnected();
+            try
+            {
+                journal.committed( resName );
+            }
+            catch ( IOException e )
+            {
+                throw new TransferFailedException( "Unable to write the commit journal", e );
+            }
         }
     }
 
-    @Override
-    public void connect( Repository source, ProxyInfo proxyInfo )
-        throws ConnectionException, AuthenticationException
+    /**
+     * Unstage the resources identical to the remote content they replace.
+     */
+    private void dropUnchanged()
+        throws IOException, TransferFailedException
     {
-        createCacheDir();
-        try
+        Map<String, String> digests = new HashMap<String, String>();
+        Map<String, String> fetches = new HashMap<String, String>();
+        for ( Map.Entry<String, String> entry : remoteDigests.entrySet() )
         {
-            wagon.connect( source, proxyInfo );
-            connected = true;
+            String resName = entry.getKey();
+            if ( !stagingStorage.contains( resName ) )
+            {
+                continue;
+            }
+            String remoteDigest = entry.getValue();
+            if ( remoteDigest.length() > 0 )
+            {
+                digests.put( resName, remoteDigest );
+                continue;
+            }
+            // the remote checksum file costs a few bytes, the content as much as the upload it may save
+            String checksumName = resName + DEDUP_EXTENSION;
+            File cachedChecksum = new File( downloadDir, checksumName );
+            if ( cachedChecksum.isFile() )
+            {
+                remoteDigest = checksumDigest( cachedChecksum );
+                if ( remoteDigest != null )
+                {
+                    digests.put( resName, remoteDigest );
+                }
+            }
+            else if ( existedRemotely( checksumName ) )
+            {
+                fetches.put( resName, checksumName );
+            }
+            else if ( stagingStorage.getLength( resName ) <= dedupMaxBytes )
+            {
+                fetches.put( resName, resName );
+            }
         }
-        finally
+        digests.putAll( fetchDigests( fetches ) );
+
+        boolean dropped = false;
+        for ( Map.Entry<String, String> entry : digests.entrySet() )
         {
-            deleteCacheIfDisconnected();
+            String resName = entry.getKey();
+            if ( entry.getValue().equals( stagedDigest( resName, DEDUP_ALGORITHM ) ) )
+            {
+                stagingStorage.remove( resName );
+                stagedDigests.remove( resName );
+                stagedChecksums.remove( resName );
+                states.remove( resName );
+                // the remote keeps its older timestamp
+                states.removeStampLo( resName );
+                journalCommitted( resName );
+                dropped = true;
+            }
+        }
+
+        if ( dropped )
+        {
+            // keep only the directories of the remaining files
+            List<String> files = addedFiles();
+            states.clearAdded();
+            for ( String resName : files )
+            {
+                addWithAncestors( resName );
+            }
         }
     }
 
-    @Override
-    public void connect( Repository source, ProxyInfoProvider proxyInfoProvider )
-        throws ConnectionException, AuthenticationException
+    /**
+     * @return true if the resource was known to exist remotely before this session staged it
+     */
+    private boolean existedRemotely( String resourceName )
+    {
+        if ( stagingStorage.contains( resourceName ) )
+        {
+            return remoteDigests.containsKey( resourceName );
+        }
+        return states.isKnown( resourceName ) && !states.isMissing( resourceName );
+    }
+
+    /**
+     * Download the remote content or checksum files for the comparison, through the commit workers when there are
+     * several. The downloads are not reported to the listeners.
+     *
+     * @param fetches the name to download for each resource name
+     * @return the remote digest of each resource that could be fetched
+     */
+    private Map<String, String> fetchDigests( Map<String, String> fetches )
+        throws IOException
     {
-        createCacheDir();
+        final Map<String, String> digests = new ConcurrentHashMap<String, String>();
+        if ( fetches.isEmpty() )
+        {
+            return digests;
+        }
+        // a checksum file may be compared itself and stand for its resource, download it once
+        final Map<String, List<String>> fetched = new HashMap<String, List<String>>();
+        for ( Map.Entry<String, String> entry : fetches.entrySet() )
+        {
+            List<String> resNames = fetched.get( entry.getValue() );
+            if ( resNames == null )
+            {
+                resNames = new ArrayList<String>( 1 );
+                fetched.put( entry.getValue(), resNames );
+            }
+            resNames.add( entry.getKey() );
+        }
+        final File fetchDir = new File( cacheDir, "dedup" );
+        if ( !fetchDir.isDirectory() && !fetchDir.mkdirs() )
+        {
+            throw new IOException( "unable to mkdir: " + fetchDir );
+        }
         try
         {
-            wagon.connect( source, proxyInfoProvider );
-            connected = true;
+            List<String> resources = new ArrayList<String>( fetched.keySet() );
+            if ( commitThreads > 1 && resources.size() > 1 && wagonLookup != null && connectionRepository != null )
+            {
+                try
+                {
+                    new ParallelCommit( commitThreads )
+                    {
+                        @Override
+                        Wagon openWagon()
+                            throws Exception
+                        {
+                            return openWorkerWagon();
+                        }
+
+                        @Override
+                        void closeWagon( Wagon w )
+                        {
+                            closeWorkerWagon( w );
+                        }
+
+                        @Override
+                        void put( Wagon w, File baseDir, String fetchName )
+                        {
+                            fetchDigests( w, fetchName, fetched.get( fetchName ), baseDir, digests );
+                        }
+                    }.run( wagon, fetchDir, resources );
+                    return digests;
+                }
+                catch ( TransferFailedException e )
+                {
+                    // a worker failed to connect, fetch through the underlying wagon
+                }
+            }
+            for ( String fetchName : resources )
+            {
+                fetchDigests( wagon, fetchName, fetched.get( fetchName ), fetchDir, digests );
+            }
+            return digests;
         }
         finally
         {
-            deleteCacheIfDisconnected();
+            FileUtils.deleteDirectory( fetchDir );
         }
     }
 
-    @Override
-    public void connect( Repository source, AuthenticationInfo authenticationInfo )
-        throws ConnectionException, AuthenticationException
+    /**
+     * Put the remote digests of the resources compared with a download into digests, unless the download fails:
+     * upload when unsure.
+     */
+    private void fetchDigests( Wagon w, String fetchName, List<String> resNames, File fetchDir,
+                               Map<String, String> digests )
     {
-        createCacheDir();
+        File tmp = null;
         try
         {
-            wagon.connect( source, authenticationInfo );
-            connected = true;
+            tmp = File.createTempFile( "fetch", ".tmp", fetchDir );
+            transLsn.quiet.set( Boolean.TRUE );
+            try
+            {
+                w.get( fetchName, tmp );
+            }
+            finally
+            {
+                transLsn.quiet.remove();
+            }
+            for ( String resName : resNames )
+            {
+                String digest =
+                    fetchName.equals( resName ) ? Digests.digest( tmp, DEDUP_ALGORITHM ) : checksumDigest( tmp );
+                if ( digest != null )
+                {
+                    digests.put( resName, digest );
+                }
+            }
+        }
+        catch ( Exception e )
+        {
+            // upload when unsure
         }
         finally
         {
-            deleteCacheIfDisconnected();
+            if ( tmp != null )
+            {
+                tmp.delete();
+            }
         }
     }
 
-    @Override
-    public void connect( Repository source, AuthenticationInfo authenticationInfo, ProxyInfo proxyInfo )
-        throws ConnectionException, AuthenticationException
+    /**
+     * @return the lower case digest at the start of a checksum file or null if it has none
+     */
+    private static String checksumDigest( File checksumFile )
+        throws IOException
     {
-        createCacheDir();
-        try
+        String content = new String( Files.readAllBytes( checksumFile.toPath() ), "US-ASCII" ).trim();
+        String digest = content.split( "\\s", 2 )[0];
+        return DEDUP_HEX.matcher( digest ).matches() ? digest.toLowerCase( Locale.ENGLISH ) : null;
+    }
+
+    private String stagedDigest( String resourceName, String algorithm )
+        throws IOException
+    {
+        Map<String, String> digests = stagedDigests.get( resourceName );
+        if ( digests == null )
         {
-            wagon.connect( source, authenticationInfo, proxyInfo );
-            connected = true;
+            // recovered from the journal
+            digests = new ConcurrentHashMap<String, String>();
+            stagedDigests.put( resourceName, digests );
         }
-        finally
+        String digest = digests.get( algorithm );
+        if ( digest == null )
         {
-            deleteCacheIfDisconnected();
+            digest = Digests.digest( stagingStorage.openStream( resourceName ), algorithm );
+            digests.put( algorithm, digest );
         }
+        return digest;
     }
 
-    @Override
-    public void connect( Repository source, AuthenticationInfo authenticationInfo, ProxyInfoProvider proxyInfoProvider )
-        throws ConnectionException, AuthenticationException
+    private static boolean isChecksum( String resourceName )
     {
-        createCacheDir();
-        try
+        for ( String ext : CHECKSUM_EXTENSIONS )
         {
-            wagon.connect( source, authenticationInfo, proxyInfoProvider );
-            connected = true;
+            if ( resourceName.endsWith( ext ) )
+            {
+                return true;
+            }
         }
-        finally
+        return false;
+    }
+
+    /**
+     * @return the added resources that are not directories
+     */
+    private List<String> addedFiles()
+    {
+        Set<String> addedResources = states.getAdded();
+        List<String> files = new ArrayList<String>();
+        for ( String resName : addedResources )
         {
-            deleteCacheIfDisconnected();
+            if ( !resName.endsWith( "/" ) && !addedResources.contains( resName + "/" ) )
+            {
+                files.add( resName );
+            }
         }
+        return files;
     }
 
-    @SuppressWarnings( "deprecation" )
-    @Override
-    public void openConnection()
-        throws ConnectionException, AuthenticationException
+    private void clearState()
     {
-        createCacheDir();
-        try
+        synchronized ( warmupLock )
         {
-            wagon.openConnection();
-            connected = true;
+            stagedPrefix = null;
+            stablePuts = 0;
+            warmedPrefix = null;
         }
-        finally
+        flushTracker.clear();
+        remoteDigests.clear();
+        stagedDigests.clear();
+        stagedChecksums.clear();
+        states.clear();
+        knownResources.clear();
+        paths.clear();
+    }
+
+    private void onConnected( Repository source, AuthenticationInfo authenticationInfo, ProxyInfo proxyInfo,
+                              ProxyInfoProvider proxyInfoProvider )
+        throws ConnectionException
+    {
+        connectionRepository = source;
+        connectionAuthenticationInfo = authenticationInfo;
+        connectionProxyInfo = proxyInfo;
+        connectionProxyInfoProvider = proxyInfoProvider;
+        Map<String, Long> recovered = openJournal();
+        stagingStorage = new FileStagingStorage( stagingDir, linkFiles );
+        // a wagon that copies directories or puts files only would need the buffered resources as files again
+        if ( stagingMemoryBudget > 0 && journal == null && wagon instanceof StreamingWagon
+            && !wagon.supportsDirectoryCopy() )
         {
-            deleteCacheIfDisconnected();
+            stagingStorage = new MemoryStagingStorage( stagingMemoryBudget, MEMORY_STAGING_MAX_LENGTH, stagingStorage );
+        }
+        loadMetadataCache();
+        loadContentCache();
+        if ( snapshotDirectory != null )
+        {
+            takeSnapshot();
         }
+        for ( Map.Entry<String, Long> entry : recovered.entrySet() )
+        {
+            // again, over the loaded metadata
+            stagingStorage.recover( entry.getKey() );
+            markStaged( entry.getKey(), entry.getValue() );
+        }
+        connected = true;
     }
 
-    @Override
-    public void disconnect()
+    /**
+     * Start the journal of an explicit cache directory, when enabled, and sort out the files left by a previous
+     * session.
+     *
+     * @return the stamps of the resources staged and not committed by the previous session
+     */
+    private Map<String, Long> openJournal()
         throws ConnectionException
     {
-        if ( !connected )
+        journal = null;
+        if ( !explicitCacheDir || !commitJournal )
         {
-            return;
+            return Collections.emptyMap();
         }
 
-        commitException = new Exception( "unknown" );
-        String commonPrefix = "";
+        // a reconnect after a failed commit starts over from the journal
+        clearState();
+
+        Repository repository = wagon.getRepository();
+        CommitJournal newJournal =
+            new CommitJournal( cacheDir, stagingDir, repository == null ? null : repository.getUrl() );
         try
         {
-            retainAdded( cacheDir, "" );
-
-            if ( !wagon.supportsDirectoryCopy() )
+            Map<String, Long> recovered = newJournal.open();
+            for ( Map.Entry<String, Long> entry : recovered.entrySet() )
             {
-                putAdded( cacheDir, "" );
+                markStaged( entry.getKey(), entry.getValue() );
             }
-            else if ( addedResources.size() != 0 )
+            // the downloads of the previous session may be outdated
+            deleteDirectory( downloadDir );
+            if ( stagingDir.isDirectory() )
             {
-                commonPrefix = canonRes( findCommonDir( addedResources ) );
-                File commonPrefixFile = new File( cacheDir, commonPrefix );
-                wagon.putDirectory( commonPrefixFile, commonPrefix );
+                long start = System.nanoTime();
+                retainAdded( stagingDir, "" );
+                metrics().time( DelayedWagonMetrics.RETAIN_ADDED, start );
             }
-
-            // we don't clear these in finally, because commit errors are irrecoverable
-            // a failed-to-commit wagon cannot be used again
-            missingResources.clear();
-            listedDirs.clear();
-            guessStampsHi.clear();
-            guessStampsLo.clear();
-            addedResources.clear();
-
-            connected = false;
+            journal = newJournal;
+            return recovered;
         }
         catch ( Exception e )
         {
-            commitException = e;
-            // TODO: exception thrown by disconnect() will not fail the build
-            throw new ConnectionException( "Commit failed", e );
-        }
-        finally
-        {
-            if ( connected )
-            {
-                fireTransferError( new Resource( commonPrefix ), commitException, TransferEvent.REQUEST_PUT );
-            }
-
-            deleteCache();
+            newJournal.close();
             wagon.disconnect();
+            throw new ConnectionException( "Unable to open the commit journal of " + cacheDir, e );
         }
     }
 
-    private void deleteCacheIfDisconnected()
+    private void loadMetadataCache()
     {
-        if ( !connected )
+        metadataCache = null;
+        if ( metadataCacheDir == null )
         {
-            deleteCache();
+            return;
         }
-    }
-
-    private void deleteCache()
-    {
+        Repository repository = wagon.getRepository();
+        metadataCache = new MetadataCache( metadataCacheDir, metadataCacheTtl,
+                                           repository == null ? null : repository.getUrl() );
         try
         {
-            File save = cacheDir;
-            if ( !explicitCacheDir )
-            {
-                cacheDir = null;
-                FileUtils.deleteDirectory( save );
-            }
+            metadataCache.load();
         }
-        catch ( Exception e )
+        catch ( IOException e )
         {
-            //
+            metadataCache.invalidate();
+            return;
+        }
+        for ( String res : metadataCache.getStampHiResources() )
+        {
+            putStampHi( res, metadataCache.getStampHi( res ) );
+        }
+        for ( String res : metadataCache.getStampLoResources() )
+        {
+            states.putStampLo( res, metadataCache.getStampLo( res ) );
+        }
+        for ( String res : metadataCache.getMissingResources() )
+        {
+            states.putMissing( res, null );
         }
     }
 
-    static String findCommonDir( Set<String> addedResourcesArg )
+    private void loadContentCache()
     {
-        HashSet<String> addedResources = new HashSet<String>( addedResourcesArg );
-        for ( String s : addedResourcesArg )
+        contentCache = null;
+        if ( contentCacheDir == null )
         {
-            int i = 0;
-            String parent = s;
-            boolean removedLast = false;
-            for ( ;; )
-            {
-                i = s.indexOf( '/', i );
-                if ( i == -1 )
-                {
-                    if ( removedLast )
-                    {
-                        addedResources.add( parent );
-                    }
-                    break;
-                }
-                parent = s.substring( 0, i );
-                addedResources.remove( parent );
-                i++;
-                parent = s.substring( 0, i );
-                removedLast = addedResources.remove( parent );
-            }
+            return;
+        }
+        Repository repository = wagon.getRepository();
+        ContentCache cache =
+            new ContentCache( contentCacheDir, repository == null ? null : repository.getUrl(), contentCacheMaxBytes,
+                              linkFiles );
+        try
+        {
+            cache.load();
+            contentCache = cache;
+        }
+        catch ( IOException e )
+        {
+            // run without
         }
+    }
 
-        String commonPrefix = null;
-        for ( String s : addedResources )
+    private void saveContentCache()
+    {
+        if ( contentCache != null )
         {
-            String maybeDir = s + "/";
-            if ( !addedResources.contains( maybeDir ) )
+            try
             {
-                int i = s.lastIndexOf( '/' );
-                if ( i == -1 )
-                {
-                    // it's a root file
-                    return "";
-                }
-                else
-                {
-                    maybeDir = s.substring( 0, i + 1 );
-                }
+                contentCache.save();
             }
-            commonPrefix = extractCommonDir( commonPrefix, maybeDir );
-            if ( commonPrefix.length() == 0 )
+            catch ( IOException e )
             {
-                break;
+                //
             }
+            contentCache = null;
         }
-        return commonPrefix;
     }
 
-    private static String extractCommonDir( String a, String b )
+    private void saveMetadataCache()
     {
-        if ( a == null )
-        {
-            return b;
-        }
-        int minLength = Math.min( a.length(), b.length() );
-        int iLastSlash = 0;
-        for ( int i = 0; i < minLength; i++ )
+        if ( metadataCache != null )
         {
-            if ( a.charAt( i ) != b.charAt( i ) )
+            try
             {
-                return a.substring( 0, iLastSlash );
+                metadataCache.save( states.getStampsHi(), states.getStampsLo(), states.getMissing(),
+                                    states.getAdded() );
             }
-            if ( a.charAt( i ) == '/' )
+            catch ( IOException e )
             {
-                iLastSlash = i;
+                metadataCache.invalidate();
             }
+            metadataCache = null;
         }
-        return a.substring( 0, minLength );
     }
 
-    private void putAdded( File dir, String dstPref )
-        throws TransferFailedException, ResourceDoesNotExistException, AuthorizationException
+    /**
+     * @return another underlying wagon, connected like this one
+     * @throws Exception when the lookup or connection fails
+     */
+    private Wagon openWorkerWagon()
+        throws Exception
     {
-        for ( File file : dir.listFiles() )
+        Wagon w = wagonLookup.lookup();
+        try
         {
-            String resName = dstPref + file.getName();
-            if ( file.isDirectory() )
+            w.setTimeout( wagon.getTimeout() );
+            w.setReadTimeout( wagon.getReadTimeout() );
+            w.setInteractive( false );
+            if ( connectionProxyInfoProvider != null )
             {
-                putAdded( file, resName + "/" );
+                w.connect( connectionRepository, connectionAuthenticationInfo, connectionProxyInfoProvider );
             }
             else
             {
-                wagon.put( file, resName );
+                w.connect( connectionRepository, connectionAuthenticationInfo, connectionProxyInfo );
             }
+            return w;
+        }
+        catch ( Exception e )
+        {
+            wagonLookup.release( w );
+            throw e;
+        }
+    }
+
+    private void closeWorkerWagon( Wagon w )
+    {
+        try
+        {
+            w.disconnect();
+        }
+        catch ( Exception e )
+        {
+            //
+        }
+        finally
+        {
+            wagonLookup.release( w );
         }
     }
 
@@ -760,14 +2469,34 @@ private void retainAdded( File dir, String dstPref )
                 retainAdded( file, resName + "/" );
             }
 
-            if ( !addedResources.contains( resName ) && !file.delete() )
+            if ( !states.isAdded( resName ) && !file.delete() )
             {
                 throw new TransferFailedException( "failed to delete: " + file );
             }
         }
     }
 
-    private void createCacheDir()
+    private void createCacheDir( Repository source )
+        throws ConnectionException
+    {
+        awaitCommitQuietly();
+        awaitRepositoryCommits( source );
+        createCacheDir0();
+        if ( asyncDelete )
+        {
+            // the tombstones left by an exited JVM, of cache directories and of get/ in an explicit one
+            File parent = cacheDir.getAbsoluteFile().getParentFile();
+            if ( parent != null )
+            {
+                CacheReaper.sweep( parent );
+            }
+            CacheReaper.sweep( cacheDir );
+        }
+        downloadDir = new File( cacheDir, "get" );
+        stagingDir = new File( cacheDir, "put" );
+    }
+
+    private void createCacheDir0()
         throws ConnectionException
     {
         if ( connected )
@@ -792,15 +2521,23 @@ private void createCacheDir()
             }
             while ( cacheDir.exists() );
         }
-        else if ( cacheDir.mkdir() )
+        else if ( cacheDir.mkdir() || commitJournal && CommitJournal.getFile( cacheDir ).isFile() )
         {
+            // the staged files of an unfinished commit are sorted out when the repository URL is known
             return;
         }
         else
         {
             try
             {
-                FileUtils.cleanDirectory( cacheDir );
+                if ( asyncDelete )
+                {
+                    CacheReaper.clean( cacheDir );
+                }
+                else
+                {
+                    FileUtils.cleanDirectory( cacheDir );
+                }
                 return;
             }
             catch ( IOException e )
@@ -907,7 +2644,10 @@ public File getCacheDir()
     }
 
     /**
+     * Stage the resources in a fixed directory instead of a temporary one.
+     *
      * @param cacheDir the cache directory.
+     * @see #setCommitJournal(boolean)
      */
     public void setCacheDir( File cacheDir )
     {
@@ -919,13 +2659,493 @@ public void setCacheDir( File cacheDir )
         this.cacheDir = cacheDir;
     }
 
+    /**
+     * @return true if failed commits are resumed from a journal in the cache directory.
+     */
+    public boolean isCommitJournal()
+    {
+        return commitJournal;
+    }
+
+    /**
+     * Keep a journal of the staged resources and of the commit progress in the explicit cache directory, so that a
+     * reconnect of this wagon or a later session can resume a failed commit. The memory budget for staged resources
+     * is then ignored, because they must survive a crash.
+     *
+     * @param commitJournal true to keep the journal, default false. Ignored without an explicit cache directory.
+     */
+    public void setCommitJournal( boolean commitJournal )
+    {
+        if ( connected )
+        {
+            throw new IllegalStateException( "already connected" );
+        }
+        this.commitJournal = commitJournal;
+    }
+
+    /**
+     * @return the source of additional underlying wagons or null.
+     */
+    public WagonLookup getWagonLookup()
+    {
+        return wagonLookup;
+    }
+
+    /**
+     * @param wagonLookup the source of additional underlying wagons, needed for parallel commits.
+     */
+    public void setWagonLookup( WagonLookup wagonLookup )
+    {
+        this.wagonLookup = wagonLookup;
+    }
+
+    /**
+     * @return the number of underlying wagons that commit in parallel.
+     */
+    public int getCommitThreads()
+    {
+        return commitThreads;
+    }
+
+    /**
+     * Commit with several underlying wagons at once. Only used when the underlying wagon does not support directory
+     * copy and a {@link WagonLookup} is set. Each file is then a commit of its own, so a failure leaves the files
+     * committed so far in the repository; the commit journal, when enabled, lets the next session commit the rest.
+     *
+     * @param commitThreads the number of underlying wagons that commit in parallel, 1 to commit serially.
+     */
+    public void setCommitThreads( int commitThreads )
+    {
+        if ( commitThreads < 1 )
+        {
+            throw new IllegalArgumentException( "commitThreads < 1" );
+        }
+        this.commitThreads = commitThreads;
+    }
+
+    /**
+     * @return the maximum number of disjoint subtrees committed separately.
+     */
+    public int getMaxCommitSubtrees()
+    {
+        return maxCommitSubtrees;
+    }
+
+    /**
+     * Added resources scattered across the repository are committed as several disjoint subtrees instead of their
+     * common parent directory. Each subtree is a separate commit, so a failure leaves the earlier ones in the
+     * repository.
+     *
+     * @param maxCommitSubtrees the maximum number of disjoint subtrees committed separately, default 1 to commit the
+     *            common parent directory at once.
+     */
+    public void setMaxCommitSubtrees( int maxCommitSubtrees )
+    {
+        if ( maxCommitSubtrees < 1 )
+        {
+            throw new IllegalArgumentException( "maxCommitSubtrees < 1" );
+        }
+        this.maxCommitSubtrees = maxCommitSubtrees;
+    }
+
+    /**
+     * @return the quiet interval after which a directory is flushed, in milliseconds.
+     */
+    public long getFlushQuietMillis()
+    {
+        return flushQuietMillis;
+    }
+
+    /**
+     * Enables the write-behind mode: staged resources are uploaded on a background thread before disconnect(), one
+     * directory at a time. Meant for underlying wagons where atomicity per directory is good enough. The uploaded
+     * content is still served locally. A failed flush leaves the resources staged for the commit.
+     *
+     * @param flushQuietMillis flush a directory when nothing was staged in it for this long, 0 to never flush on
+     *            quiet.
+     */
+    public void setFlushQuietMillis( long flushQuietMillis )
+    {
+        if ( flushQuietMillis < 0 )
+        {
+            throw new IllegalArgumentException( "flushQuietMillis < 0" );
+        }
+        this.flushQuietMillis = flushQuietMillis;
+    }
+
+    /**
+     * @return the total length staged in a directory that triggers its flush.
+     */
+    public long getFlushMaxBytes()
+    {
+        return flushMaxBytes;
+    }
+
+    /**
+     * Like {@link #setFlushQuietMillis(long)}, but flushes a directory as soon as enough is staged in it.
+     *
+     * @param flushMaxBytes flush a directory when this many bytes are staged in it, 0 to never flush on size.
+     */
+    public void setFlushMaxBytes( long flushMaxBytes )
+    {
+        if ( flushMaxBytes < 0 )
+        {
+            throw new IllegalArgumentException( "flushMaxBytes < 0" );
+        }
+        this.flushMaxBytes = flushMaxBytes;
+    }
+
+    /**
+     * @return the remote directory listed recursively at connect or null.
+     */
+    public String getSnapshotDirectory()
+    {
+        return snapshotDirectory;
+    }
+
+    /**
+     * Enables the snapshot mode: connect() lists the remote directory recursively and indexes everything in it, so
+     * that later existence checks and listings under it are answered without remote calls. Meant for deployments that
+     * probe many version directories.
+     *
+     * @param snapshotDirectory the remote directory, "" for the whole repository, null to disable.
+     */
+    public void setSnapshotDirectory( String snapshotDirectory )
+    {
+        this.snapshotDirectory = snapshotDirectory;
+    }
+
+    /**
+     * @return the maximum number of parallel listings of the snapshot.
+     */
+    public int getSnapshotThreads()
+    {
+        return snapshotThreads;
+    }
+
+    /**
+     * The workers other than the first need a wagon lookup, see {@link #setWagonLookup(WagonLookup)}.
+     *
+     * @param snapshotThreads the maximum number of parallel listings of the snapshot, default 4.
+     */
+    public void setSnapshotThreads( int snapshotThreads )
+    {
+        if ( snapshotThreads < 1 )
+        {
+            throw new IllegalArgumentException( "snapshotThreads < 1" );
+        }
+        this.snapshotThreads = snapshotThreads;
+    }
+
+    /**
+     * @return the maximum number of files committed with one putDirectory().
+     */
+    public int getCommitBatchMaxFiles()
+    {
+        return commitBatchMaxFiles;
+    }
+
+    /**
+     * Large subtrees are committed in several batches, one after another. After each batch the journal records the
+     * committed files, so a failed commit resumes from the first unfinished batch.
+     *
+     * @param commitBatchMaxFiles the maximum number of files committed with one putDirectory(), 0 for no limit.
+     */
+    public void setCommitBatchMaxFiles( int commitBatchMaxFiles )
+    {
+        if ( commitBatchMaxFiles < 0 )
+        {
+            throw new IllegalArgumentException( "commitBatchMaxFiles < 0" );
+        }
+        this.commitBatchMaxFiles = commitBatchMaxFiles;
+    }
+
+    /**
+     * @return the maximum total length of the files committed with one putDirectory().
+     */
+    public long getCommitBatchMaxBytes()
+    {
+        return commitBatchMaxBytes;
+    }
+
+    /**
+     * Like {@link #setCommitBatchMaxFiles(int)}, but limits the batches by their total length. A file larger than the
+     * limit is committed in a batch of its own.
+     *
+     * @param commitBatchMaxBytes the maximum total length of the files committed with one putDirectory(), 0 for no
+     *            limit.
+     */
+    public void setCommitBatchMaxBytes( long commitBatchMaxBytes )
+    {
+        if ( commitBatchMaxBytes < 0 )
+        {
+            throw new IllegalArgumentException( "commitBatchMaxBytes < 0" );
+        }
+        this.commitBatchMaxBytes = commitBatchMaxBytes;
+    }
+
+    /**
+     * @return the directory that keeps the remote timestamps and missing resources between sessions or null.
+     */
+    public File getMetadataCacheDir()
+    {
+        return metadataCacheDir;
+    }
+
+    /**
+     * Keep what was learned about the remote timestamps and missing resources between sessions, in one file per
+     * repository URL. A file is discarded after a failed commit.
+     *
+     * @param metadataCacheDir the directory, null to disable.
+     */
+    public void setMetadataCacheDir( File metadataCacheDir )
+    {
+        this.metadataCacheDir = metadataCacheDir;
+    }
+
+    /**
+     * @return how long in milliseconds a fact from the metadata cache is trusted.
+     */
+    public long getMetadataCacheTtl()
+    {
+        return metadataCacheTtl;
+    }
+
+    /**
+     * @param metadataCacheTtl how long in milliseconds a fact from the metadata cache is trusted, default 10
+     *            minutes.
+     */
+    public void setMetadataCacheTtl( long metadataCacheTtl )
+    {
+        this.metadataCacheTtl = metadataCacheTtl;
+    }
+
+    /**
+     * @return the directory of downloaded resources kept between sessions or null.
+     */
+    public File getContentCacheDir()
+    {
+        return contentCacheDir;
+    }
+
+    /**
+     * Keep downloaded resources with their remote timestamps between sessions. A cached resource is served without a
+     * download when the timestamp bounds prove it current or when the remote reports it unchanged.
+     *
+     * @param contentCacheDir the directory, null to disable.
+     */
+    public void setContentCacheDir( File contentCacheDir )
+    {
+        this.contentCacheDir = contentCacheDir;
+    }
+
+    /**
+     * @return the size limit of the content cache of each repository.
+     */
+    public long getContentCacheMaxBytes()
+    {
+        return contentCacheMaxBytes;
+    }
+
+    /**
+     * @param contentCacheMaxBytes the size limit of the content cache of each repository, default 256 MiB.
+     */
+    public void setContentCacheMaxBytes( long contentCacheMaxBytes )
+    {
+        this.contentCacheMaxBytes = contentCacheMaxBytes;
+    }
+
+    /**
+     * @return true if files are delivered and staged as hard links when possible.
+     */
+    public boolean isLinkFiles()
+    {
+        return linkFiles;
+    }
+
+    /**
+     * Deliver cached files to get() destinations and stage put() sources as hard links when possible instead of
+     * copies. Only safe when no caller modifies a file in place after the transfer; Maven does so with the metadata
+     * it downloads into the local repository.
+     *
+     * @param linkFiles true to link, default false.
+     */
+    public void setLinkFiles( boolean linkFiles )
+    {
+        this.linkFiles = linkFiles;
+    }
+
+    /**
+     * Digest of a resource staged in this session. SHA-1 and MD5 are computed while staging, other algorithms when
+     * first asked.
+     *
+     * @param resourceNameArg the resource name
+     * @param algorithm the JCA algorithm name, like "SHA-1"
+     * @return lowercase hex or null if the resource is not staged
+     * @throws TransferFailedException when unable to read the staged resource
+     */
+    public String getStagedDigest( String resourceNameArg, String algorithm )
+        throws TransferFailedException
+    {
+        String resourceName = canonRes( resourceNameArg );
+        Lock lock = sessionLock.readLock();
+        lock.lock();
+        try
+        {
+            synchronized ( resourceLock( resourceName ) )
+            {
+                if ( stagingStorage == null || !stagingStorage.contains( resourceName ) )
+                {
+                    return null;
+                }
+                return stagedDigest( resourceName, algorithm );
+            }
+        }
+        catch ( IOException e )
+        {
+            throw new TransferFailedException( "Failure reading " + resourceName, e );
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the warm-up hook or null.
+     */
+    public CommitWarmer getCommitWarmer()
+    {
+        return commitWarmer;
+    }
+
+    /**
+     * Prepare the commit in the background once the common directory of the staged resources is stable.
+     *
+     * @param commitWarmer the warm-up hook, default null to disable, see {@link ListingWarmer}.
+     */
+    public void setCommitWarmer( CommitWarmer commitWarmer )
+    {
+        this.commitWarmer = commitWarmer;
+    }
+
+    /**
+     * @return true if disconnect() commits in the background.
+     */
+    public boolean isAsyncCommit()
+    {
+        return asyncCommit;
+    }
+
+    /**
+     * Let disconnect() return as soon as the transfers in progress finish and commit on a background thread. The
+     * commit is awaited by {@link #awaitCommit()}, {@link #validateCleanRelease()} and the next connect() of this
+     * wagon; the next connect() of any delayed wagon to the same repository waits for it too. A disconnect() while
+     * the commit is pending does nothing and puts are refused until it finishes.
+     *
+     * @param asyncCommit true to commit in the background, default false.
+     */
+    public void setAsyncCommit( boolean asyncCommit )
+    {
+        this.asyncCommit = asyncCommit;
+    }
+
+    /**
+     * @return true if old cache directories are deleted in the background.
+     */
+    public boolean isAsyncDelete()
+    {
+        return asyncDelete;
+    }
+
+    /**
+     * Rename the cache directory to a tombstone and delete it on a background thread, instead of deleting it
+     * synchronously in connect() and disconnect().
+     *
+     * @param asyncDelete true to delete in the background, default false.
+     */
+    public void setAsyncDelete( boolean asyncDelete )
+    {
+        this.asyncDelete = asyncDelete;
+    }
+
+    /**
+     * @return the size limit of the staged resources compared with a downloaded remote copy.
+     */
+    public long getDedupMaxBytes()
+    {
+        return dedupMaxBytes;
+    }
+
+    /**
+     * Before the commit, drop the staged resources identical to the remote content they replace. The content
+     * downloaded in this session is compared at no cost. For other resources known to exist, the remote SHA-1
+     * checksum file is downloaded instead when it is known to exist, else the content when it is not larger than this
+     * limit. The downloads run at the start of the commit, through the commit workers, so fetching content only pays
+     * off when the skipped uploads cost more than the downloads, e.g. for a commit per file.
+     *
+     * @param dedupMaxBytes the limit in bytes, default 0 to upload everything.
+     */
+    public void setDedupMaxBytes( long dedupMaxBytes )
+    {
+        this.dedupMaxBytes = dedupMaxBytes;
+    }
+
+    /**
+     * @return the memory budget for staged resources.
+     */
+    public long getStagingMemoryBudget()
+    {
+        return stagingMemoryBudget;
+    }
+
+    /**
+     * Stage put() resources up to 1 MiB in heap buffers until their total size reaches the budget. The rest is
+     * staged as files in the cache directory. Only used when the underlying wagon is a {@link StreamingWagon} without
+     * directory copy, so that the commit streams the buffers instead of writing them to files.
+     *
+     * @param stagingMemoryBudget the budget in bytes, default 0 to always stage files.
+     */
+    public void setStagingMemoryBudget( long stagingMemoryBudget )
+    {
+        this.stagingMemoryBudget = stagingMemoryBudget;
+    }
+
+    /**
+     * @return the metrics this wagon updates.
+     */
+    public DelayedWagonMetrics getMetrics()
+    {
+        return metrics();
+    }
+
+    private DelayedWagonMetrics metrics()
+    {
+        DelayedWagonMetrics m = metrics;
+        if ( m == null )
+        {
+            m = DelayedWagonMetrics.getDefault();
+            metrics = m;
+        }
+        return m;
+    }
+
+    /**
+     * @param metrics the metrics this wagon updates, default {@link DelayedWagonMetrics#getDefault()}.
+     */
+    public void setMetrics( DelayedWagonMetrics metrics )
+    {
+        this.metrics = metrics;
+    }
+
     /**
      * @throws IllegalStateException when some uncommitted resources remain.
      */
     public void validateCleanRelease()
         throws IllegalStateException
     {
-        if ( addedResources.size() != 0 )
+        awaitCommitQuietly();
+        if ( states.getAddedCount() != 0 )
         {
             throw new IllegalStateException( "Unclean release of delayed wagon", commitException );
         }
@@ -0,0 +1,303 @@
+package org.apache.maven.wagon.providers.delayed;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters of the remote calls avoided by delayed wagons and timings of the disconnect phases.
+ * <p>
+ * All delayed wagons share the {@link #getDefault() default instance}, created on first use and registered as the
+ * MBean {@value #OBJECT_NAME}. Set the system property <code>wagon.delayed.metricsRegistry</code> to the class name of
+ * a {@link MetricsRegistry} to receive every update; a class that cannot be instantiated is ignored, metrics never
+ * fail a deployment.
+ * <p>
+ * Thread-safe.
+ */
+public class DelayedWagonMetrics
+    implements DelayedWagonMetricsMBean
+{
+    /**
+     * the JMX name of the default instance
+     */
+    public static final String OBJECT_NAME = "org.apache.maven.wagon.providers.delayed:type=DelayedWagonMetrics";
+
+    static final int GET_HITS = 0;
+
+    static final int GET_MISSES = 1;
+
+    static final int EXISTS_HITS = 2;
+
+    static final int EXISTS_MISSES = 3;
+
+    static final int LIST_HITS = 4;
+
+    static final int LIST_MISSES = 5;
+
+    static final int STAMP_BOUND_HITS = 6;
+
+    static final int NEGATIVE_HITS = 7;
+
+    static final int STAGED_BYTES = 8;
+
+    static final int STAGED_FILES = 9;
+
+    /**
+     * counter names passed to {@link MetricsRegistry#count(String, long)}
+     */
+    static final String[] COUNTERS = { "get.hits", "get.misses", "resourceExists.hits",
+        "resourceExists.misses", "getFileList.hits", "getFileList.misses", "stampBound.hits", "negative.hits",
+        "staged.bytes", "staged.files" };
+
+    static final int RETAIN_ADDED = 0;
+
+    static final int PREPARE = 1;
+
+    static final int COMMIT = 2;
+
+    static final int DELETE_CACHE = 3;
+
+    /**
+     * phase names passed to {@link MetricsRegistry#time(String, long)}
+     */
+    static final String[] PHASES = { "retainAdded", "prepare", "commit", "deleteCache" };
+
+    private static DelayedWagonMetrics defaultMetrics;
+
+    private final AtomicLongArray counters = new AtomicLongArray( COUNTERS.length );
+
+    private final AtomicLongArray phaseNanos = new AtomicLongArray( PHASES.length );
+
+    private final AtomicLong commits = new AtomicLong();
+
+    private volatile MetricsRegistry registry;
+
+    /**
+     * @return the instance shared by the delayed wagons of this class loader
+     */
+    public static synchronized DelayedWagonMetrics getDefault()
+    {
+        if ( defaultMetrics == null )
+        {
+            DelayedWagonMetrics metrics = new DelayedWagonMetrics();
+            metrics.setRegistry( newRegistry( System.getProperty( "wagon.delayed.metricsRegistry" ) ) );
+            try
+            {
+                ManagementFactory.getPlatformMBeanServer().registerMBean( metrics, new ObjectName( OBJECT_NAME ) );
+            }
+            catch ( JMException e )
+            {
+                // already registered by another class loader, the metrics are still available to the registry
+            }
+            defaultMetrics = metrics;
+        }
+        return defaultMetrics;
+    }
+
+    /**
+     * @param registryClass the class name of a {@link MetricsRegistry} or null
+     * @return a new instance, null when the class name is null or the class cannot be instantiated
+     */
+    static MetricsRegistry newRegistry( String registryClass )
+    {
+        if ( registryClass == null )
+        {
+            return null;
+        }
+        try
+        {
+            return (MetricsRegistry) Class.forName( registryClass, true, DelayedWagonMetrics.class.getClassLoader() )
+                .getDeclaredConstructor().newInstance();
+        }
+        catch ( Exception e )
+        {
+            return null;
+        }
+        catch ( LinkageError e )
+        {
+            return null;
+        }
+    }
+
+    /**
+     * @return the registry that receives the updates or null
+     */
+    public MetricsRegistry getRegistry()
+    {
+        return registry;
+    }
+
+    /**
+     * @param registry the registry that receives the updates, null for none
+     */
+    public void setRegistry( MetricsRegistry registry )
+    {
+        this.registry = registry;
+    }
+
+    void count( int counter )
+    {
+        count( counter, 1 );
+    }
+
+    void count( int counter, long delta )
+    {
+        counters.addAndGet( counter, delta );
+        MetricsRegistry r = registry;
+        if ( r != null )
+        {
+            r.count( COUNTERS[counter], delta );
+        }
+    }
+
+    /**
+     * @param phase the phase that ended
+     * @param startNanos {@link System#nanoTime()} at the start of the phase
+     */
+    void time( int phase, long startNanos )
+    {
+        long nanos = System.nanoTime() - startNanos;
+        phaseNanos.addAndGet( phase, nanos );
+        if ( phase == COMMIT )
+        {
+            commits.incrementAndGet();
+        }
+        MetricsRegistry r = registry;
+        if ( r != null )
+        {
+            r.time( PHASES[phase], nanos );
+        }
+    }
+
+    private long millis( int phase )
+    {
+        return TimeUnit.NANOSECONDS.toMillis( phaseNanos.get( phase ) );
+    }
+
+    @Override
+    public long getGetHits()
+    {
+        return counters.get( GET_HITS );
+    }
+
+    @Override
+    public long getGetMisses()
+    {
+        return counters.get( GET_MISSES );
+    }
+
+    @Override
+    public long getResourceExistsHits()
+    {
+        return counters.get( EXISTS_HITS );
+    }
+
+    @Override
+    public long getResourceExistsMisses()
+    {
+        return counters.get( EXISTS_MISSES );
+    }
+
+    @Override
+    public long getFileListHits()
+    {
+        return counters.get( LIST_HITS );
+    }
+
+    @Override
+    public long getFileListMisses()
+    {
+        return counters.get( LIST_MISSES );
+    }
+
+    @Override
+    public long getStampBoundHits()
+    {
+        return counters.get( STAMP_BOUND_HITS );
+    }
+
+    @Override
+    public long getNegativeHits()
+    {
+        return counters.get( NEGATIVE_HITS );
+    }
+
+    @Override
+    public long getStagedBytes()
+    {
+        return counters.get( STAGED_BYTES );
+    }
+
+    @Override
+    public long getStagedFiles()
+    {
+        return counters.get( STAGED_FILES );
+    }
+
+    @Override
+    public long getRetainAddedMillis()
+    {
+        return millis( RETAIN_ADDED );
+    }
+
+    @Override
+    public long getPrepareMillis()
+    {
+        return millis( PREPARE );
+    }
+
+    @Override
+    public long getCommitMillis()
+    {
+        return millis( COMMIT );
+    }
+
+    @Override
+    public long getDeleteCacheMillis()
+    {
+        return millis( DELETE_CACHE );
+    }
+
+    @Override
+    public long getCommits()
+    {
+        return commits.get();
+    }
+
+    @Override
+    public void reset()
+    {
+        for ( int i = 0; i < COUNTERS.length; i++ )
+        {
+            counters.set( i, 0 );
+        }
+        for ( int i = 0; i < PHASES.length; i++ )
+        {
+            phaseNanos.set( i, 0 );
+        }
+        commits.set( 0 );
+    }
+}
@@ -0,0 +1,80 @@
+package org.apache.maven.wagon.providers.delayed;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+/**
+ * Management interface of {@link DelayedWagonMetrics}. A hit is a call answered without a round trip, a miss is a
+ * round trip made for a call.
+ */
+public interface DelayedWagonMetricsMBean
+{
+    long getGetHits();
+
+    long getGetMisses();
+
+    long getResourceExistsHits();
+
+    long getResourceExistsMisses();
+
+    long getFileListHits();
+
+    long getFileListMisses();
+
+    /**
+     * @return the get() calls answered from the known bounds of the remote timestamp, a subset of the get hits
+     */
+    long getStampBoundHits();
+
+    /**
+     * @return the calls answered from the known missing resources, a subset of the hits
+     */
+    long getNegativeHits();
+
+    long getStagedBytes();
+
+    long getStagedFiles();
+
+    /**
+     * @return the total time spent deleting the stale files of a resumed session at connect
+     */
+    long getRetainAddedMillis();
+
+    /**
+     * @return the total time spent before the commit, dropping unchanged resources and writing out staged buffers
+     */
+    long getPrepareMillis();
+
+    /**
+     * @return the total time spent uploading the staged resources
+     */
+    long getCommitMillis();
+
+    long getDeleteCacheMillis();
+
+    /**
+     * @return the number of completed commits
+     */
+    long getCommits();
+
+    /**
+     * Set all counters to zero.
+     */
+    void reset();
+}
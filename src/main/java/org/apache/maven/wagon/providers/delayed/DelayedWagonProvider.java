@@ -19,13 +19,19 @@
  * under the License.
  */
 
+import java.io.File;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 
+import org.apache.maven.wagon.ConnectionException;
 import org.apache.maven.wagon.Wagon;
 import org.codehaus.plexus.PlexusContainer;
 import org.codehaus.plexus.component.annotations.Component;
+import org.codehaus.plexus.personality.plexus.lifecycle.phase.Disposable;
 import org.eclipse.aether.internal.transport.wagon.PlexusWagonProvider;
 import org.eclipse.aether.transport.wagon.WagonProvider;
 
@@ -35,6 +41,7 @@
 @Component( role = WagonProvider.class, hint = "plexus" )
 public class DelayedWagonProvider
     extends PlexusWagonProvider
+    implements Disposable
 {
     private final Set<String> protocolsToWrap = Collections.synchronizedSet( new HashSet<String>() );
 
@@ -42,6 +49,76 @@
         protocolsToWrap.add( "scm" );
     }
 
+    private int commitThreads = Integer.getInteger( "wagon.delayed.commitThreads", 1 );
+
+    private int commitBatchMaxFiles = Integer.getInteger( "wagon.delayed.commitBatchMaxFiles", 0 );
+
+    private long commitBatchMaxBytes = Long.getLong( "wagon.delayed.commitBatchMaxBytes", 0 );
+
+    private long flushQuietMillis = Long.getLong( "wagon.delayed.flushQuietMillis", 0 );
+
+    private long flushMaxBytes = Long.getLong( "wagon.delayed.flushMaxBytes", 0 );
+
+    private String snapshotDirectory = System.getProperty( "wagon.delayed.snapshotDirectory" );
+
+    private int snapshotThreads = Integer.getInteger( "wagon.delayed.snapshotThreads", 4 );
+
+    private File metadataCacheDir = fileProperty( "wagon.delayed.metadataCacheDir" );
+
+    private File contentCacheDir = fileProperty( "wagon.delayed.contentCacheDir" );
+
+    private boolean linkFiles = Boolean.getBoolean( "wagon.delayed.linkFiles" );
+
+    private long stagingMemoryBudget = Long.getLong( "wagon.delayed.stagingMemoryBudget", 0 );
+
+    private long dedupMaxBytes = Long.getLong( "wagon.delayed.dedupMaxBytes", 0 );
+
+    private boolean asyncDelete = Boolean.getBoolean( "wagon.delayed.asyncDelete" );
+
+    private boolean asyncCommit = Boolean.getBoolean( "wagon.delayed.asyncCommit" );
+
+    private CommitWarmer commitWarmer = Boolean.getBoolean( "wagon.delayed.warmup" ) ? new ListingWarmer() : null;
+
+    /**
+     * null for the default metrics, created by the first delayed wagon that uses them
+     */
+    private DelayedWagonMetrics metrics;
+
+    private boolean shareSessions = Boolean.getBoolean( "wagon.delayed.shareSessions" );
+
+    private boolean commitOnLastRelease = Boolean.getBoolean( "wagon.delayed.commitOnLastRelease" );
+
+    /**
+     * delayed wagons released while their asynchronous commit runs, their underlying wagons stay out of the container
+     */
+    private final List<DelayedWagon> committing = new ArrayList<DelayedWagon>();
+
+    private final List<ConnectionException> commitFailures = new ArrayList<ConnectionException>();
+
+    private final SharedSessions sharedSessions = new SharedSessions()
+    {
+        @Override
+        DelayedWagon newSessionWagon( String roleHint )
+            throws Exception
+        {
+            Wagon wagon = DelayedWagonProvider.super.lookup( roleHint );
+            return wagon == null ? null : newDelayedWagon( wagon, roleHint );
+        }
+
+        @Override
+        void releaseSessionWagon( DelayedWagon wagon )
+        {
+            // not release( wagon ), its validateCleanRelease() would hide the commit failure
+            DelayedWagonProvider.super.release( wagon.getWagon() );
+        }
+
+        @Override
+        boolean isCommitOnLastRelease()
+        {
+            return commitOnLastRelease;
+        }
+    };
+
     /**
      * Get wagon protocols to wrap
      * 
@@ -52,6 +129,468 @@ public Set<String> getProtocolsToWrap()
         return protocolsToWrap;
     }
 
+    /**
+     * @return the number of parallel commit workers of new delayed wagons.
+     */
+    public int getCommitThreads()
+    {
+        return commitThreads;
+    }
+
+    /**
+     * Defaults to the system property <code>wagon.delayed.commitThreads</code> or 1.
+     *
+     * @param commitThreads the number of parallel commit workers of new delayed wagons.
+     * @see DelayedWagon#setCommitThreads(int)
+     */
+    public void setCommitThreads( int commitThreads )
+    {
+        this.commitThreads = commitThreads;
+    }
+
+    /**
+     * @return the maximum number of files in a commit batch of new delayed wagons.
+     */
+    public int getCommitBatchMaxFiles()
+    {
+        return commitBatchMaxFiles;
+    }
+
+    /**
+     * Defaults to the system property <code>wagon.delayed.commitBatchMaxFiles</code> or 0.
+     *
+     * @param commitBatchMaxFiles the maximum number of files in a commit batch of new delayed wagons, 0 for no limit.
+     * @see DelayedWagon#setCommitBatchMaxFiles(int)
+     */
+    public void setCommitBatchMaxFiles( int commitBatchMaxFiles )
+    {
+        this.commitBatchMaxFiles = commitBatchMaxFiles;
+    }
+
+    /**
+     * @return the maximum total length of a commit batch of new delayed wagons.
+     */
+    public long getCommitBatchMaxBytes()
+    {
+        return commitBatchMaxBytes;
+    }
+
+    /**
+     * Defaults to the system property <code>wagon.delayed.commitBatchMaxBytes</code> or 0.
+     *
+     * @param commitBatchMaxBytes the maximum total length of a commit batch of new delayed wagons, 0 for no limit.
+     * @see DelayedWagon#setCommitBatchMaxBytes(long)
+     */
+    public void setCommitBatchMaxBytes( long commitBatchMaxBytes )
+    {
+        this.commitBatchMaxBytes = commitBatchMaxBytes;
+    }
+
+    /**
+     * @return the write-behind quiet interval of new delayed wagons.
+     */
+    public long getFlushQuietMillis()
+    {
+        return flushQuietMillis;
+    }
+
+    /**
+     * Defaults to the system property <code>wagon.delayed.flushQuietMillis</code> or 0.
+     *
+     * @param flushQuietMillis the write-behind quiet interval of new delayed wagons, 0 to disable.
+     * @see DelayedWagon#setFlushQuietMillis(long)
+     */
+    public void setFlushQuietMillis( long flushQuietMillis )
+    {
+        this.flushQuietMillis = flushQuietMillis;
+    }
+
+    /**
+     * @return the write-behind size threshold of new delayed wagons.
+     */
+    public long getFlushMaxBytes()
+    {
+        return flushMaxBytes;
+    }
+
+    /**
+     * Defaults to the system property <code>wagon.delayed.flushMaxBytes</code> or 0.
+     *
+     * @param flushMaxBytes the write-behind size threshold of new delayed wagons, 0 to disable.
+     * @see DelayedWagon#setFlushMaxBytes(long)
+     */
+    public void setFlushMaxBytes( long flushMaxBytes )
+    {
+        this.flushMaxBytes = flushMaxBytes;
+    }
+
+    /**
+     * @return the remote directory listed at connect by new delayed wagons or null.
+     */
+    public String getSnapshotDirectory()
+    {
+        return snapshotDirectory;
+    }
+
+    /**
+     * Defaults to the system property <code>wagon.delayed.snapshotDirectory</code>.
+     *
+     * @param snapshotDirectory the remote directory listed at connect by new delayed wagons or null.
+     * @see DelayedWagon#setSnapshotDirectory(String)
+     */
+    public void setSnapshotDirectory( String snapshotDirectory )
+    {
+        this.snapshotDirectory = snapshotDirectory;
+    }
+
+    /**
+     * @return the number of parallel snapshot listings of new delayed wagons.
+     */
+    public int getSnapshotThreads()
+    {
+        return snapshotThreads;
+    }
+
+    /**
+     * Defaults to the system property <code>wagon.delayed.snapshotThreads</code> or 4.
+     *
+     * @param snapshotThreads the number of parallel snapshot listings of new delayed wagons.
+     * @see DelayedWagon#setSnapshotThreads(int)
+     */
+    public void setSnapshotThreads( int snapshotThreads )
+    {
+        this.snapshotThreads = snapshotThreads;
+    }
+
+    /**
+     * @return the metadata cache directory of new delayed wagons or null.
+     */
+    public File getMetadataCacheDir()
+    {
+        return metadataCacheDir;
+    }
+
+    /**
+     * Defaults to the system property <code>wagon.delayed.metadataCacheDir</code>.
+     *
+     * @param metadataCacheDir the metadata cache directory of new delayed wagons, null to disable.
+     * @see DelayedWagon#setMetadataCacheDir(File)
+     */
+    public void setMetadataCacheDir( File metadataCacheDir )
+    {
+        this.metadataCacheDir = metadataCacheDir;
+    }
+
+    /**
+     * @return the content cache directory of new delayed wagons or null.
+     */
+    public File getContentCacheDir()
+    {
+        return contentCacheDir;
+    }
+
+    /**
+     * Defaults to the system property <code>wagon.delayed.contentCacheDir</code>.
+     *
+     * @param contentCacheDir the content cache directory of new delayed wagons, null to disable.
+     * @see DelayedWagon#setContentCacheDir(File)
+     */
+    public void setContentCacheDir( File contentCacheDir )
+    {
+        this.contentCacheDir = contentCacheDir;
+    }
+
+    /**
+     * @return true if new delayed wagons use hard links when possible.
+     */
+    public boolean isLinkFiles()
+    {
+        return linkFiles;
+    }
+
+    /**
+     * Defaults to the system property <code>wagon.delayed.linkFiles</code> or false.
+     *
+     * @param linkFiles true if new delayed wagons use hard links when possible.
+     * @see DelayedWagon#setLinkFiles(boolean)
+     */
+    public void setLinkFiles( boolean linkFiles )
+    {
+        this.linkFiles = linkFiles;
+    }
+
+    /**
+     * @return the memory budget for staged resources of new delayed wagons.
+     */
+    public long getStagingMemoryBudget()
+    {
+        return stagingMemoryBudget;
+    }
+
+    /**
+     * Defaults to the system property <code>wagon.delayed.stagingMemoryBudget</code> or 0.
+     *
+     * @param stagingMemoryBudget the memory budget in bytes for staged resources of new delayed wagons.
+     * @see DelayedWagon#setStagingMemoryBudget(long)
+     */
+    public void setStagingMemoryBudget( long stagingMemoryBudget )
+    {
+        this.stagingMemoryBudget = stagingMemoryBudget;
+    }
+
+    /**
+     * @return the size limit of the staged resources of new delayed wagons compared with a downloaded remote copy.
+     */
+    public long getDedupMaxBytes()
+    {
+        return dedupMaxBytes;
+    }
+
+    /**
+     * Defaults to the system property <code>wagon.delayed.dedupMaxBytes</code> or 0.
+     *
+     * @param dedupMaxBytes the limit in bytes, 0 to upload everything.
+     * @see DelayedWagon#setDedupMaxBytes(long)
+     */
+    public void setDedupMaxBytes( long dedupMaxBytes )
+    {
+        this.dedupMaxBytes = dedupMaxBytes;
+    }
+
+    /**
+     * @return true if new delayed wagons delete old cache directories in the background.
+     */
+    public boolean isAsyncDelete()
+    {
+        return asyncDelete;
+    }
+
+    /**
+     * Defaults to the system property <code>wagon.delayed.asyncDelete</code> or false.
+     *
+     * @param asyncDelete true to delete in the background.
+     * @see DelayedWagon#setAsyncDelete(boolean)
+     */
+    public void setAsyncDelete( boolean asyncDelete )
+    {
+        this.asyncDelete = asyncDelete;
+    }
+
+    /**
+     * @return true if new delayed wagons commit in the background.
+     */
+    public boolean isAsyncCommit()
+    {
+        return asyncCommit;
+    }
+
+    /**
+     * Defaults to the system property <code>wagon.delayed.asyncCommit</code> or false. A released wagon keeps its
+     * underlying wagon until the commit finishes; the commit is awaited by the next connect to the same repository
+     * and by {@link #awaitCommits()}.
+     *
+     * @param asyncCommit true to commit in the background.
+     * @see DelayedWagon#setAsyncCommit(boolean)
+     */
+    public void setAsyncCommit( boolean asyncCommit )
+    {
+        this.asyncCommit = asyncCommit;
+    }
+
+    /**
+     * @return the warm-up hook of new delayed wagons or null.
+     */
+    public CommitWarmer getCommitWarmer()
+    {
+        return commitWarmer;
+    }
+
+    /**
+     * Defaults to a {@link ListingWarmer} if the system property <code>wagon.delayed.warmup</code> is true, otherwise
+     * null.
+     *
+     * @param commitWarmer the warm-up hook of new delayed wagons, null to disable.
+     * @see DelayedWagon#setCommitWarmer(CommitWarmer)
+     */
+    public void setCommitWarmer( CommitWarmer commitWarmer )
+    {
+        this.commitWarmer = commitWarmer;
+    }
+
+    /**
+     * @return the metrics new delayed wagons update.
+     */
+    public DelayedWagonMetrics getMetrics()
+    {
+        return metrics != null ? metrics : DelayedWagonMetrics.getDefault();
+    }
+
+    /**
+     * @param metrics the metrics new delayed wagons update, default {@link DelayedWagonMetrics#getDefault()}.
+     * @see DelayedWagon#setMetrics(DelayedWagonMetrics)
+     */
+    public void setMetrics( DelayedWagonMetrics metrics )
+    {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return true if the wrapped protocols share one delayed session per repository and credentials.
+     */
+    public boolean isShareSessions()
+    {
+        return shareSessions;
+    }
+
+    /**
+     * Share one delayed session per repository URL and credentials between all lookups, so that a reactor commits
+     * once. The shared sessions are committed by {@link SessionEndCommitter} when the Maven session ends, in time
+     * to fail the build, or, with {@link #setCommitOnLastRelease(boolean)}, when the last user disconnects, failing
+     * its release. Defaults to the system property <code>wagon.delayed.shareSessions</code> or false.
+     *
+     * @param shareSessions true to share.
+     */
+    public void setShareSessions( boolean shareSessions )
+    {
+        this.shareSessions = shareSessions;
+    }
+
+    /**
+     * @return true if a shared session is committed as soon as its last user disconnects.
+     */
+    public boolean isCommitOnLastRelease()
+    {
+        return commitOnLastRelease;
+    }
+
+    /**
+     * Defaults to the system property <code>wagon.delayed.commitOnLastRelease</code> or false.
+     *
+     * @param commitOnLastRelease true to commit a shared session when its last user disconnects, false to wait for
+     *            the end of the build.
+     */
+    public void setCommitOnLastRelease( boolean commitOnLastRelease )
+    {
+        this.commitOnLastRelease = commitOnLastRelease;
+    }
+
+    /**
+     * Commit the shared sessions.
+     *
+     * @throws ConnectionException with the first failure, after trying all sessions.
+     */
+    public void commitSharedSessions()
+        throws ConnectionException
+    {
+        sharedSessions.commitAll();
+    }
+
+    /**
+     * Wait for the asynchronous commits of the released delayed wagons and release their underlying wagons.
+     *
+     * @throws ConnectionException with the first failure since the last call, the others suppressed.
+     */
+    public void awaitCommits()
+        throws ConnectionException
+    {
+        releaseCommitted( true );
+        ConnectionException failure = null;
+        synchronized ( commitFailures )
+        {
+            for ( ConnectionException e : commitFailures )
+            {
+                if ( failure == null )
+                {
+                    failure = e;
+                }
+                else
+                {
+                    failure.addSuppressed( e );
+                }
+            }
+            commitFailures.clear();
+        }
+        if ( failure != null )
+        {
+            throw failure;
+        }
+    }
+
+    /**
+     * Release the underlying wagons of the asynchronous commits that finished, or of all of them after waiting.
+     */
+    private void releaseCommitted( boolean wait )
+    {
+        List<DelayedWagon> done = new ArrayList<DelayedWagon>();
+        synchronized ( committing )
+        {
+            for ( Iterator<DelayedWagon> it = committing.iterator(); it.hasNext(); )
+            {
+                DelayedWagon dWagon = it.next();
+                if ( wait || !dWagon.isCommitPending() )
+                {
+                    it.remove();
+                    done.add( dWagon );
+                }
+            }
+        }
+        for ( DelayedWagon dWagon : done )
+        {
+            try
+            {
+                dWagon.awaitCommit();
+            }
+            catch ( ConnectionException e )
+            {
+                synchronized ( commitFailures )
+                {
+                    commitFailures.add( e );
+                }
+            }
+            if ( !dWagon.isCommitPending() )
+            {
+                super.release( dWagon.getWagon() );
+            }
+        }
+    }
+
+    /**
+     * Finish the asynchronous commits and commit the shared sessions left open when the container shuts down, e.g.
+     * when Maven is older than 3.2.1 or the build ran without {@link SessionEndCommitter}.
+     */
+    @Override
+    public void dispose()
+    {
+        ConnectionException failure = null;
+        try
+        {
+            awaitCommits();
+        }
+        catch ( ConnectionException e )
+        {
+            failure = e;
+        }
+        try
+        {
+            commitSharedSessions();
+        }
+        catch ( ConnectionException e )
+        {
+            if ( failure == null )
+            {
+                failure = e;
+            }
+            else
+            {
+                failure.addSuppressed( e );
+            }
+        }
+        if ( failure != null )
+        {
+            throw new IllegalStateException( "Commit of delayed sessions failed", failure );
+        }
+    }
+
     /**
      * Creates an uninitialized provider.
      */
@@ -74,6 +613,11 @@ public DelayedWagonProvider( PlexusContainer container )
     public Wagon lookup( String roleHint )
         throws Exception
     {
+        releaseCommitted( false );
+        if ( shareSessions && protocolsToWrap.contains( roleHint ) )
+        {
+            return new SharedDelayedWagon( sharedSessions, roleHint );
+        }
         Wagon wagon = super.lookup( roleHint );
         return wagon == null ? null : wrap( wagon, roleHint );
     }
@@ -82,26 +626,83 @@ private Wagon wrap( Wagon wagon, String roleHint )
     {
         if ( protocolsToWrap.contains( roleHint ) )
         {
-            return new DelayedWagon( wagon );
+            return newDelayedWagon( wagon, roleHint );
         }
         return wagon;
     }
 
+    private DelayedWagon newDelayedWagon( Wagon wagon, final String roleHint )
+    {
+        DelayedWagon dWagon = new DelayedWagon( wagon );
+        dWagon.setCommitThreads( commitThreads );
+        dWagon.setCommitBatchMaxFiles( commitBatchMaxFiles );
+        dWagon.setCommitBatchMaxBytes( commitBatchMaxBytes );
+        dWagon.setFlushQuietMillis( flushQuietMillis );
+        dWagon.setFlushMaxBytes( flushMaxBytes );
+        dWagon.setSnapshotDirectory( snapshotDirectory );
+        dWagon.setSnapshotThreads( snapshotThreads );
+        dWagon.setMetadataCacheDir( metadataCacheDir );
+        dWagon.setContentCacheDir( contentCacheDir );
+        dWagon.setLinkFiles( linkFiles );
+        dWagon.setStagingMemoryBudget( stagingMemoryBudget );
+        dWagon.setDedupMaxBytes( dedupMaxBytes );
+        dWagon.setAsyncDelete( asyncDelete );
+        dWagon.setAsyncCommit( asyncCommit );
+        dWagon.setCommitWarmer( commitWarmer );
+        if ( metrics != null )
+        {
+            dWagon.setMetrics( metrics );
+        }
+        dWagon.setWagonLookup( new WagonLookup()
+        {
+            @Override
+            public Wagon lookup()
+                throws Exception
+            {
+                return DelayedWagonProvider.super.lookup( roleHint );
+            }
+
+            @Override
+            public void release( Wagon w )
+            {
+                DelayedWagonProvider.super.release( w );
+            }
+        } );
+        return dWagon;
+    }
+
+    private static File fileProperty( String key )
+    {
+        String value = System.getProperty( key );
+        return value == null ? null : new File( value );
+    }
+
     @Override
     public void release( final Wagon wagonArg )
     {
-        DelayedWagon dWagon = null;
-        Wagon wagon = wagonArg;
-        if ( wagon instanceof DelayedWagon )
+        if ( wagonArg instanceof SharedDelayedWagon )
+        {
+            // the shared session releases its wagon after the commit
+            ( (SharedDelayedWagon) wagonArg ).validateCleanRelease();
+            return;
+        }
+        if ( !( wagonArg instanceof DelayedWagon ) )
         {
-            dWagon = (DelayedWagon) wagon;
-            wagon = dWagon.getWagon();
+            super.release( wagonArg );
+            return;
         }
-        super.release( wagon );
-        if ( dWagon != null )
+        DelayedWagon dWagon = (DelayedWagon) wagonArg;
+        if ( dWagon.isCommitPending() )
         {
-            // TODO: we throw it here, because exception thrown by disconnect() will not fail the build
-            dWagon.validateCleanRelease();
+            // the underlying wagon is in use until the commit ends, see awaitCommits()
+            synchronized ( committing )
+            {
+                committing.add( dWagon );
+            }
+            return;
         }
+        super.release( dWagon.getWagon() );
+        // TODO: we throw it here, because exception thrown by disconnect() will not fail the build
+        dWagon.validateCleanRelease();
     }
 }
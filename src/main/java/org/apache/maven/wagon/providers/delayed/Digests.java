@@ -0,0 +1,181 @@
+package org.apache.maven.wagon.providers.delayed;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Content digests as lowercase hex strings.
+ */
+final class Digests
+{
+    /**
+     * the algorithms computed while staging, those of the checksum files Maven deploys
+     */
+    static final String[] STAGING_ALGORITHMS = { "SHA-1", "MD5" };
+
+    private Digests()
+    {
+    }
+
+    /**
+     * @param algorithm the JCA algorithm name
+     * @return a new digest
+     */
+    static MessageDigest newDigest( String algorithm )
+    {
+        try
+        {
+            return MessageDigest.getInstance( algorithm );
+        }
+        catch ( NoSuchAlgorithmException e )
+        {
+            throw new IllegalStateException( e );
+        }
+    }
+
+    /**
+     * @return new digests of {@link #STAGING_ALGORITHMS}
+     */
+    static MessageDigest[] newStagingDigests()
+    {
+        MessageDigest[] mds = new MessageDigest[STAGING_ALGORITHMS.length];
+        for ( int i = 0; i < mds.length; i++ )
+        {
+            mds[i] = newDigest( STAGING_ALGORITHMS[i] );
+        }
+        return mds;
+    }
+
+    /**
+     * @param mds the digests to update
+     * @param buffer the bytes between the position and the limit, left unchanged
+     */
+    static void update( MessageDigest[] mds, ByteBuffer buffer )
+    {
+        for ( MessageDigest md : mds )
+        {
+            md.update( buffer.duplicate() );
+        }
+    }
+
+    /**
+     * @param mds digests of {@link #STAGING_ALGORITHMS}
+     * @return lowercase hex by algorithm
+     */
+    static Map<String, String> toMap( MessageDigest[] mds )
+    {
+        Map<String, String> res = new LinkedHashMap<String, String>();
+        for ( int i = 0; i < mds.length; i++ )
+        {
+            res.put( STAGING_ALGORITHMS[i], hex( mds[i].digest() ) );
+        }
+        return res;
+    }
+
+    /**
+     * @param file the file to read once
+     * @return lowercase hex of {@link #STAGING_ALGORITHMS} by algorithm
+     * @throws IOException when unable to read
+     */
+    static Map<String, String> stagingDigests( File file )
+        throws IOException
+    {
+        MessageDigest[] mds = newStagingDigests();
+        FileInputStream in = new FileInputStream( file );
+        try
+        {
+            FileChannel channel = in.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate( 65536 );
+            while ( channel.read( buffer ) != -1 )
+            {
+                buffer.flip();
+                update( mds, buffer );
+                buffer.clear();
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        return toMap( mds );
+    }
+
+    /**
+     * @param bytes the digest
+     * @return lowercase hex
+     */
+    static String hex( byte[] bytes )
+    {
+        StringBuilder sb = new StringBuilder( bytes.length * 2 );
+        for ( byte b : bytes )
+        {
+            sb.append( Character.forDigit( ( b >> 4 ) & 0xf, 16 ) ).append( Character.forDigit( b & 0xf, 16 ) );
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param in the stream to read fully and close
+     * @param algorithm the JCA algorithm name
+     * @return lowercase hex
+     * @throws IOException when unable to read
+     */
+    static String digest( InputStream in, String algorithm )
+        throws IOException
+    {
+        try
+        {
+            MessageDigest md = newDigest( algorithm );
+            byte[] buf = new byte[8192];
+            int n;
+            while ( ( n = in.read( buf ) ) != -1 )
+            {
+                md.update( buf, 0, n );
+            }
+            return hex( md.digest() );
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * @param file the file to read
+     * @param algorithm the JCA algorithm name
+     * @return lowercase hex
+     * @throws IOException when unable to read
+     */
+    static String digest( File file, String algorithm )
+        throws IOException
+    {
+        return digest( new FileInputStream( file ), algorithm );
+    }
+}
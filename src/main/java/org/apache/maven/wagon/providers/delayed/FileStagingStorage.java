@@ -0,0 +1,114 @@
+package org.apache.maven.wagon.providers.delayed;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Stages resources as files under a directory.
+ */
+class FileStagingStorage
+    implements StagingStorage
+{
+    private final File root;
+
+    private final boolean linkFiles;
+
+    private final Set<String> staged = Collections.newSetFromMap( new ConcurrentHashMap<String, Boolean>() );
+
+    /**
+     * @param root the directory
+     * @param linkFiles true to allow hard links to the sources
+     */
+    FileStagingStorage( File root, boolean linkFiles )
+    {
+        this.root = root;
+        this.linkFiles = linkFiles;
+    }
+
+    @Override
+    public Map<String, String> store( String resourceName, File source )
+        throws IOException
+    {
+        Map<String, String> digests = FileTransfer.copyWithDigests( source, new File( root, resourceName ), linkFiles );
+        staged.add( resourceName );
+        return digests;
+    }
+
+    @Override
+    public void recover( String resourceName )
+    {
+        staged.add( resourceName );
+    }
+
+    @Override
+    public boolean contains( String resourceName )
+    {
+        return staged.contains( resourceName );
+    }
+
+    @Override
+    public void retrieve( String resourceName, File destination )
+        throws IOException
+    {
+        FileTransfer.copy( new File( root, resourceName ), destination, linkFiles );
+    }
+
+    @Override
+    public long getLength( String resourceName )
+    {
+        return new File( root, resourceName ).length();
+    }
+
+    @Override
+    public InputStream openStream( String resourceName )
+        throws IOException
+    {
+        return new FileInputStream( new File( root, resourceName ) );
+    }
+
+    @Override
+    public void remove( String resourceName )
+    {
+        if ( staged.remove( resourceName ) )
+        {
+            new File( root, resourceName ).delete();
+        }
+    }
+
+    @Override
+    public File getFile( String resourceName )
+    {
+        return staged.contains( resourceName ) ? new File( root, resourceName ) : null;
+    }
+
+    @Override
+    public void clear()
+    {
+        staged.clear();
+    }
+}
@@ -0,0 +1,299 @@
+package org.apache.maven.wagon.providers.delayed;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.codehaus.plexus.util.FileUtils;
+
+/**
+ * Copies files the cheapest way that works: a hard link, a copy-on-write clone, an in-kernel channel transfer or a
+ * plain stream copy. A method the file system does not support is remembered and not tried again on it.
+ * <p>
+ * The clone runs <code>cp --reflink=always</code>, since Java has no API for it, and is only tried on Linux when
+ * the system property <code>wagon.delayed.reflink</code> is true.
+ * <p>
+ * The destination is always replaced, never written in place, so a file linked elsewhere is never modified. The
+ * copies keep the modification time of the source.
+ */
+final class FileTransfer
+{
+    /**
+     * smaller files are not worth starting a process for a clone
+     */
+    static final long REFLINK_MIN_LENGTH = 1024 * 1024;
+
+    private static final boolean REFLINK_AVAILABLE = Boolean.getBoolean( "wagon.delayed.reflink" )
+        && System.getProperty( "os.name", "" ).toLowerCase().contains( "linux" ) && new File( "/bin/cp" ).isFile();
+
+    private static final Map<FileStore, Boolean> LINK_WORKS = new ConcurrentHashMap<FileStore, Boolean>();
+
+    private static final Map<FileStore, Boolean> REFLINK_WORKS = new ConcurrentHashMap<FileStore, Boolean>();
+
+    private FileTransfer()
+    {
+    }
+
+    /**
+     * @param source the source file
+     * @param destination the destination file, replaced if exists
+     * @param allowLink true to allow a hard link
+     * @throws IOException when all methods fail
+     */
+    static void copy( File source, File destination, boolean allowLink )
+        throws IOException
+    {
+        prepare( destination );
+
+        FileStore store = sameStore( source, destination );
+        if ( store != null )
+        {
+            if ( allowLink && tryLink( store, source, destination ) )
+            {
+                return;
+            }
+            if ( REFLINK_AVAILABLE && source.length() >= REFLINK_MIN_LENGTH
+                && tryReflink( store, source, destination ) )
+            {
+                return;
+            }
+        }
+
+        try
+        {
+            transfer( source, destination );
+        }
+        catch ( IOException e )
+        {
+            Files.deleteIfExists( destination.toPath() );
+            FileUtils.copyFile( source, destination );
+            destination.setLastModified( source.lastModified() );
+        }
+    }
+
+    /**
+     * Copy a file and compute the digests of {@link Digests#STAGING_ALGORITHMS} in the same pass over the content. A
+     * hard link or a clone is still preferred, then the digests take the only pass.
+     *
+     * @param source the source file
+     * @param destination the destination file, replaced if exists
+     * @param allowLink true to allow a hard link
+     * @return lowercase hex digests by algorithm
+     * @throws IOException when unable to copy
+     */
+    static Map<String, String> copyWithDigests( File source, File destination, boolean allowLink )
+        throws IOException
+    {
+        prepare( destination );
+
+        FileStore store = sameStore( source, destination );
+        if ( store != null && ( ( allowLink && tryLink( store, source, destination ) )
+            || ( REFLINK_AVAILABLE && source.length() >= REFLINK_MIN_LENGTH
+                && tryReflink( store, source, destination ) ) ) )
+        {
+            return Digests.stagingDigests( destination );
+        }
+
+        MessageDigest[] mds = Digests.newStagingDigests();
+        FileInputStream in = new FileInputStream( source );
+        try
+        {
+            FileOutputStream out = new FileOutputStream( destination );
+            try
+            {
+                FileChannel inChannel = in.getChannel();
+                FileChannel outChannel = out.getChannel();
+                ByteBuffer buffer = ByteBuffer.allocateDirect( 65536 );
+                while ( inChannel.read( buffer ) != -1 )
+                {
+                    buffer.flip();
+                    Digests.update( mds, buffer );
+                    while ( buffer.hasRemaining() )
+                    {
+                        outChannel.write( buffer );
+                    }
+                    buffer.clear();
+                }
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        destination.setLastModified( source.lastModified() );
+        return Digests.toMap( mds );
+    }
+
+    private static void prepare( File destination )
+        throws IOException
+    {
+        File parent = destination.getAbsoluteFile().getParentFile();
+        if ( parent != null )
+        {
+            parent.mkdirs();
+        }
+        Files.deleteIfExists( destination.toPath() );
+    }
+
+    private static FileStore sameStore( File source, File destination )
+    {
+        try
+        {
+            FileStore store = Files.getFileStore( source.toPath() );
+            return store.equals( Files.getFileStore( destination.getAbsoluteFile().getParentFile().toPath() ) ) ? store
+                            : null;
+        }
+        catch ( IOException e )
+        {
+            return null;
+        }
+    }
+
+    private static boolean tryLink( FileStore store, File source, File destination )
+    {
+        if ( Boolean.FALSE.equals( LINK_WORKS.get( store ) ) )
+        {
+            return false;
+        }
+        try
+        {
+            Files.createLink( destination.toPath(), source.toPath() );
+            LINK_WORKS.put( store, Boolean.TRUE );
+            return true;
+        }
+        catch ( UnsupportedOperationException e )
+        {
+            LINK_WORKS.put( store, Boolean.FALSE );
+        }
+        catch ( IOException e )
+        {
+            // also thrown for a single file, for example when access is denied or the link count is exhausted
+            if ( isUnsupported( e ) )
+            {
+                LINK_WORKS.put( store, Boolean.FALSE );
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param e the failure to link a file
+     * @return true if the file system does not support the operation at all
+     */
+    static boolean isUnsupported( IOException e )
+    {
+        if ( !( e instanceof FileSystemException ) || e instanceof AccessDeniedException )
+        {
+            return false;
+        }
+        String reason = ( (FileSystemException) e ).getReason();
+        return reason != null && reason.toLowerCase( Locale.ENGLISH ).contains( "not supported" );
+    }
+
+    private static boolean tryReflink( FileStore store, File source, File destination )
+    {
+        if ( Boolean.FALSE.equals( REFLINK_WORKS.get( store ) ) )
+        {
+            return false;
+        }
+        try
+        {
+            Process p = new ProcessBuilder( "/bin/cp", "--reflink=always", source.getAbsolutePath(),
+                                            destination.getAbsolutePath() ).redirectErrorStream( true ).start();
+            p.getOutputStream().close();
+            while ( p.getInputStream().read() != -1 )
+            {
+                // drain
+            }
+            if ( p.waitFor() == 0 )
+            {
+                REFLINK_WORKS.put( store, Boolean.TRUE );
+                destination.setLastModified( source.lastModified() );
+                return true;
+            }
+            if ( !REFLINK_WORKS.containsKey( store ) )
+            {
+                REFLINK_WORKS.put( store, Boolean.FALSE );
+            }
+        }
+        catch ( IOException e )
+        {
+            REFLINK_WORKS.put( store, Boolean.FALSE );
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+        }
+        destination.delete();
+        return false;
+    }
+
+    private static void transfer( File source, File destination )
+        throws IOException
+    {
+        FileInputStream in = new FileInputStream( source );
+        try
+        {
+            FileOutputStream out = new FileOutputStream( destination );
+            try
+            {
+                FileChannel inChannel = in.getChannel();
+                FileChannel outChannel = out.getChannel();
+                long size = inChannel.size();
+                long pos = 0;
+                while ( pos < size )
+                {
+                    long n = inChannel.transferTo( pos, size - pos, outChannel );
+                    if ( n <= 0 )
+                    {
+                        throw new IOException( "transferTo() stalled at " + pos + " of " + source );
+                    }
+                    pos += n;
+                }
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        destination.setLastModified( source.lastModified() );
+    }
+}
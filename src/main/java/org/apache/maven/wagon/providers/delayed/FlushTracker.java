@@ -0,0 +1,165 @@
+package org.apache.maven.wagon.providers.delayed;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tracks the staged resources of each directory for the write-behind flush.
+ * <p>
+ * A directory becomes due when no resource was staged in it for the quiet interval or when the total length staged
+ * in it reaches the size threshold. Every put gets a new version, so that a flush can tell whether the resource was
+ * staged again while it was uploading. A directory has at most one pending quiet timer and one pending size-triggered
+ * flush at a time.
+ * <p>
+ * Thread-safe.
+ */
+final class FlushTracker
+{
+    private static final class Subtree
+    {
+        private long lastPut;
+
+        private long bytes;
+
+        private final Map<String, Long> versions = new LinkedHashMap<String, Long>();
+    }
+
+    private final Map<String, Subtree> subtrees = new HashMap<String, Subtree>();
+
+    private final Map<String, Long> versions = new HashMap<String, Long>();
+
+    /**
+     * the directories with a pending quiet timer
+     */
+    private final Set<String> quietTasks = new HashSet<String>();
+
+    /**
+     * the directories with a pending size-triggered flush
+     */
+    private final Set<String> dueTasks = new HashSet<String>();
+
+    private long version;
+
+    /**
+     * @param dir the directory of the resource with a trailing "/", empty for the root
+     * @param resourceName canonical resource name
+     * @param length the staged length
+     * @param now the current time in milliseconds
+     * @return the total length staged in the directory since its last flush
+     */
+    synchronized long staged( String dir, String resourceName, long length, long now )
+    {
+        Subtree subtree = subtrees.get( dir );
+        if ( subtree == null )
+        {
+            subtree = new Subtree();
+            subtrees.put( dir, subtree );
+        }
+        Long v = ++version;
+        versions.put( resourceName, v );
+        subtree.versions.put( resourceName, v );
+        subtree.lastPut = now;
+        subtree.bytes += length;
+        return subtree.bytes;
+    }
+
+    /**
+     * Stop tracking a directory if it is due.
+     *
+     * @param dir the directory with a trailing "/"
+     * @param quietMillis the quiet interval, 0 to only take a directory over the size threshold
+     * @param maxBytes the size threshold, 0 to only take a quiet directory
+     * @param now the current time in milliseconds
+     * @return the versions of the resources to flush or null if the directory is not due
+     */
+    synchronized Map<String, Long> take( String dir, long quietMillis, long maxBytes, long now )
+    {
+        Subtree subtree = subtrees.get( dir );
+        if ( subtree == null || !( quietMillis > 0 && now - subtree.lastPut >= quietMillis
+            || maxBytes > 0 && subtree.bytes >= maxBytes ) )
+        {
+            return null;
+        }
+        subtrees.remove( dir );
+        return subtree.versions;
+    }
+
+    /**
+     * Claim the flush task of a directory.
+     *
+     * @param dir the directory with a trailing "/"
+     * @param due true for a flush at once over the size threshold, false for a quiet timer
+     * @return true if the caller must schedule the task, false if one is already pending
+     */
+    synchronized boolean claimTask( String dir, boolean due )
+    {
+        return ( due ? dueTasks : quietTasks ).add( dir );
+    }
+
+    /**
+     * Release the task of a directory when it runs.
+     *
+     * @param dir the directory with a trailing "/"
+     * @param due the kind of task, as claimed
+     * @param quietMillis the quiet interval
+     * @param now the current time in milliseconds
+     * @return the time left until the directory is quiet, 0 if it is quiet or not tracked
+     */
+    synchronized long releaseTask( String dir, boolean due, long quietMillis, long now )
+    {
+        ( due ? dueTasks : quietTasks ).remove( dir );
+        Subtree subtree = subtrees.get( dir );
+        return subtree == null ? 0 : Math.max( 0, subtree.lastPut + quietMillis - now );
+    }
+
+    /**
+     * @param resourceName canonical resource name
+     * @param v the version returned by {@link #take(String, long, long, long)}
+     * @return true if the resource was not staged again since
+     */
+    synchronized boolean isCurrent( String resourceName, long v )
+    {
+        Long current = versions.get( resourceName );
+        return current != null && current == v;
+    }
+
+    /**
+     * Forget a flushed resource.
+     *
+     * @param resourceName canonical resource name
+     */
+    synchronized void flushed( String resourceName )
+    {
+        versions.remove( resourceName );
+    }
+
+    synchronized void clear()
+    {
+        subtrees.clear();
+        versions.clear();
+        quietTasks.clear();
+        dueTasks.clear();
+    }
+}
@@ -0,0 +1,46 @@
+package org.apache.maven.wagon.providers.delayed;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import org.apache.maven.wagon.ResourceDoesNotExistException;
+
+/**
+ * Warms up a commit by listing the target directory through the delayed wagon. The listing is cached, so the later
+ * existence checks of the listed resources are answered locally. It does not prepare the commit itself: an SCM wagon
+ * still checks out the target directory when it commits, warming that up needs a {@link CommitWarmer} that uses the
+ * underlying wagon's own API.
+ */
+public class ListingWarmer
+    implements CommitWarmer
+{
+    @Override
+    public void warm( DelayedWagon wagon, String directory )
+        throws Exception
+    {
+        try
+        {
+            wagon.getFileList( directory );
+        }
+        catch ( ResourceDoesNotExistException e )
+        {
+            // a new directory, nothing to prepare
+        }
+    }
+}
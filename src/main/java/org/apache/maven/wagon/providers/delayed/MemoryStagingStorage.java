@@ -0,0 +1,261 @@
+package org.apache.maven.wagon.providers.delayed;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stages small resources in heap buffers up to a memory budget and spills the rest to another storage.
+ * <p>
+ * Most staged resources are POMs, checksums and metadata, for which a temporary file costs more than the data. The
+ * buffered resources have no file, so this storage only pays off when the commit streams them to the remote.
+ */
+class MemoryStagingStorage
+    implements StagingStorage
+{
+    private final long budget;
+
+    private final long maxLength;
+
+    private final StagingStorage spill;
+
+    private final Map<String, ByteBuffer> buffers = new ConcurrentHashMap<String, ByteBuffer>();
+
+    private final AtomicLong used = new AtomicLong();
+
+    /**
+     * @param budget the total size of the buffers
+     * @param maxLength larger resources are always spilled
+     * @param spill the storage for the rest
+     */
+    MemoryStagingStorage( long budget, long maxLength, StagingStorage spill )
+    {
+        this.budget = budget;
+        this.maxLength = maxLength;
+        this.spill = spill;
+    }
+
+    @Override
+    public Map<String, String> store( String resourceName, File source )
+        throws IOException
+    {
+        release( resourceName );
+
+        long length = source.length();
+        if ( length <= maxLength && reserve( length ) )
+        {
+            ByteBuffer buffer = ByteBuffer.allocate( (int) length );
+            MessageDigest[] mds = Digests.newStagingDigests();
+            try
+            {
+                read( source, buffer );
+            }
+            catch ( IOException e )
+            {
+                used.addAndGet( -length );
+                throw e;
+            }
+            buffer.flip();
+            Digests.update( mds, buffer );
+            buffers.put( resourceName, buffer );
+            spill.remove( resourceName );
+            return Digests.toMap( mds );
+        }
+        return spill.store( resourceName, source );
+    }
+
+    @Override
+    public void recover( String resourceName )
+    {
+        spill.recover( resourceName );
+    }
+
+    @Override
+    public boolean contains( String resourceName )
+    {
+        return buffers.containsKey( resourceName ) || spill.contains( resourceName );
+    }
+
+    @Override
+    public void retrieve( String resourceName, File destination )
+        throws IOException
+    {
+        ByteBuffer buffer = buffers.get( resourceName );
+        if ( buffer == null )
+        {
+            spill.retrieve( resourceName, destination );
+        }
+        else
+        {
+            write( buffer, destination );
+        }
+    }
+
+    @Override
+    public long getLength( String resourceName )
+    {
+        ByteBuffer buffer = buffers.get( resourceName );
+        return buffer == null ? spill.getLength( resourceName ) : buffer.capacity();
+    }
+
+    @Override
+    public InputStream openStream( String resourceName )
+        throws IOException
+    {
+        ByteBuffer buffer = buffers.get( resourceName );
+        if ( buffer == null )
+        {
+            return spill.openStream( resourceName );
+        }
+        final ByteBuffer src = buffer.duplicate();
+        return new InputStream()
+        {
+            @Override
+            public int read()
+            {
+                return src.hasRemaining() ? src.get() & 0xff : -1;
+            }
+
+            @Override
+            public int read( byte[] b, int off, int len )
+            {
+                if ( !src.hasRemaining() )
+                {
+                    return -1;
+                }
+                int n = Math.min( len, src.remaining() );
+                src.get( b, off, n );
+                return n;
+            }
+        };
+    }
+
+    @Override
+    public void remove( String resourceName )
+    {
+        release( resourceName );
+        spill.remove( resourceName );
+    }
+
+    @Override
+    public File getFile( String resourceName )
+    {
+        return buffers.containsKey( resourceName ) ? null : spill.getFile( resourceName );
+    }
+
+    @Override
+    public void clear()
+    {
+        buffers.clear();
+        used.set( 0 );
+        spill.clear();
+    }
+
+    /**
+     * @return the total size of the buffers
+     */
+    long getUsed()
+    {
+        return used.get();
+    }
+
+    private boolean reserve( long length )
+    {
+        for ( ;; )
+        {
+            long current = used.get();
+            if ( current + length > budget )
+            {
+                return false;
+            }
+            if ( used.compareAndSet( current, current + length ) )
+            {
+                return true;
+            }
+        }
+    }
+
+    private void release( String resourceName )
+    {
+        ByteBuffer old = buffers.remove( resourceName );
+        if ( old != null )
+        {
+            used.addAndGet( -old.capacity() );
+        }
+    }
+
+    private static void read( File source, ByteBuffer buffer )
+        throws IOException
+    {
+        FileInputStream in = new FileInputStream( source );
+        try
+        {
+            FileChannel channel = in.getChannel();
+            while ( buffer.hasRemaining() && channel.read( buffer ) != -1 )
+            {
+                // read fully
+            }
+            if ( buffer.hasRemaining() || in.read() != -1 )
+            {
+                throw new IOException( "Size changed while staging " + source );
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    private static void write( ByteBuffer buffer, File destination )
+        throws IOException
+    {
+        File parent = destination.getAbsoluteFile().getParentFile();
+        if ( parent != null )
+        {
+            parent.mkdirs();
+        }
+        Files.deleteIfExists( destination.toPath() );
+        FileOutputStream out = new FileOutputStream( destination );
+        try
+        {
+            ByteBuffer src = buffer.duplicate();
+            FileChannel channel = out.getChannel();
+            while ( src.hasRemaining() )
+            {
+                channel.write( src );
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,447 @@
+package org.apache.maven.wagon.providers.delayed;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Append-only log of what a DelayedWagon learned about a remote repository, kept between sessions in a file named
+ * after the repository URL.
+ * <p>
+ * Each line records one fact with the time it was learned: <code>H time stamp path</code> for an upper bound of the
+ * remote timestamp (<code>Long.MAX_VALUE</code> when only the existence is known), <code>L time stamp path</code> for
+ * a lower bound and <code>M time path</code> for a missing resource. Later lines override earlier ones. Facts older
+ * than the time to live are ignored. The first line names the repository URL; a log of another repository is
+ * discarded. Concurrent builds are serialized with a file lock.
+ * <p>
+ * Only lower bounds are kept for <code>maven-metadata*</code> files: every deployment rewrites them, so an upper bound
+ * or a missing fact would hide a version deployed by another build in the meantime.
+ * <p>
+ * An upper bound of a resource also drops the missing facts of the directories above it, so that a deployment by
+ * another build is seen by the directory checks of this one.
+ */
+final class MetadataCache
+{
+    private static final String HEADER = "#wagon-delayed-metadata 1 ";
+
+    private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+    private static final class Fact
+    {
+        private final long time;
+
+        private final long stamp;
+
+        Fact( long time, long stamp )
+        {
+            this.time = time;
+            this.stamp = stamp;
+        }
+    }
+
+    private final File file;
+
+    private final long ttl;
+
+    private final String url;
+
+    private final Map<String, Fact> hi = new HashMap<String, Fact>();
+
+    private final Map<String, Fact> lo = new HashMap<String, Fact>();
+
+    private final Map<String, Fact> missing = new HashMap<String, Fact>();
+
+    /**
+     * @param dir the directory of the log files
+     * @param ttl time to live of a fact in milliseconds
+     * @param url the repository URL
+     */
+    MetadataCache( File dir, long ttl, String url )
+    {
+        this.url = String.valueOf( url );
+        this.file = new File( dir, digestHex( this.url ) + ".log" );
+        this.ttl = ttl;
+    }
+
+    /**
+     * @return the log file
+     */
+    File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * Read the unexpired facts.
+     *
+     * @throws IOException when unable to read the file
+     */
+    void load()
+        throws IOException
+    {
+        hi.clear();
+        lo.clear();
+        missing.clear();
+        if ( !file.isFile() )
+        {
+            return;
+        }
+        RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+        try
+        {
+            FileLock lock = raf.getChannel().lock();
+            try
+            {
+                read( raf.getChannel() );
+            }
+            finally
+            {
+                lock.release();
+            }
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    /**
+     * @param resourceName canonical resource name
+     * @return the stored upper bound or null
+     */
+    Long getStampHi( String resourceName )
+    {
+        Fact fact = hi.get( resourceName );
+        return fact == null ? null : fact.stamp;
+    }
+
+    /**
+     * @return the resources with a stored upper bound
+     */
+    Set<String> getStampHiResources()
+    {
+        return hi.keySet();
+    }
+
+    /**
+     * @return the resources with a stored lower bound
+     */
+    Set<String> getStampLoResources()
+    {
+        return lo.keySet();
+    }
+
+    /**
+     * @param resourceName canonical resource name
+     * @return the stored lower bound or null
+     */
+    Long getStampLo( String resourceName )
+    {
+        Fact fact = lo.get( resourceName );
+        return fact == null ? null : fact.stamp;
+    }
+
+    /**
+     * @return the resources known to be missing
+     */
+    Set<String> getMissingResources()
+    {
+        return missing.keySet();
+    }
+
+    /**
+     * Append the facts that changed since {@link #load()}. The committed resources exist, but their remote
+     * timestamps are unknown.
+     *
+     * @param stampsHi upper bounds of the session
+     * @param stampsLo lower bounds of the session
+     * @param missingResources missing resources of the session
+     * @param committed committed resources
+     * @throws IOException when unable to write the file
+     */
+    void save( Map<String, Long> stampsHi, Map<String, Long> stampsLo, Collection<String> missingResources,
+               Collection<String> committed )
+        throws IOException
+    {
+        long now = System.currentTimeMillis();
+        List<String> records = new ArrayList<String>();
+        Map<String, Long> hiArg = new HashMap<String, Long>( stampsHi );
+        for ( String res : committed )
+        {
+            hiArg.put( res, Long.MAX_VALUE );
+        }
+        for ( Map.Entry<String, Long> entry : hiArg.entrySet() )
+        {
+            String res = entry.getKey();
+            // a committed volatile resource is only recorded for its directories, see parse()
+            if ( isVolatile( res ) && !committed.contains( res ) )
+            {
+                continue;
+            }
+            Long old = getStampHi( res );
+            if ( old == null || !old.equals( entry.getValue() ) )
+            {
+                records.add( "H " + now + " " + entry.getValue() + " " + res + "\n" );
+            }
+        }
+        for ( Map.Entry<String, Long> entry : stampsLo.entrySet() )
+        {
+            String res = entry.getKey();
+            Long old = getStampLo( res );
+            if ( !committed.contains( res ) && ( old == null || !old.equals( entry.getValue() ) ) )
+            {
+                records.add( "L " + now + " " + entry.getValue() + " " + res + "\n" );
+            }
+        }
+        for ( String res : missingResources )
+        {
+            if ( !missing.containsKey( res ) && !committed.contains( res ) && !isVolatile( res )
+                && !isParentOf( res, committed ) )
+            {
+                records.add( "M " + now + " " + res + "\n" );
+            }
+        }
+        if ( records.isEmpty() )
+        {
+            return;
+        }
+
+        File parent = file.getAbsoluteFile().getParentFile();
+        if ( parent != null )
+        {
+            parent.mkdirs();
+        }
+        RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+        try
+        {
+            FileChannel channel = raf.getChannel();
+            FileLock lock = channel.lock();
+            try
+            {
+                // re-read under the lock, other builds may have appended
+                int nLines = read( channel );
+                if ( nLines == 0 || nLines > 2 * ( hi.size() + lo.size() + missing.size() ) + 1000 )
+                {
+                    channel.truncate( 0 );
+                    Writer w = newWriter( channel );
+                    w.write( HEADER + url + "\n" );
+                    writeFacts( w, "H", hi );
+                    writeFacts( w, "L", lo );
+                    for ( Map.Entry<String, Fact> entry : missing.entrySet() )
+                    {
+                        w.write( "M " + entry.getValue().time + " " + entry.getKey() + "\n" );
+                    }
+                    writeRecords( w, records );
+                    w.flush();
+                }
+                else
+                {
+                    channel.position( channel.size() );
+                    Writer w = newWriter( channel );
+                    writeRecords( w, records );
+                    w.flush();
+                }
+            }
+            finally
+            {
+                lock.release();
+            }
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    /**
+     * Forget everything, for example after a failed commit left the remote state unknown.
+     */
+    void invalidate()
+    {
+        hi.clear();
+        lo.clear();
+        missing.clear();
+        file.delete();
+    }
+
+    /**
+     * @return the number of lines read, 0 if the file is empty or belongs to another repository
+     */
+    private int read( FileChannel channel )
+        throws IOException
+    {
+        hi.clear();
+        lo.clear();
+        missing.clear();
+        channel.position( 0 );
+        BufferedReader r = new BufferedReader( new InputStreamReader( Channels.newInputStream( channel ), UTF8 ) );
+        String line = r.readLine();
+        if ( line == null || !line.equals( HEADER + url ) )
+        {
+            return 0;
+        }
+        long expired = System.currentTimeMillis() - ttl;
+        int nLines = 1;
+        while ( ( line = r.readLine() ) != null )
+        {
+            nLines++;
+            try
+            {
+                parse( line, expired );
+            }
+            catch ( RuntimeException e )
+            {
+                // torn write of a crashed build
+            }
+        }
+        return nLines;
+    }
+
+    private void parse( String line, long expired )
+    {
+        String[] fields = line.split( " ", line.startsWith( "M " ) ? 3 : 4 );
+        long time = Long.parseLong( fields[1] );
+        if ( time < expired )
+        {
+            return;
+        }
+        if ( "M".equals( fields[0] ) )
+        {
+            String res = fields[2];
+            if ( isVolatile( res ) )
+            {
+                return;
+            }
+            missing.put( res, new Fact( time, 0 ) );
+            hi.remove( res );
+            lo.remove( res );
+            return;
+        }
+        Fact fact = new Fact( time, Long.parseLong( fields[2] ) );
+        String res = fields[3];
+        if ( "H".equals( fields[0] ) )
+        {
+            removeMissingParents( res );
+            if ( isVolatile( res ) )
+            {
+                return;
+            }
+            hi.put( res, fact );
+            missing.remove( res );
+        }
+        else if ( "L".equals( fields[0] ) )
+        {
+            lo.put( res, fact );
+        }
+    }
+
+    /**
+     * @param resourceName canonical resource name
+     * @return true if the resource is rewritten by every deployment, like <code>maven-metadata.xml.sha1</code>
+     */
+    static boolean isVolatile( String resourceName )
+    {
+        return resourceName.startsWith( "maven-metadata", resourceName.lastIndexOf( '/' ) + 1 );
+    }
+
+    /**
+     * @param s a string
+     * @return lowercase hex of the SHA-1 digest of its UTF-8 bytes, used to name files after repository URLs
+     */
+    static String digestHex( String s )
+    {
+        return Digests.hex( Digests.newDigest( "SHA-1" ).digest( s.getBytes( UTF8 ) ) );
+    }
+
+    /**
+     * Forget that the directories above a resource were missing, the resource exists now.
+     */
+    private void removeMissingParents( String resourceName )
+    {
+        if ( missing.isEmpty() )
+        {
+            return;
+        }
+        int end = resourceName.endsWith( "/" ) ? resourceName.length() - 1 : resourceName.length();
+        for ( int i = resourceName.lastIndexOf( '/', end - 1 ); i >= 0; i = resourceName.lastIndexOf( '/', i - 1 ) )
+        {
+            missing.remove( resourceName.substring( 0, i + 1 ) );
+        }
+    }
+
+    /**
+     * @return true if a committed resource lies below the directory
+     */
+    private static boolean isParentOf( String directory, Collection<String> committed )
+    {
+        if ( !directory.endsWith( "/" ) )
+        {
+            return false;
+        }
+        for ( String res : committed )
+        {
+            if ( res.startsWith( directory ) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Writer newWriter( FileChannel channel )
+    {
+        return new OutputStreamWriter( Channels.newOutputStream( channel ), UTF8 );
+    }
+
+    private static void writeFacts( Writer w, String type, Map<String, Fact> facts )
+        throws IOException
+    {
+        for ( Map.Entry<String, Fact> entry : facts.entrySet() )
+        {
+            Fact fact = entry.getValue();
+            w.write( type + " " + fact.time + " " + fact.stamp + " " + entry.getKey() + "\n" );
+        }
+    }
+
+    private static void writeRecords( Writer w, List<String> records )
+        throws IOException
+    {
+        for ( String record : records )
+        {
+            w.write( record );
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package org.apache.maven.wagon.providers.delayed;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+/**
+ * Receives every update of a {@link DelayedWagonMetrics}, to forward it to a metrics library of the build.
+ * <p>
+ * Called by the transfer threads, implementations must be thread-safe and fast.
+ */
+public interface MetricsRegistry
+{
+    /**
+     * @param counter <code>get.hits</code>, <code>get.misses</code>, <code>resourceExists.hits</code>,
+     *            <code>resourceExists.misses</code>, <code>getFileList.hits</code>, <code>getFileList.misses</code>,
+     *            <code>stampBound.hits</code>, <code>negative.hits</code>, <code>staged.bytes</code> or
+     *            <code>staged.files</code>, see {@link DelayedWagonMetricsMBean}
+     * @param delta the increment
+     */
+    void count( String counter, long delta );
+
+    /**
+     * @param phase <code>retainAdded</code>, <code>prepare</code>, <code>commit</code> or <code>deleteCache</code>
+     * @param nanos the time the phase took
+     */
+    void time( String phase, long nanos );
+}
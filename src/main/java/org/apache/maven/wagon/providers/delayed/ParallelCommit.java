@@ -0,0 +1,207 @@
+package org.apache.maven.wagon.providers.delayed;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.maven.wagon.TransferFailedException;
+import org.apache.maven.wagon.Wagon;
+
+/**
+ * Puts files to the repository through several underlying wagons at once.
+ * <p>
+ * The commit is not atomic: every put() is a commit of its own. After a failure the resources already put stay in
+ * the repository, including some that follow the failed one in order, and {@link #committed(String)} reports
+ * exactly those.
+ */
+abstract class ParallelCommit
+{
+    private final int threads;
+
+    /**
+     * @param threads maximum number of wagons to use
+     */
+    ParallelCommit( int threads )
+    {
+        this.threads = threads;
+    }
+
+    /**
+     * @return a new connected wagon
+     * @throws Exception when unable to connect
+     */
+    abstract Wagon openWagon()
+        throws Exception;
+
+    /**
+     * @param wagon a wagon returned by {@link #openWagon()}
+     */
+    abstract void closeWagon( Wagon wagon );
+
+    /**
+     * Called by the worker threads after each successful put.
+     *
+     * @param resName the committed resource name
+     * @throws Exception to fail the commit
+     */
+    void committed( String resName )
+        throws Exception
+    {
+        // nothing by default
+    }
+
+    /**
+     * Put the files. All wagons are connected before the first put and no put is started after the first failure.
+     *
+     * @param wagon the connected underlying wagon, used as the first worker
+     * @param baseDir directory containing the files
+     * @param resources resource names relative to baseDir
+     * @throws CommitException with the cause for each resource that failed
+     * @throws TransferFailedException when unable to start the workers
+     */
+    void run( Wagon wagon, File baseDir, List<String> resources )
+        throws TransferFailedException
+    {
+        int nWorkers = Math.max( 1, Math.min( threads, resources.size() ) );
+        List<Wagon> wagons = new ArrayList<Wagon>();
+        wagons.add( wagon );
+        try
+        {
+            while ( wagons.size() < nWorkers )
+            {
+                try
+                {
+                    wagons.add( openWagon() );
+                }
+                catch ( Exception e )
+                {
+                    throw new TransferFailedException( "Unable to connect a commit worker", e );
+                }
+            }
+            put( wagons, baseDir, resources );
+        }
+        finally
+        {
+            for ( Wagon w : wagons.subList( 1, wagons.size() ) )
+            {
+                closeWagon( w );
+            }
+        }
+    }
+
+    /**
+     * Put one resource, by default the file under the base directory.
+     *
+     * @param w the worker wagon
+     * @param baseDir directory containing the files
+     * @param resName the resource name
+     * @throws Exception when the put fails
+     */
+    void put( Wagon w, File baseDir, String resName )
+        throws Exception
+    {
+        w.put( new File( baseDir, resName ), resName );
+    }
+
+    private void put( List<Wagon> wagons, final File baseDir, List<String> resources )
+        throws TransferFailedException
+    {
+        final Queue<String> queue = new ConcurrentLinkedQueue<String>( resources );
+        final Map<String, Exception> failures = Collections.synchronizedMap( new TreeMap<String, Exception>() );
+
+        ExecutorService executor = Executors.newFixedThreadPool( wagons.size(), new WorkerThreadFactory() );
+        try
+        {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for ( final Wagon w : wagons )
+            {
+                futures.add( executor.submit( new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        String resName;
+                        while ( failures.isEmpty() && ( resName = queue.poll() ) != null )
+                        {
+                            try
+                            {
+                                put( w, baseDir, resName );
+                                committed( resName );
+                            }
+                            catch ( Exception e )
+                            {
+                                failures.put( resName, e );
+                            }
+                        }
+                    }
+                } ) );
+            }
+            for ( Future<?> future : futures )
+            {
+                future.get();
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new TransferFailedException( "Interrupted", e );
+        }
+        catch ( ExecutionException e )
+        {
+            throw new TransferFailedException( "Commit worker failed", e.getCause() );
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        if ( !failures.isEmpty() )
+        {
+            throw new CommitException( "Failed to commit", new TreeMap<String, Exception>( failures ) );
+        }
+    }
+
+    private static class WorkerThreadFactory
+        implements ThreadFactory
+    {
+        private static final AtomicInteger SEQ = new AtomicInteger();
+
+        @Override
+        public Thread newThread( Runnable r )
+        {
+            Thread t = new Thread( r, "wagon-delayed-commit-" + SEQ.incrementAndGet() );
+            t.setDaemon( true );
+            return t;
+        }
+    }
+}
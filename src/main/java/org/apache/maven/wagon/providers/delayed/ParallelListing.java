@@ -0,0 +1,227 @@
+package org.apache.maven.wagon.providers.delayed;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.maven.wagon.ResourceDoesNotExistException;
+import org.apache.maven.wagon.TransferFailedException;
+import org.apache.maven.wagon.Wagon;
+
+/**
+ * Lists a remote subtree recursively through several underlying wagons at once.
+ */
+abstract class ParallelListing
+{
+    private static final long POLL_MILLIS = 10;
+
+    private final int threads;
+
+    /**
+     * @param threads maximum number of wagons to use
+     */
+    ParallelListing( int threads )
+    {
+        this.threads = threads;
+    }
+
+    /**
+     * @return a new connected wagon
+     * @throws Exception when unable to connect
+     */
+    abstract Wagon openWagon()
+        throws Exception;
+
+    /**
+     * @param wagon a wagon returned by {@link #openWagon()}
+     */
+    abstract void closeWagon( Wagon wagon );
+
+    /**
+     * Called by the worker threads with the complete listing of each directory.
+     *
+     * @param dir canonical directory name without the trailing "/", empty for the root
+     * @param entries the names returned by getFileList(), subdirectories with a trailing "/"
+     */
+    abstract void listed( String dir, List<String> entries );
+
+    /**
+     * List the subtree. A missing directory is skipped. No listing is started after the first failure, but the
+     * directories listed by then have been reported.
+     *
+     * @param wagon the connected underlying wagon, used as the first worker
+     * @param dir canonical directory name without the trailing "/", empty for the root
+     * @throws TransferFailedException when a listing fails
+     */
+    void run( Wagon wagon, String dir )
+        throws TransferFailedException
+    {
+        List<Wagon> wagons = new ArrayList<Wagon>();
+        wagons.add( wagon );
+        try
+        {
+            while ( wagons.size() < threads )
+            {
+                try
+                {
+                    wagons.add( openWagon() );
+                }
+                catch ( Exception e )
+                {
+                    // fewer workers
+                    break;
+                }
+            }
+            list( wagons, dir );
+        }
+        finally
+        {
+            for ( Wagon w : wagons.subList( 1, wagons.size() ) )
+            {
+                closeWagon( w );
+            }
+        }
+    }
+
+    private void list( List<Wagon> wagons, String dir )
+        throws TransferFailedException
+    {
+        final BlockingQueue<String> queue = new LinkedBlockingQueue<String>();
+        // directories queued or being listed
+        final AtomicInteger pending = new AtomicInteger( 1 );
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        queue.add( dir );
+
+        ExecutorService executor = Executors.newFixedThreadPool( wagons.size(), new WorkerThreadFactory() );
+        try
+        {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for ( final Wagon w : wagons )
+            {
+                futures.add( executor.submit( new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        while ( failure.get() == null && pending.get() != 0 )
+                        {
+                            String next;
+                            try
+                            {
+                                next = queue.poll( POLL_MILLIS, TimeUnit.MILLISECONDS );
+                            }
+                            catch ( InterruptedException e )
+                            {
+                                return;
+                            }
+                            if ( next != null )
+                            {
+                                try
+                                {
+                                    listOne( w, next, queue, pending );
+                                }
+                                catch ( Exception e )
+                                {
+                                    failure.compareAndSet( null, e );
+                                }
+                                finally
+                                {
+                                    pending.decrementAndGet();
+                                }
+                            }
+                        }
+                    }
+                } ) );
+            }
+            for ( Future<?> future : futures )
+            {
+                future.get();
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new TransferFailedException( "Interrupted", e );
+        }
+        catch ( ExecutionException e )
+        {
+            throw new TransferFailedException( "Listing worker failed", e.getCause() );
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        if ( failure.get() != null )
+        {
+            throw new TransferFailedException( "Failed to list " + dir, failure.get() );
+        }
+    }
+
+    private void listOne( Wagon w, String dir, BlockingQueue<String> queue, AtomicInteger pending )
+        throws Exception
+    {
+        List<String> entries;
+        try
+        {
+            entries = w.getFileList( dir );
+        }
+        catch ( ResourceDoesNotExistException e )
+        {
+            return;
+        }
+        listed( dir, entries );
+        String prefix = dir.length() == 0 ? dir : dir + "/";
+        for ( String entry : entries )
+        {
+            if ( entry.endsWith( "/" ) && entry.length() > 1 )
+            {
+                // before this directory is done, so that the workers keep polling
+                pending.incrementAndGet();
+                queue.add( prefix + entry.substring( 0, entry.length() - 1 ) );
+            }
+        }
+    }
+
+    private static class WorkerThreadFactory
+        implements ThreadFactory
+    {
+        private static final AtomicInteger SEQ = new AtomicInteger();
+
+        @Override
+        public Thread newThread( Runnable r )
+        {
+            Thread t = new Thread( r, "wagon-delayed-listing-" + SEQ.incrementAndGet() );
+            t.setDaemon( true );
+            return t;
+        }
+    }
+}
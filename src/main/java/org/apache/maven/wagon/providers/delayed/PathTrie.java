@@ -0,0 +1,176 @@
+package org.apache.maven.wagon.providers.delayed;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hierarchical index of canonical resource names, keyed by path segment.
+ * <p>
+ * A name ending with "/" marks a directory, any other name marks a file. Lookups cost time proportional to the path
+ * depth and the number of children, not to the number of indexed names.
+ * <p>
+ * Thread-safe. Writers are serialized, readers take no lock: the children live in concurrent maps and the marks and
+ * counts are volatile, written only by the writer holding the lock.
+ */
+final class PathTrie
+{
+    private static final class Node
+    {
+        private volatile Map<String, Node> children;
+
+        private volatile boolean file;
+
+        private volatile boolean dir;
+
+        /**
+         * number of file marks in this subtree, including this node
+         */
+        private volatile int files;
+
+        Node child( String name )
+        {
+            Map<String, Node> c = children;
+            return c == null ? null : c.get( name );
+        }
+    }
+
+    private volatile Node root = new Node();
+
+    /**
+     * Index a canonical resource name.
+     *
+     * @param name canonical resource name, with a trailing "/" for directories
+     */
+    synchronized void add( String name )
+    {
+        boolean isDir = name.endsWith( "/" );
+        String path = isDir ? name.substring( 0, name.length() - 1 ) : name;
+
+        Node node = root;
+        List<Node> trail = new ArrayList<Node>();
+        trail.add( node );
+        int start = 0;
+        while ( start < path.length() )
+        {
+            int i = path.indexOf( '/', start );
+            if ( i == -1 )
+            {
+                i = path.length();
+            }
+            String segment = path.substring( start, i );
+            Node next = node.child( segment );
+            if ( next == null )
+            {
+                next = new Node();
+                if ( node.children == null )
+                {
+                    node.children = new ConcurrentHashMap<String, Node>();
+                }
+                node.children.put( segment, next );
+            }
+            node = next;
+            trail.add( node );
+            start = i + 1;
+        }
+
+        if ( isDir )
+        {
+            node.dir = true;
+        }
+        else if ( !node.file )
+        {
+            node.file = true;
+            for ( Node n : trail )
+            {
+                // the only writer
+                n.files = n.files + 1;
+            }
+        }
+    }
+
+    /**
+     * @param name canonical resource name
+     * @return true if the exact name was indexed
+     */
+    boolean contains( String name )
+    {
+        boolean isDir = name.endsWith( "/" );
+        Node node = find( isDir ? name.substring( 0, name.length() - 1 ) : name );
+        return node != null && ( isDir ? node.dir : node.file );
+    }
+
+    /**
+     * @param dir canonical directory name without the trailing "/"
+     * @return true if some indexed name starts with <code>dir + "/"</code>
+     */
+    boolean isParent( String dir )
+    {
+        Node node = find( dir );
+        return node != null && ( node.dir || node.children != null );
+    }
+
+    /**
+     * @param dir canonical directory name without the trailing "/", empty for the root
+     * @return names of the direct children that are files or contain files
+     */
+    List<String> listChildren( String dir )
+    {
+        List<String> res = new ArrayList<String>();
+        Node node = find( dir );
+        Map<String, Node> children = node == null ? null : node.children;
+        if ( children != null )
+        {
+            for ( Map.Entry<String, Node> entry : children.entrySet() )
+            {
+                if ( entry.getValue().files != 0 )
+                {
+                    res.add( entry.getKey() );
+                }
+            }
+        }
+        return res;
+    }
+
+    synchronized void clear()
+    {
+        root = new Node();
+    }
+
+    private Node find( String path )
+    {
+        Node node = root;
+        int start = 0;
+        while ( node != null && start < path.length() )
+        {
+            int i = path.indexOf( '/', start );
+            if ( i == -1 )
+            {
+                i = path.length();
+            }
+            node = node.child( path.substring( start, i ) );
+            start = i + 1;
+        }
+        return node;
+    }
+}
@@ -0,0 +1,220 @@
+package org.apache.maven.wagon.providers.delayed;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.codehaus.plexus.util.FileUtils;
+
+/**
+ * Immutable canonical resource path: no leading or trailing "/", no empty, "." or ".." segments. The root is the
+ * empty path.
+ * <p>
+ * Paths come from an {@link Interner}, so equal paths are the same instance and every path links to the shared
+ * instance of its parent. The directory name with the trailing "/" is computed once per path.
+ */
+final class ResourcePath
+{
+    /**
+     * the root, its own parent
+     */
+    static final ResourcePath ROOT = new ResourcePath( "", null, 0 );
+
+    private final String name;
+
+    private final ResourcePath parent;
+
+    private final int depth;
+
+    private volatile String dirName;
+
+    private ResourcePath( String name, ResourcePath parent, int depth )
+    {
+        this.name = name;
+        this.parent = parent == null ? this : parent;
+        this.depth = depth;
+    }
+
+    /**
+     * @return the canonical name, empty for the root
+     */
+    String getName()
+    {
+        return name;
+    }
+
+    /**
+     * @return the canonical name with a trailing "/", empty for the root
+     */
+    String getDirName()
+    {
+        String res = dirName;
+        if ( res == null )
+        {
+            res = depth == 0 ? "" : name + "/";
+            dirName = res;
+        }
+        return res;
+    }
+
+    /**
+     * @return the parent directory, the root for the root
+     */
+    ResourcePath getParent()
+    {
+        return parent;
+    }
+
+    /**
+     * @return the number of segments, 0 for the root
+     */
+    int getDepth()
+    {
+        return depth;
+    }
+
+    /**
+     * @param other a path of the same interner
+     * @return the deepest path that is this one or an ancestor of it and of the other
+     */
+    ResourcePath commonAncestor( ResourcePath other )
+    {
+        ResourcePath a = this;
+        ResourcePath b = other;
+        while ( a.depth > b.depth )
+        {
+            a = a.parent;
+        }
+        while ( b.depth > a.depth )
+        {
+            b = b.parent;
+        }
+        while ( a != b )
+        {
+            a = a.parent;
+            b = b.parent;
+        }
+        return a;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return name.hashCode();
+    }
+
+    @Override
+    public boolean equals( Object obj )
+    {
+        return obj == this || obj instanceof ResourcePath && name.equals( ( (ResourcePath) obj ).name );
+    }
+
+    @Override
+    public String toString()
+    {
+        return name;
+    }
+
+    /**
+     * Normalize a resource name. Returns the argument itself when it is canonical already.
+     *
+     * @param s resource name, possibly with leading, trailing or repeated "/" and "." or ".." segments
+     * @return canonical name
+     */
+    static String canonical( String s )
+    {
+        if ( isCanonical( s ) )
+        {
+            return s;
+        }
+        // normalize only works reliably with /absolute/dirs/
+        String res = FileUtils.normalize( "/" + s + "/" );
+        return res.length() > 1 ? res.substring( 1, res.length() - 1 ) : "";
+    }
+
+    private static boolean isCanonical( String s )
+    {
+        int length = s.length();
+        int start = 0;
+        for ( int i = 0; i <= length; i++ )
+        {
+            if ( i == length || s.charAt( i ) == '/' )
+            {
+                int segment = i - start;
+                if ( length != 0 && ( segment == 0 || segment == 1 && s.charAt( start ) == '.'
+                    || segment == 2 && s.charAt( start ) == '.' && s.charAt( start + 1 ) == '.' ) )
+                {
+                    return false;
+                }
+                start = i + 1;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Table of interned paths.
+     * <p>
+     * Thread-safe.
+     */
+    static final class Interner
+    {
+        private final ConcurrentMap<String, ResourcePath> paths = new ConcurrentHashMap<String, ResourcePath>();
+
+        /**
+         * @param canonicalName canonical resource name, see {@link ResourcePath#canonical(String)}
+         * @return the shared instance
+         */
+        ResourcePath intern( String canonicalName )
+        {
+            if ( canonicalName.length() == 0 )
+            {
+                return ROOT;
+            }
+            ResourcePath res = paths.get( canonicalName );
+            if ( res == null )
+            {
+                int i = canonicalName.lastIndexOf( '/' );
+                ResourcePath parent = i == -1 ? ROOT : intern( canonicalName.substring( 0, i ) );
+                res = new ResourcePath( canonicalName, parent, parent.depth + 1 );
+                ResourcePath old = paths.putIfAbsent( canonicalName, res );
+                if ( old != null )
+                {
+                    res = old;
+                }
+            }
+            return res;
+        }
+
+        /**
+         * @return the number of interned paths
+         */
+        int size()
+        {
+            return paths.size();
+        }
+
+        void clear()
+        {
+            paths.clear();
+        }
+    }
+}
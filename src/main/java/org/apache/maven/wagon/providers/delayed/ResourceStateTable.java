@@ -0,0 +1,653 @@
+package org.apache.maven.wagon.providers.delayed;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * What a session knows about each canonical resource: the bounds of the remote timestamp and whether the resource is
+ * missing, added or listed.
+ * <p>
+ * A name ending with "/" denotes the directory and shares the record of the name without it, with separate flags.
+ * The records live in parallel arrays of an open-addressing table with linear probing, so that a session with
+ * hundreds of thousands of resources does not allocate an entry, a boxed stamp and a message per resource. Records
+ * are never removed, only their flags are cleared, until {@link #clear()}. The messages for missing resources are
+ * built on demand.
+ * <p>
+ * Thread-safe. The records are striped over segments by hash, each with its own lock, so that the transfer threads
+ * of a session rarely wait for each other; only the copies of the whole table visit every segment.
+ */
+final class ResourceStateTable
+{
+    /**
+     * returned when a bound is unknown
+     */
+    static final long NONE = Long.MIN_VALUE;
+
+    private static final int HI = 1;
+
+    private static final int LO = 1 << 1;
+
+    private static final int MISSING = 1 << 2;
+
+    private static final int ADDED = 1 << 3;
+
+    private static final int DIR_KNOWN = 1 << 4;
+
+    private static final int DIR_MISSING = 1 << 5;
+
+    private static final int DIR_ADDED = 1 << 6;
+
+    private static final int LISTED = 1 << 7;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    /**
+     * number of segments, a power of two
+     */
+    private static final int SEGMENTS = 16;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    ResourceStateTable()
+    {
+        for ( int i = 0; i < SEGMENTS; i++ )
+        {
+            segments[i] = new Segment();
+        }
+    }
+
+    /**
+     * @param name canonical resource name, with a trailing "/" for directories
+     * @return true if the resource is known to exist, i.e. has an upper bound
+     */
+    boolean isKnown( String name )
+    {
+        return segment( name ).isKnown( name );
+    }
+
+    /**
+     * @param name canonical resource name, with a trailing "/" for directories
+     * @return the upper bound of the remote timestamp or {@link #NONE}, always Long.MAX_VALUE for known directories
+     */
+    long getStampHi( String name )
+    {
+        return segment( name ).getStampHi( name );
+    }
+
+    /**
+     * @param name canonical resource name, with a trailing "/" for directories
+     * @param stamp the new upper bound, ignored for directories
+     * @return true if the resource was not known before
+     */
+    boolean putStampHi( String name, long stamp )
+    {
+        return segment( name ).putStampHi( name, stamp );
+    }
+
+    /**
+     * @param name canonical file resource name
+     * @return the lower bound of the remote timestamp or {@link #NONE}
+     */
+    long getStampLo( String name )
+    {
+        return segment( name ).getStampLo( name );
+    }
+
+    /**
+     * @param name canonical file resource name
+     * @param stamp the new lower bound
+     */
+    void putStampLo( String name, long stamp )
+    {
+        segment( name ).putStampLo( name, stamp );
+    }
+
+    /**
+     * @param name canonical file resource name
+     */
+    void removeStampLo( String name )
+    {
+        segment( name ).removeStampLo( name );
+    }
+
+    /**
+     * @param name canonical resource name, with a trailing "/" for directories
+     * @return true if the resource is known to be missing
+     */
+    boolean isMissing( String name )
+    {
+        return segment( name ).isMissing( name );
+    }
+
+    /**
+     * @param name canonical resource name, with a trailing "/" for directories
+     * @return the message for the missing resource or null if not missing
+     */
+    String getMissingMessage( String name )
+    {
+        return segment( name ).getMissingMessage( name );
+    }
+
+    /**
+     * @param name canonical resource name, with a trailing "/" for directories
+     * @param detail the message of the remote failure or null for the default message
+     */
+    void putMissing( String name, String detail )
+    {
+        segment( name ).putMissing( name, detail );
+    }
+
+    /**
+     * @param name canonical resource name, with a trailing "/" for directories
+     */
+    void removeMissing( String name )
+    {
+        segment( name ).removeMissing( name );
+    }
+
+    /**
+     * @param name canonical resource name, with a trailing "/" for directories
+     * @return true if the resource is added in this session
+     */
+    boolean isAdded( String name )
+    {
+        return segment( name ).isAdded( name );
+    }
+
+    /**
+     * @param name canonical resource name, with a trailing "/" for directories
+     */
+    void add( String name )
+    {
+        segment( name ).add( name );
+    }
+
+    /**
+     * @param name canonical resource name, with a trailing "/" for directories
+     */
+    void remove( String name )
+    {
+        segment( name ).remove( name );
+    }
+
+    /**
+     * @return the number of added names
+     */
+    int getAddedCount()
+    {
+        int res = 0;
+        for ( Segment s : segments )
+        {
+            res += s.getAddedCount();
+        }
+        return res;
+    }
+
+    /**
+     * @return a copy of the added names
+     */
+    Set<String> getAdded()
+    {
+        Set<String> res = new HashSet<String>();
+        for ( Segment s : segments )
+        {
+            s.getAdded( res );
+        }
+        return res;
+    }
+
+    void clearAdded()
+    {
+        for ( Segment s : segments )
+        {
+            s.clearAdded();
+        }
+    }
+
+    /**
+     * @param name canonical directory name with the trailing "/"
+     * @return true if the complete listing of the directory is known
+     */
+    boolean isListed( String name )
+    {
+        return segment( name ).isListed( name );
+    }
+
+    /**
+     * @param name canonical directory name with the trailing "/"
+     */
+    void setListed( String name )
+    {
+        segment( name ).setListed( name );
+    }
+
+    /**
+     * @return a copy of the upper bounds, by name
+     */
+    Map<String, Long> getStampsHi()
+    {
+        Map<String, Long> res = new HashMap<String, Long>();
+        for ( Segment s : segments )
+        {
+            s.getStampsHi( res );
+        }
+        return res;
+    }
+
+    /**
+     * @return a copy of the lower bounds, by name
+     */
+    Map<String, Long> getStampsLo()
+    {
+        Map<String, Long> res = new HashMap<String, Long>();
+        for ( Segment s : segments )
+        {
+            s.getStampsLo( res );
+        }
+        return res;
+    }
+
+    /**
+     * @return a copy of the missing names
+     */
+    Set<String> getMissing()
+    {
+        Set<String> res = new HashSet<String>();
+        for ( Segment s : segments )
+        {
+            s.getMissing( res );
+        }
+        return res;
+    }
+
+    /**
+     * @return the number of records, including those with no flags left
+     */
+    int size()
+    {
+        int res = 0;
+        for ( Segment s : segments )
+        {
+            res += s.size();
+        }
+        return res;
+    }
+
+    void clear()
+    {
+        for ( Segment s : segments )
+        {
+            s.clear();
+        }
+    }
+
+    /**
+     * The file and the directory of a name share the segment of the path without the trailing "/".
+     */
+    private Segment segment( String name )
+    {
+        return segments[hash( path( name ) ) >>> 28 & ( SEGMENTS - 1 )];
+    }
+
+    private static boolean isDir( String name )
+    {
+        return name.endsWith( "/" );
+    }
+
+    private static String path( String name )
+    {
+        return isDir( name ) ? name.substring( 0, name.length() - 1 ) : name;
+    }
+
+    private static int hash( String path )
+    {
+        int h = path.hashCode() * 0x9E3779B9;
+        return h ^ ( h >>> 16 );
+    }
+
+
+    /**
+     * One stripe of the table, guarded by its own monitor.
+     */
+    private static final class Segment
+    {
+        private String[] paths;
+
+        private long[] stampsHi;
+
+        private long[] stampsLo;
+
+        private int[] flags;
+
+        private int size;
+
+        private int added;
+
+        /**
+         * messages of the missing resources that differ from the default one
+         */
+        private final Map<String, String> details = new HashMap<String, String>();
+
+        Segment()
+        {
+            allocate( INITIAL_CAPACITY );
+        }
+
+        synchronized boolean isKnown( String name )
+        {
+            int i = find( path( name ) );
+            return i >= 0 && ( flags[i] & ( isDir( name ) ? DIR_KNOWN : HI ) ) != 0;
+        }
+
+        synchronized long getStampHi( String name )
+        {
+            int i = find( path( name ) );
+            if ( i < 0 )
+            {
+                return NONE;
+            }
+            if ( isDir( name ) )
+            {
+                return ( flags[i] & DIR_KNOWN ) != 0 ? Long.MAX_VALUE : NONE;
+            }
+            return ( flags[i] & HI ) != 0 ? stampsHi[i] : NONE;
+        }
+
+        synchronized boolean putStampHi( String name, long stamp )
+        {
+            int i = insert( path( name ) );
+            int flag = isDir( name ) ? DIR_KNOWN : HI;
+            boolean res = ( flags[i] & flag ) == 0;
+            flags[i] |= flag;
+            stampsHi[i] = isDir( name ) ? stampsHi[i] : stamp;
+            return res;
+        }
+
+        synchronized long getStampLo( String name )
+        {
+            int i = find( name );
+            return i >= 0 && ( flags[i] & LO ) != 0 ? stampsLo[i] : NONE;
+        }
+
+        synchronized void putStampLo( String name, long stamp )
+        {
+            int i = insert( name );
+            flags[i] |= LO;
+            stampsLo[i] = stamp;
+        }
+
+        synchronized void removeStampLo( String name )
+        {
+            clearFlag( name, LO );
+        }
+
+        synchronized boolean isMissing( String name )
+        {
+            int i = find( path( name ) );
+            return i >= 0 && ( flags[i] & ( isDir( name ) ? DIR_MISSING : MISSING ) ) != 0;
+        }
+
+        synchronized String getMissingMessage( String name )
+        {
+            if ( !isMissing( name ) )
+            {
+                return null;
+            }
+            String detail = details.get( name );
+            return "cached: " + ( detail != null ? detail : "missing resource: " + name );
+        }
+
+        synchronized void putMissing( String name, String detail )
+        {
+            int i = insert( path( name ) );
+            flags[i] |= isDir( name ) ? DIR_MISSING : MISSING;
+            if ( detail != null )
+            {
+                details.put( name, detail );
+            }
+            else
+            {
+                details.remove( name );
+            }
+        }
+
+        synchronized void removeMissing( String name )
+        {
+            if ( clearFlag( path( name ), isDir( name ) ? DIR_MISSING : MISSING ) )
+            {
+                details.remove( name );
+            }
+        }
+
+        synchronized boolean isAdded( String name )
+        {
+            int i = find( path( name ) );
+            return i >= 0 && ( flags[i] & ( isDir( name ) ? DIR_ADDED : ADDED ) ) != 0;
+        }
+
+        synchronized void add( String name )
+        {
+            int i = insert( path( name ) );
+            int flag = isDir( name ) ? DIR_ADDED : ADDED;
+            if ( ( flags[i] & flag ) == 0 )
+            {
+                flags[i] |= flag;
+                added++;
+            }
+        }
+
+        synchronized void remove( String name )
+        {
+            if ( clearFlag( path( name ), isDir( name ) ? DIR_ADDED : ADDED ) )
+            {
+                added--;
+            }
+        }
+
+        synchronized int getAddedCount()
+        {
+            return added;
+        }
+
+        synchronized void getAdded( Set<String> res )
+        {
+            for ( int i = 0; i < paths.length; i++ )
+            {
+                if ( paths[i] != null )
+                {
+                    if ( ( flags[i] & ADDED ) != 0 )
+                    {
+                        res.add( paths[i] );
+                    }
+                    if ( ( flags[i] & DIR_ADDED ) != 0 )
+                    {
+                        res.add( paths[i] + "/" );
+                    }
+                }
+            }
+        }
+
+        synchronized void clearAdded()
+        {
+            for ( int i = 0; i < flags.length; i++ )
+            {
+                flags[i] &= ~( ADDED | DIR_ADDED );
+            }
+            added = 0;
+        }
+
+        synchronized boolean isListed( String name )
+        {
+            int i = find( path( name ) );
+            return i >= 0 && ( flags[i] & LISTED ) != 0;
+        }
+
+        synchronized void setListed( String name )
+        {
+            flags[insert( path( name ) )] |= LISTED;
+        }
+
+        synchronized void getStampsHi( Map<String, Long> res )
+        {
+            for ( int i = 0; i < paths.length; i++ )
+            {
+                if ( paths[i] != null )
+                {
+                    if ( ( flags[i] & HI ) != 0 )
+                    {
+                        res.put( paths[i], stampsHi[i] );
+                    }
+                    if ( ( flags[i] & DIR_KNOWN ) != 0 )
+                    {
+                        res.put( paths[i] + "/", Long.MAX_VALUE );
+                    }
+                }
+            }
+        }
+
+        synchronized void getStampsLo( Map<String, Long> res )
+        {
+            for ( int i = 0; i < paths.length; i++ )
+            {
+                if ( paths[i] != null && ( flags[i] & LO ) != 0 )
+                {
+                    res.put( paths[i], stampsLo[i] );
+                }
+            }
+        }
+
+        synchronized void getMissing( Set<String> res )
+        {
+            for ( int i = 0; i < paths.length; i++ )
+            {
+                if ( paths[i] != null )
+                {
+                    if ( ( flags[i] & MISSING ) != 0 )
+                    {
+                        res.add( paths[i] );
+                    }
+                    if ( ( flags[i] & DIR_MISSING ) != 0 )
+                    {
+                        res.add( paths[i] + "/" );
+                    }
+                }
+            }
+        }
+
+        synchronized int size()
+        {
+            return size;
+        }
+
+        synchronized void clear()
+        {
+            allocate( INITIAL_CAPACITY );
+            details.clear();
+            size = 0;
+            added = 0;
+        }
+
+        private boolean clearFlag( String path, int flag )
+        {
+            int i = find( path );
+            if ( i < 0 || ( flags[i] & flag ) == 0 )
+            {
+                return false;
+            }
+            flags[i] &= ~flag;
+            return true;
+        }
+
+        private int find( String path )
+        {
+            int mask = paths.length - 1;
+            for ( int i = hash( path ) & mask;; i = ( i + 1 ) & mask )
+            {
+                String p = paths[i];
+                if ( p == null )
+                {
+                    return -1;
+                }
+                if ( p.equals( path ) )
+                {
+                    return i;
+                }
+            }
+        }
+
+        private int insert( String path )
+        {
+            int i = find( path );
+            if ( i >= 0 )
+            {
+                return i;
+            }
+            if ( ( size + 1 ) * 4 > paths.length * 3 )
+            {
+                grow();
+            }
+            int mask = paths.length - 1;
+            for ( i = hash( path ) & mask; paths[i] != null; i = ( i + 1 ) & mask )
+            {
+                // probe
+            }
+            paths[i] = path;
+            size++;
+            return i;
+        }
+
+        private void grow()
+        {
+            String[] oldPaths = paths;
+            long[] oldHi = stampsHi;
+            long[] oldLo = stampsLo;
+            int[] oldFlags = flags;
+            allocate( oldPaths.length * 2 );
+            int mask = paths.length - 1;
+            for ( int j = 0; j < oldPaths.length; j++ )
+            {
+                if ( oldPaths[j] != null )
+                {
+                    int i = hash( oldPaths[j] ) & mask;
+                    while ( paths[i] != null )
+                    {
+                        i = ( i + 1 ) & mask;
+                    }
+                    paths[i] = oldPaths[j];
+                    stampsHi[i] = oldHi[j];
+                    stampsLo[i] = oldLo[j];
+                    flags[i] = oldFlags[j];
+                }
+            }
+        }
+
+        private void allocate( int capacity )
+        {
+            paths = new String[capacity];
+            stampsHi = new long[capacity];
+            stampsLo = new long[capacity];
+            flags = new int[capacity];
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package org.apache.maven.wagon.providers.delayed;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import org.apache.maven.AbstractMavenLifecycleParticipant;
+import org.apache.maven.MavenExecutionException;
+import org.apache.maven.execution.MavenSession;
+import org.apache.maven.wagon.ConnectionException;
+import org.codehaus.plexus.component.annotations.Component;
+import org.codehaus.plexus.component.annotations.Requirement;
+import org.eclipse.aether.transport.wagon.WagonProvider;
+
+/**
+ * Commits the shared delayed sessions and waits for the asynchronous commits when the Maven session ends, before the
+ * build result is reported, so that a failed commit fails the build. {@link DelayedWagonProvider#dispose()} is too
+ * late for that.
+ */
+@Component( role = AbstractMavenLifecycleParticipant.class, hint = "wagon-delayed" )
+public class SessionEndCommitter
+    extends AbstractMavenLifecycleParticipant
+{
+    @Requirement( role = WagonProvider.class, hint = "plexus" )
+    private WagonProvider wagonProvider;
+
+    @Override
+    public void afterSessionEnd( MavenSession session )
+        throws MavenExecutionException
+    {
+        if ( wagonProvider instanceof DelayedWagonProvider )
+        {
+            DelayedWagonProvider provider = (DelayedWagonProvider) wagonProvider;
+            try
+            {
+                provider.awaitCommits();
+            }
+            catch ( ConnectionException e )
+            {
+                throw new MavenExecutionException( "Asynchronous commit of delayed wagon failed", e );
+            }
+            try
+            {
+                provider.commitSharedSessions();
+            }
+            catch ( ConnectionException e )
+            {
+                throw new MavenExecutionException( "Commit of shared delayed sessions failed", e );
+            }
+        }
+    }
+}
@@ -0,0 +1,336 @@
+package org.apache.maven.wagon.providers.delayed;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.util.List;
+
+import org.apache.maven.wagon.AbstractWagon;
+import org.apache.maven.wagon.ConnectionException;
+import org.apache.maven.wagon.ResourceDoesNotExistException;
+import org.apache.maven.wagon.TransferFailedException;
+import org.apache.maven.wagon.authentication.AuthenticationException;
+import org.apache.maven.wagon.authentication.AuthenticationInfo;
+import org.apache.maven.wagon.authorization.AuthorizationException;
+import org.apache.maven.wagon.events.TransferEvent;
+import org.apache.maven.wagon.proxy.ProxyInfo;
+import org.apache.maven.wagon.proxy.ProxyInfoProvider;
+import org.apache.maven.wagon.repository.Repository;
+import org.apache.maven.wagon.resource.Resource;
+
+/**
+ * Handle of a delayed session shared by the whole reactor. Transfers go to the shared {@link DelayedWagon}, transfer
+ * events come back to the listeners of this handle.
+ */
+final class SharedDelayedWagon
+    extends AbstractWagon
+{
+    private final SharedSessions sessions;
+
+    private final String roleHint;
+
+    private SharedSessions.Session session;
+
+    private Repository sessionRepository;
+
+    /**
+     * the commit failure of the last disconnect()
+     */
+    private ConnectionException commitException;
+
+    /**
+     * @param sessions the shared sessions
+     * @param roleHint the protocol
+     */
+    SharedDelayedWagon( SharedSessions sessions, String roleHint )
+    {
+        this.sessions = sessions;
+        this.roleHint = roleHint;
+    }
+
+    @Override
+    public void get( String resourceName, File destination )
+        throws TransferFailedException, ResourceDoesNotExistException, AuthorizationException
+    {
+        getIfNewer( resourceName, destination, 0 );
+    }
+
+    @Override
+    public boolean getIfNewer( String resourceName, File destination, long timestamp )
+        throws TransferFailedException, ResourceDoesNotExistException, AuthorizationException
+    {
+        SharedSessions.Session s = enter();
+        try
+        {
+            return s.getWagon().getIfNewer( resourceName, destination, timestamp );
+        }
+        finally
+        {
+            s.setCaller( null );
+        }
+    }
+
+    @Override
+    public void put( File source, String destination )
+        throws TransferFailedException, ResourceDoesNotExistException, AuthorizationException
+    {
+        SharedSessions.Session s = enter();
+        try
+        {
+            s.getWagon().put( source, destination );
+        }
+        finally
+        {
+            s.setCaller( null );
+        }
+    }
+
+    @Override
+    public void putDirectory( File sourceDirectory, String destinationDirectory )
+        throws TransferFailedException, ResourceDoesNotExistException, AuthorizationException
+    {
+        SharedSessions.Session s = enter();
+        try
+        {
+            s.getWagon().putDirectory( sourceDirectory, destinationDirectory );
+        }
+        finally
+        {
+            s.setCaller( null );
+        }
+    }
+
+    @Override
+    public boolean resourceExists( String resourceName )
+        throws TransferFailedException, AuthorizationException
+    {
+        SharedSessions.Session s = enter();
+        try
+        {
+            return s.getWagon().resourceExists( resourceName );
+        }
+        finally
+        {
+            s.setCaller( null );
+        }
+    }
+
+    @Override
+    public List<String> getFileList( String destinationDirectory )
+        throws TransferFailedException, ResourceDoesNotExistException, AuthorizationException
+    {
+        SharedSessions.Session s = enter();
+        try
+        {
+            return s.getWagon().getFileList( destinationDirectory );
+        }
+        finally
+        {
+            s.setCaller( null );
+        }
+    }
+
+    @Override
+    public boolean supportsDirectoryCopy()
+    {
+        return true;
+    }
+
+    @Override
+    public Repository getRepository()
+    {
+        return sessionRepository;
+    }
+
+    @Override
+    public void connect( Repository source )
+        throws ConnectionException, AuthenticationException
+    {
+        attach( source, null, null, null );
+    }
+
+    @Override
+    public void connect( Repository source, ProxyInfo proxyInfo )
+        throws ConnectionException, AuthenticationException
+    {
+        attach( source, null, proxyInfo, null );
+    }
+
+    @Override
+    public void connect( Repository source, ProxyInfoProvider proxyInfoProvider )
+        throws ConnectionException, AuthenticationException
+    {
+        attach( source, null, null, proxyInfoProvider );
+    }
+
+    @Override
+    public void connect( Repository source, AuthenticationInfo authenticationInfo )
+        throws ConnectionException, AuthenticationException
+    {
+        attach( source, authenticationInfo, null, null );
+    }
+
+    @Override
+    public void connect( Repository source, AuthenticationInfo authenticationInfo, ProxyInfo proxyInfo )
+        throws ConnectionException, AuthenticationException
+    {
+        attach( source, authenticationInfo, proxyInfo, null );
+    }
+
+    @Override
+    public void connect( Repository source, AuthenticationInfo authenticationInfo, ProxyInfoProvider proxyInfoProvider )
+        throws ConnectionException, AuthenticationException
+    {
+        attach( source, authenticationInfo, null, proxyInfoProvider );
+    }
+
+    @SuppressWarnings( "deprecation" )
+    @Override
+    public void openConnection()
+        throws ConnectionException, AuthenticationException
+    {
+        attach( repository, authenticationInfo, null, null );
+    }
+
+    @Override
+    public void disconnect()
+        throws ConnectionException
+    {
+        SharedSessions.Session s = session;
+        if ( s != null )
+        {
+            session = null;
+            try
+            {
+                sessions.detach( s );
+            }
+            catch ( ConnectionException e )
+            {
+                commitException = e;
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * @throws IllegalStateException when still connected or when the commit of the last disconnect() failed.
+     */
+    void validateCleanRelease()
+        throws IllegalStateException
+    {
+        if ( session != null )
+        {
+            throw new IllegalStateException( "Release of connected shared delayed wagon" );
+        }
+        if ( commitException != null )
+        {
+            throw new IllegalStateException( "Unclean release of shared delayed wagon", commitException );
+        }
+    }
+
+    @Override
+    protected void openConnectionInternal()
+        throws ConnectionException, AuthenticationException
+    {
+        // not called
+    }
+
+    @Override
+    protected void closeConnection()
+        throws ConnectionException
+    {
+        // not called
+    }
+
+    void forward( TransferEvent transferEvent )
+    {
+        Resource resource = transferEvent.getResource();
+        File file = transferEvent.getLocalFile();
+        boolean isGet = transferEvent.getRequestType() == TransferEvent.REQUEST_GET;
+        switch ( transferEvent.getEventType() )
+        {
+            case TransferEvent.TRANSFER_INITIATED:
+                if ( isGet )
+                {
+                    fireGetInitiated( resource, file );
+                }
+                else
+                {
+                    firePutInitiated( resource, file );
+                }
+                break;
+            case TransferEvent.TRANSFER_STARTED:
+                if ( isGet )
+                {
+                    fireGetStarted( resource, file );
+                }
+                else
+                {
+                    firePutStarted( resource, file );
+                }
+                break;
+            case TransferEvent.TRANSFER_COMPLETED:
+                if ( isGet )
+                {
+                    fireGetCompleted( resource, file );
+                }
+                else
+                {
+                    firePutCompleted( resource, file );
+                }
+                break;
+            case TransferEvent.TRANSFER_ERROR:
+                fireTransferError( resource, transferEvent.getException(), transferEvent.getRequestType() );
+                break;
+            default:
+                break;
+        }
+    }
+
+    void forwardProgress( TransferEvent transferEvent, byte[] buffer, int length )
+    {
+        fireTransferProgress( transferEvent, buffer, length );
+    }
+
+    private void attach( Repository source, AuthenticationInfo authenticationInfo, ProxyInfo proxyInfo,
+                         ProxyInfoProvider proxyInfoProvider )
+        throws ConnectionException, AuthenticationException
+    {
+        if ( session != null )
+        {
+            throw new IllegalStateException( "already connected" );
+        }
+        session = sessions.attach( roleHint, source, authenticationInfo, proxyInfo, proxyInfoProvider );
+        sessionRepository = source;
+        commitException = null;
+    }
+
+    private SharedSessions.Session enter()
+        throws TransferFailedException
+    {
+        SharedSessions.Session s = session;
+        if ( s == null )
+        {
+            throw new TransferFailedException( "not connected" );
+        }
+        s.setCaller( this );
+        return s;
+    }
+}
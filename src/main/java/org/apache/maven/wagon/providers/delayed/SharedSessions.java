@@ -0,0 +1,459 @@
+package org.apache.maven.wagon.providers.delayed;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.apache.maven.wagon.ConnectionException;
+import org.apache.maven.wagon.authentication.AuthenticationException;
+import org.apache.maven.wagon.authentication.AuthenticationInfo;
+import org.apache.maven.wagon.events.TransferEvent;
+import org.apache.maven.wagon.events.TransferListener;
+import org.apache.maven.wagon.proxy.ProxyInfo;
+import org.apache.maven.wagon.proxy.ProxyInfoProvider;
+import org.apache.maven.wagon.repository.Repository;
+
+/**
+ * Delayed wagons shared by all {@link SharedDelayedWagon} handles connected to the same repository URL with the same
+ * credentials, so that a whole reactor stages into one session and commits once.
+ */
+abstract class SharedSessions
+{
+    /**
+     * One connected delayed wagon and the number of handles connected to it.
+     */
+    static final class Session
+        implements TransferListener
+    {
+        private final String key;
+
+        private final DelayedWagon wagon;
+
+        private int users;
+
+        /**
+         * the handle whose transfer runs in the current thread, the delayed wagon fires events in the calling thread
+         */
+        private final ThreadLocal<SharedDelayedWagon> caller = new ThreadLocal<SharedDelayedWagon>();
+
+        Session( String key, DelayedWagon wagon )
+        {
+            this.key = key;
+            this.wagon = wagon;
+            wagon.addTransferListener( this );
+        }
+
+        DelayedWagon getWagon()
+        {
+            return wagon;
+        }
+
+        /**
+         * @param handle the handle to receive the transfer events of the current thread, null to stop
+         */
+        void setCaller( SharedDelayedWagon handle )
+        {
+            if ( handle == null )
+            {
+                caller.remove();
+            }
+            else
+            {
+                caller.set( handle );
+            }
+        }
+
+        @Override
+        public void transferInitiated( TransferEvent transferEvent )
+        {
+            forward( transferEvent );
+        }
+
+        @Override
+        public void transferStarted( TransferEvent transferEvent )
+        {
+            forward( transferEvent );
+        }
+
+        @Override
+        public void transferProgress( TransferEvent transferEvent, byte[] buffer, int length )
+        {
+            SharedDelayedWagon handle = caller.get();
+            if ( handle != null )
+            {
+                handle.forwardProgress( transferEvent, buffer, length );
+            }
+        }
+
+        @Override
+        public void transferCompleted( TransferEvent transferEvent )
+        {
+            forward( transferEvent );
+        }
+
+        @Override
+        public void transferError( TransferEvent transferEvent )
+        {
+            forward( transferEvent );
+        }
+
+        @Override
+        public void debug( String message )
+        {
+            // not needed
+        }
+
+        private void forward( TransferEvent transferEvent )
+        {
+            SharedDelayedWagon handle = caller.get();
+            if ( handle != null )
+            {
+                handle.forward( transferEvent );
+            }
+        }
+    }
+
+    /**
+     * the sessions by key, a session is connected by the first handle attaching to it and outside the lock
+     */
+    private final Map<String, FutureTask<Session>> sessions = new LinkedHashMap<String, FutureTask<Session>>();
+
+    /**
+     * @param roleHint the protocol
+     * @return a new delayed wagon, not connected
+     * @throws Exception when unable to look up the underlying wagon
+     */
+    abstract DelayedWagon newSessionWagon( String roleHint )
+        throws Exception;
+
+    /**
+     * Release the underlying wagon. Must not throw, a commit failure is reported once by the commit itself.
+     *
+     * @param wagon a disconnected wagon returned by {@link #newSessionWagon(String)}
+     */
+    abstract void releaseSessionWagon( DelayedWagon wagon );
+
+    /**
+     * @return true to commit a session as soon as its last handle disconnects, false to wait for {@link #commitAll()}
+     */
+    abstract boolean isCommitOnLastRelease();
+
+    /**
+     * Connect a handle to the session of the repository, connecting a new delayed wagon if needed. Handles attaching
+     * to the same repository wait for one connection, other repositories are not held up.
+     *
+     * @param roleHint the protocol
+     * @param source the repository
+     * @param authenticationInfo the credentials or null
+     * @param proxyInfo the proxy or null
+     * @param proxyInfoProvider the proxy provider or null
+     * @return the session
+     * @throws ConnectionException when unable to connect
+     * @throws AuthenticationException when unable to connect
+     */
+    Session attach( final String roleHint, final Repository source, final AuthenticationInfo authenticationInfo,
+                    final ProxyInfo proxyInfo, final ProxyInfoProvider proxyInfoProvider )
+        throws ConnectionException, AuthenticationException
+    {
+        final String key = key( roleHint, source, authenticationInfo );
+        while ( true )
+        {
+            FutureTask<Session> task;
+            boolean owner = false;
+            synchronized ( this )
+            {
+                task = sessions.get( key );
+                if ( task == null )
+                {
+                    task = new FutureTask<Session>( new Callable<Session>()
+                    {
+                        @Override
+                        public Session call()
+                            throws Exception
+                        {
+                            return connect( key, roleHint, source, authenticationInfo, proxyInfo, proxyInfoProvider );
+                        }
+                    } );
+                    sessions.put( key, task );
+                    owner = true;
+                }
+            }
+            if ( owner )
+            {
+                task.run();
+            }
+            Session session = await( key, task );
+            synchronized ( this )
+            {
+                // committed by commitAll() meanwhile, start a new session
+                if ( sessions.get( key ) == task )
+                {
+                    session.users++;
+                    return session;
+                }
+            }
+        }
+    }
+
+    private Session connect( String key, String roleHint, Repository source, AuthenticationInfo authenticationInfo,
+                             ProxyInfo proxyInfo, ProxyInfoProvider proxyInfoProvider )
+        throws ConnectionException, AuthenticationException
+    {
+        DelayedWagon wagon;
+        try
+        {
+            wagon = newSessionWagon( roleHint );
+        }
+        catch ( Exception e )
+        {
+            throw new ConnectionException( "Unable to look up the wagon for " + roleHint, e );
+        }
+        if ( wagon == null )
+        {
+            throw new ConnectionException( "Unsupported protocol: " + roleHint );
+        }
+        boolean connected = false;
+        try
+        {
+            if ( proxyInfoProvider != null )
+            {
+                wagon.connect( source, authenticationInfo, proxyInfoProvider );
+            }
+            else
+            {
+                wagon.connect( source, authenticationInfo, proxyInfo );
+            }
+            connected = true;
+        }
+        finally
+        {
+            if ( !connected )
+            {
+                releaseSessionWagon( wagon );
+            }
+        }
+        return new Session( key, wagon );
+    }
+
+    /**
+     * Wait for a session to be connected, forgetting it when the connection failed so that the next attach retries.
+     */
+    private Session await( String key, FutureTask<Session> task )
+        throws ConnectionException, AuthenticationException
+    {
+        try
+        {
+            return task.get();
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new ConnectionException( "Interrupted while connecting", e );
+        }
+        catch ( ExecutionException e )
+        {
+            synchronized ( this )
+            {
+                if ( sessions.get( key ) == task )
+                {
+                    sessions.remove( key );
+                }
+            }
+            Throwable cause = e.getCause();
+            if ( cause instanceof ConnectionException )
+            {
+                throw (ConnectionException) cause;
+            }
+            if ( cause instanceof AuthenticationException )
+            {
+                throw (AuthenticationException) cause;
+            }
+            if ( cause instanceof RuntimeException )
+            {
+                throw (RuntimeException) cause;
+            }
+            if ( cause instanceof Error )
+            {
+                throw (Error) cause;
+            }
+            throw new ConnectionException( cause.getMessage(), cause );
+        }
+    }
+
+    /**
+     * Disconnect a handle from its session, committing outside the lock.
+     *
+     * @param session the session returned by {@link #attach}
+     * @throws ConnectionException when the commit fails
+     */
+    void detach( Session session )
+        throws ConnectionException
+    {
+        synchronized ( this )
+        {
+            session.users--;
+            if ( session.users != 0 || !isCommitOnLastRelease() || !remove( session ) )
+            {
+                return;
+            }
+        }
+        commit( session );
+    }
+
+    /**
+     * Commit all sessions, normally when the build ends. The sessions are taken out under the lock and committed
+     * outside it, handles attaching meanwhile start new sessions.
+     *
+     * @throws ConnectionException with the first failure, after trying all sessions
+     */
+    void commitAll()
+        throws ConnectionException
+    {
+        List<FutureTask<Session>> tasks;
+        synchronized ( this )
+        {
+            tasks = new ArrayList<FutureTask<Session>>( sessions.values() );
+            sessions.clear();
+        }
+        ConnectionException failure = null;
+        boolean interrupted = false;
+        for ( FutureTask<Session> task : tasks )
+        {
+            Session session;
+            try
+            {
+                session = task.get();
+            }
+            catch ( InterruptedException e )
+            {
+                // still connecting, its handles hold a wagon that is never committed
+                interrupted = true;
+                if ( failure == null )
+                {
+                    failure = new ConnectionException( "Interrupted while committing", e );
+                }
+                continue;
+            }
+            catch ( ExecutionException e )
+            {
+                // reported to the handles that attached
+                continue;
+            }
+            try
+            {
+                commit( session );
+            }
+            catch ( ConnectionException e )
+            {
+                if ( failure == null )
+                {
+                    failure = e;
+                }
+            }
+        }
+        if ( interrupted )
+        {
+            Thread.currentThread().interrupt();
+        }
+        if ( failure != null )
+        {
+            throw failure;
+        }
+    }
+
+    /**
+     * @return the number of open sessions, including those still connecting
+     */
+    synchronized int size()
+    {
+        return sessions.size();
+    }
+
+    /**
+     * @return true if the session was still open and is now removed, the caller commits it
+     */
+    private boolean remove( Session session )
+    {
+        FutureTask<Session> task = sessions.get( session.key );
+        if ( task == null || !task.isDone() )
+        {
+            return false;
+        }
+        try
+        {
+            if ( task.get() != session )
+            {
+                return false;
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        catch ( ExecutionException e )
+        {
+            return false;
+        }
+        sessions.remove( session.key );
+        return true;
+    }
+
+    private void commit( Session session )
+        throws ConnectionException
+    {
+        try
+        {
+            session.wagon.disconnect();
+            session.wagon.awaitCommit();
+        }
+        catch ( RuntimeException e )
+        {
+            throw new ConnectionException( "Commit failed", e );
+        }
+        finally
+        {
+            session.wagon.removeTransferListener( session );
+            releaseSessionWagon( session.wagon );
+        }
+    }
+
+    private static String key( String roleHint, Repository source, AuthenticationInfo authenticationInfo )
+    {
+        List<String> fields = new ArrayList<String>();
+        fields.add( roleHint );
+        fields.add( source.getUrl() );
+        if ( authenticationInfo != null )
+        {
+            fields.add( authenticationInfo.getUserName() );
+            fields.add( authenticationInfo.getPassword() );
+            fields.add( authenticationInfo.getPrivateKey() );
+            fields.add( authenticationInfo.getPassphrase() );
+        }
+        // the secrets are not kept in the map
+        return MetadataCache.digestHex( fields.toString() );
+    }
+}
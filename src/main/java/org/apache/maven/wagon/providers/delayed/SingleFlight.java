@@ -0,0 +1,86 @@
+package org.apache.maven.wagon.providers.delayed;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Table of in-flight calls. Concurrent calls with the same key run once and share the result or the exception.
+ * <p>
+ * Thread-safe.
+ *
+ * @param <V> the result type
+ */
+final class SingleFlight<V>
+{
+    private final ConcurrentMap<String, FutureTask<V>> calls = new ConcurrentHashMap<String, FutureTask<V>>();
+
+    /**
+     * Run the call unless another thread is running a call with the same key, then wait for that one instead.
+     *
+     * @param key the key
+     * @param call the call
+     * @return the result of the call
+     * @throws Exception thrown by the call
+     */
+    V run( String key, Callable<V> call )
+        throws Exception
+    {
+        FutureTask<V> task = new FutureTask<V>( call );
+        FutureTask<V> running = calls.putIfAbsent( key, task );
+        if ( running == null )
+        {
+            try
+            {
+                task.run();
+            }
+            finally
+            {
+                calls.remove( key, task );
+            }
+            running = task;
+        }
+        try
+        {
+            return running.get();
+        }
+        catch ( ExecutionException e )
+        {
+            Throwable cause = e.getCause();
+            if ( cause instanceof Error )
+            {
+                throw (Error) cause;
+            }
+            throw (Exception) cause;
+        }
+    }
+
+    /**
+     * @return the number of calls in flight
+     */
+    int size()
+    {
+        return calls.size();
+    }
+}
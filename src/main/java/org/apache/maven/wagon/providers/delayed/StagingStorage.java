@@ -0,0 +1,99 @@
+package org.apache.maven.wagon.providers.delayed;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * Keeps the resources staged by put() until the commit.
+ * <p>
+ * Implementations are thread-safe; calls for the same resource are serialized by the caller.
+ */
+interface StagingStorage
+{
+    /**
+     * Stage a copy of a file, replacing the previously staged one.
+     *
+     * @param resourceName canonical resource name
+     * @param source the file to copy
+     * @return the digests of {@link Digests#STAGING_ALGORITHMS} by algorithm, computed in the same pass
+     * @throws IOException when unable to copy
+     */
+    Map<String, String> store( String resourceName, File source )
+        throws IOException;
+
+    /**
+     * Register a resource left staged as a file under the directory by a previous session.
+     *
+     * @param resourceName canonical resource name
+     */
+    void recover( String resourceName );
+
+    /**
+     * @param resourceName canonical resource name
+     * @return true if the resource is staged
+     */
+    boolean contains( String resourceName );
+
+    /**
+     * Copy a staged resource, replacing the destination.
+     *
+     * @param resourceName canonical resource name
+     * @param destination the destination file
+     * @throws IOException when unable to copy
+     */
+    void retrieve( String resourceName, File destination )
+        throws IOException;
+
+    /**
+     * @param resourceName canonical resource name
+     * @return the size of a staged resource
+     */
+    long getLength( String resourceName );
+
+    /**
+     * @param resourceName canonical resource name
+     * @return the content of a staged resource
+     * @throws IOException when unable to read
+     */
+    InputStream openStream( String resourceName )
+        throws IOException;
+
+    /**
+     * Unstage a resource.
+     *
+     * @param resourceName canonical resource name
+     */
+    void remove( String resourceName );
+
+    /**
+     * @param resourceName canonical resource name
+     * @return the file of a staged resource, null if it is not staged as a file
+     */
+    File getFile( String resourceName );
+
+    /**
+     * Forget all staged resources.
+     */
+    void clear();
+}
@@ -0,0 +1,40 @@
+package org.apache.maven.wagon.providers.delayed;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import org.apache.maven.wagon.Wagon;
+
+/**
+ * Source of additional underlying wagons, used by a DelayedWagon to transfer in parallel.
+ */
+public interface WagonLookup
+{
+    /**
+     * @return a new unconnected wagon of the same kind as the underlying wagon
+     * @throws Exception when the lookup fails
+     */
+    Wagon lookup()
+        throws Exception;
+
+    /**
+     * @param wagon a disconnected wagon obtained from {@link #lookup()}
+     */
+    void release( Wagon wagon );
+}
@@ -0,0 +1,213 @@
+package org.apache.maven.wagon.providers.delayed;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.nio.file.Files;
+
+import junit.framework.TestCase;
+
+import org.apache.maven.wagon.ConnectionException;
+import org.apache.maven.wagon.TransferFailedException;
+import org.apache.maven.wagon.Wagon;
+import org.apache.maven.wagon.repository.Repository;
+import org.codehaus.plexus.DefaultPlexusContainer;
+import org.codehaus.plexus.util.FileUtils;
+
+/**
+ * nope.
+ */
+public class AsyncCommitTest
+    extends TestCase
+{
+    private static final String URL = "scm:svn:file:///async-commit-test";
+
+    private File tmp;
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        tmp = Files.createTempDirectory( "async-commit-test" ).toFile();
+    }
+
+    @Override
+    protected void tearDown()
+        throws Exception
+    {
+        FileUtils.deleteDirectory( tmp );
+    }
+
+    private DelayedWagon connect( MemoryWagon remote )
+        throws Exception
+    {
+        DelayedWagon wagon = new DelayedWagon( remote );
+        wagon.setAsyncCommit( true );
+        wagon.connect( new Repository( "r", URL ) );
+        return wagon;
+    }
+
+    private void put( Wagon wagon, String content, String destination )
+        throws Exception
+    {
+        File source = File.createTempFile( "put", ".txt", tmp );
+        FileUtils.fileWrite( source, content );
+        wagon.put( source, destination );
+    }
+
+    /**
+     * @throws Exception nope.
+     */
+    public void testDisconnectReturnsBeforeTheCommit()
+        throws Exception
+    {
+        MemoryWagon remote = new MemoryWagon();
+        remote.putMillis = 300;
+        DelayedWagon wagon = connect( remote );
+        put( wagon, "a", "g/a.txt" );
+
+        wagon.disconnect();
+        assertTrue( wagon.isCommitPending() );
+        assertEquals( 0, remote.files.size() );
+
+        wagon.awaitCommit();
+        assertFalse( wagon.isCommitPending() );
+        assertEquals( "a", remote.files.get( "g/a.txt" ) );
+        wagon.validateCleanRelease();
+    }
+
+    /**
+     * @throws Exception nope.
+     */
+    public void testSecondDisconnectKeepsTheFailure()
+        throws Exception
+    {
+        MemoryWagon remote = new MemoryWagon();
+        remote.putMillis = 200;
+        remote.failingResource = "g/a.txt";
+        DelayedWagon wagon = connect( remote );
+        put( wagon, "a", "g/a.txt" );
+
+        wagon.disconnect();
+        wagon.disconnect();
+        try
+        {
+            wagon.awaitCommit();
+            fail( "the failure of the commit is lost" );
+        }
+        catch ( ConnectionException e )
+        {
+            // ok
+        }
+    }
+
+    /**
+     * @throws Exception nope.
+     */
+    public void testPutWhileCommittingIsRefused()
+        throws Exception
+    {
+        MemoryWagon remote = new MemoryWagon();
+        remote.putMillis = 300;
+        DelayedWagon wagon = connect( remote );
+        put( wagon, "a", "g/a.txt" );
+
+        wagon.disconnect();
+        try
+        {
+            put( wagon, "b", "g/b.txt" );
+            fail( "staged into a session being committed" );
+        }
+        catch ( TransferFailedException e )
+        {
+            // ok
+        }
+        wagon.awaitCommit();
+        assertEquals( 1, remote.files.size() );
+    }
+
+    /**
+     * @throws Exception nope.
+     */
+    public void testConnectWaitsForTheCommitToTheSameRepository()
+        throws Exception
+    {
+        MemoryWagon remote = new MemoryWagon();
+        remote.putMillis = 300;
+        DelayedWagon first = connect( remote );
+        put( first, "a", "g/a.txt" );
+        first.disconnect();
+
+        DelayedWagon second = connect( new MemoryWagon() );
+        assertFalse( first.isCommitPending() );
+        assertEquals( 1, remote.files.size() );
+        second.disconnect();
+        second.awaitCommit();
+        first.awaitCommit();
+    }
+
+    /**
+     * @throws Exception nope.
+     */
+    public void testProviderReleaseDoesNotWaitForTheCommit()
+        throws Exception
+    {
+        MemoryWagon remote = new MemoryWagon();
+        remote.putMillis = 300;
+        DefaultPlexusContainer container = new DefaultPlexusContainer();
+        try
+        {
+            container.addComponent( remote, Wagon.class, "scm" );
+            DelayedWagonProvider provider = new DelayedWagonProvider( container );
+            provider.setAsyncCommit( true );
+
+            Wagon wagon = provider.lookup( "scm" );
+            wagon.connect( new Repository( "r", URL ) );
+            put( wagon, "a", "g/a.txt" );
+            wagon.disconnect();
+            provider.release( wagon );
+            assertEquals( 0, remote.files.size() );
+
+            provider.awaitCommits();
+            assertEquals( "a", remote.files.get( "g/a.txt" ) );
+
+            remote.failingResource = "g/b.txt";
+            wagon = provider.lookup( "scm" );
+            wagon.connect( new Repository( "r", URL ) );
+            put( wagon, "b", "g/b.txt" );
+            wagon.disconnect();
+            provider.release( wagon );
+            try
+            {
+                provider.awaitCommits();
+                fail( "the failure of the commit is lost" );
+            }
+            catch ( ConnectionException e )
+            {
+                // ok
+            }
+            provider.awaitCommits();
+        }
+        finally
+        {
+            container.dispose();
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package org.apache.maven.wagon.providers.delayed;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.nio.file.Files;
+
+import junit.framework.TestCase;
+
+import org.apache.maven.wagon.repository.Repository;
+import org.codehaus.plexus.util.FileUtils;
+
+/**
+ * nope.
+ */
+public class CacheReaperTest
+    extends TestCase
+{
+    private File tmp;
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        tmp = Files.createTempDirectory( "cache-reaper-test" ).toFile();
+    }
+
+    @Override
+    protected void tearDown()
+        throws Exception
+    {
+        FileUtils.deleteDirectory( tmp );
+    }
+
+    private File mkdirs( String path )
+        throws Exception
+    {
+        File dir = new File( tmp, path );
+        assertTrue( dir.mkdirs() );
+        FileUtils.fileWrite( new File( dir, "file.txt" ), "x" );
+        return dir;
+    }
+
+    private static void awaitDeleted( File file )
+        throws Exception
+    {
+        for ( int i = 0; i < 1000 && file.exists(); i++ )
+        {
+            Thread.sleep( 10 );
+        }
+        assertFalse( file.getPath(), file.exists() );
+    }
+
+    private static void awaitEmpty( File dir )
+        throws Exception
+    {
+        for ( int i = 0; i < 1000 && dir.list().length > 0; i++ )
+        {
+            Thread.sleep( 10 );
+        }
+        assertEquals( 0, dir.list().length );
+    }
+
+    private static Thread findReaper()
+    {
+        for ( Thread t : Thread.getAllStackTraces().keySet() )
+        {
+            if ( t.getName().equals( "wagon-delayed-reaper" ) )
+            {
+                return t;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @throws Exception nope.
+     */
+    public void testSweepCollectsStaleTombstones()
+        throws Exception
+    {
+        File stale = mkdirs( "wagon-delayed123.deleting-1-2" );
+        File other = mkdirs( "other.deleting-x" );
+        CacheReaper.sweep( tmp );
+
+        awaitDeleted( stale );
+        assertTrue( other.isDirectory() );
+    }
+
+    /**
+     * @throws Exception nope.
+     */
+    public void testReaperRestartsAfterInterrupt()
+        throws Exception
+    {
+        CacheReaper.delete( mkdirs( "a" ) );
+        awaitEmpty( tmp );
+
+        Thread reaper = findReaper();
+        assertNotNull( reaper );
+        reaper.interrupt();
+        reaper.join( 10000 );
+        assertFalse( reaper.isAlive() );
+
+        CacheReaper.delete( mkdirs( "b" ) );
+        awaitEmpty( tmp );
+    }
+
+    /**
+     * @throws Exception nope.
+     */
+    public void testConnectSweepsTheExplicitCacheDir()
+        throws Exception
+    {
+        File cacheDir = new File( tmp, "cache" );
+        File stale = mkdirs( "cache/get.deleting-1-2" );
+        File staleSibling = mkdirs( "cache.deleting-3-4" );
+        DelayedWagon wagon = new DelayedWagon( new MemoryWagon() );
+        wagon.setCacheDir( cacheDir );
+        wagon.setAsyncDelete( true );
+        wagon.connect( new Repository( "r", "scm:svn:file:///cache-reaper-test" ) );
+        wagon.disconnect();
+
+        awaitDeleted( stale );
+        awaitDeleted( staleSibling );
+        wagon.validateCleanRelease();
+    }
+}
@@ -0,0 +1,116 @@
+package org.apache.maven.wagon.providers.delayed;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import org.apache.maven.wagon.repository.Repository;
+import org.codehaus.plexus.util.FileUtils;
+
+import junit.framework.TestCase;
+/**
+ * Test the commit journal.
+ */
+public class CommitJournalTest
+    extends TestCase
+{
+    private File dir;
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        super.setUp();
+        dir = new File( System.getProperty( "java.io.tmpdir" ), "wagon-delayed-" + getName() );
+        FileUtils.deleteDirectory( dir );
+    }
+
+    /**
+     * @throws Exception nope.
+     */
+    public void testResume()
+        throws Exception
+    {
+        File cacheDir = new File( dir, "cache" );
+        File stagingDir = new File( cacheDir, "put" );
+        FileUtils.fileWrite( new File( stagingDir, "a/1" ), "1" );
+        FileUtils.fileWrite( new File( stagingDir, "a/2" ), "22" );
+        FileUtils.fileWrite( new File( stagingDir, "a/3" ), "333" );
+
+        CommitJournal journal = new CommitJournal( cacheDir, stagingDir, "file:///repo" );
+        assertTrue( journal.open().isEmpty() );
+        journal.staged( "a/1", 100, 1 );
+        journal.staged( "a/2", 200, 2 );
+        journal.staged( "a/3", 300, 3 );
+        journal.committed( "a/1" );
+        journal.close();
+
+        // torn staged file
+        FileUtils.fileWrite( new File( stagingDir, "a/3" ), "3" );
+
+        journal = new CommitJournal( cacheDir, stagingDir, "file:///repo" );
+        Map<String, Long> recovered = journal.open();
+        assertEquals( Collections.singletonMap( "a/2", 200L ), recovered );
+        journal.close();
+
+        journal = new CommitJournal( cacheDir, stagingDir, "file:///other" );
+        assertTrue( journal.open().isEmpty() );
+        journal.delete();
+        assertFalse( CommitJournal.getFile( cacheDir ).exists() );
+    }
+
+    /**
+     * @throws Exception nope.
+     */
+    public void testJournalIsOptIn()
+        throws Exception
+    {
+        File cacheDir = new File( dir, "cache" );
+        File source = new File( dir, "a.txt" );
+        FileUtils.fileWrite( source, "a" );
+
+        DelayedWagon wagon = new DelayedWagon( new MemoryWagon() );
+        wagon.setCacheDir( cacheDir );
+        wagon.connect( new Repository( "r", "scm:svn:file:///repo" ) );
+        wagon.put( source, "g/a.txt" );
+        assertFalse( CommitJournal.getFile( cacheDir ).exists() );
+        wagon.disconnect();
+
+        wagon.setCommitJournal( true );
+        wagon.connect( new Repository( "r", "scm:svn:file:///repo" ) );
+        wagon.put( source, "g/a.txt" );
+        assertEquals( cacheDir, CommitJournal.getFile( cacheDir ).getParentFile() );
+        assertTrue( CommitJournal.getFile( cacheDir ).isFile() );
+        wagon.disconnect();
+        assertFalse( CommitJournal.getFile( cacheDir ).exists() );
+        assertEquals( Collections.singletonList( "cache" ), Arrays.asList( dir.list( new FilenameFilter()
+        {
+            @Override
+            public boolean accept( File d, String name )
+            {
+                return !name.equals( "a.txt" );
+            }
+        } ) ) );
+    }
+}
@@ -0,0 +1,153 @@
+package org.apache.maven.wagon.providers.delayed;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+/**
+ * Test the commit planner.
+ */
+public class CommitPlannerTest
+    extends TestCase
+{
+    /**
+     * @throws Exception nope.
+     */
+    public void testSingleSubtree()
+        throws Exception
+    {
+        checkPlan( 8, new String[] { "putDirectory foo/test-deploy-svn/" }, "foo/test-deploy-svn/maven-metadata.xml",
+                   "foo/test-deploy-svn/maven-metadata.xml.sha1",
+                   "foo/test-deploy-svn/0.1-SNAPSHOT/test-deploy-svn-0.1-20180301.144010-4.jar",
+                   "foo/test-deploy-svn/0.1-SNAPSHOT/test-deploy-svn-0.1-20180301.144010-4.pom" );
+        checkPlan( 8, new String[0] );
+        checkPlan( 8, new String[] { "put dir/" }, "dir/file-2.txt" );
+        checkPlan( 8, new String[] { "putDirectory " }, "file.txt", "dir/file-2.txt" );
+    }
+
+    /**
+     * @throws Exception nope.
+     */
+    public void testScatteredSubtrees()
+        throws Exception
+    {
+        String[] resources = { "com/a/x/1.0/x-1.0.jar", "com/a/x/1.0/x-1.0.pom", "com/a/x/maven-metadata.xml",
+            "com/a/y/1.0/y-1.0.pom", "org/b/z/2.0/z-2.0.jar", "org/b/z/2.0/z-2.0.pom" };
+
+        checkPlan( 1, new String[] { "putDirectory " }, resources );
+        checkPlan( 2, new String[] { "putDirectory com/a/", "putDirectory org/b/z/2.0/" }, resources );
+        checkPlan( 8, new String[] { "putDirectory com/a/x/", "put com/a/y/1.0/", "putDirectory org/b/z/2.0/" },
+                   resources );
+    }
+
+    /**
+     * @throws Exception nope.
+     */
+    public void testSingleCommit()
+        throws Exception
+    {
+        String[] resources = { "g/x/y/1.txt", "g/z/w/2.txt" };
+
+        checkPlan( 1, new String[] { "putDirectory g/" }, resources );
+        checkPlan( 8, new String[] { "put g/x/y/", "put g/z/w/" }, resources );
+    }
+
+    /**
+     * @throws Exception nope.
+     */
+    public void testCallCost()
+        throws Exception
+    {
+        // a put() per file pays a checkout and a commit per file
+        checkPlan( 8, new String[] { "putDirectory a/" }, "a/1.txt", "a/b/c/2.txt" );
+    }
+
+    /**
+     * @throws Exception nope.
+     */
+    public void testBatches()
+        throws Exception
+    {
+        List<String> files = Arrays.asList( "g/a/maven-metadata.xml", "g/a/1.0/a-1.0.jar", "g/a/1.0/a-1.0.pom",
+                                            "g/a/2.0/a-2.0.jar", "g/a/2.0/a-2.0.pom" );
+        Map<String, Long> lengths = new HashMap<String, Long>();
+        for ( String file : files )
+        {
+            lengths.put( file, file.endsWith( ".jar" ) ? 100L : 10L );
+        }
+        List<CommitPlanner.Step> steps = new ArrayList<CommitPlanner.Step>();
+        steps.add( new CommitPlanner.Step( "g/a/", true, files ) );
+
+        assertSame( steps.get( 0 ), CommitPlanner.batch( steps, lengths, 0, 0 ).get( 0 ) );
+        assertSame( steps.get( 0 ), CommitPlanner.batch( steps, lengths, 5, 1000 ).get( 0 ) );
+
+        List<CommitPlanner.Step> batches = CommitPlanner.batch( steps, lengths, 2, 0 );
+        assertEquals( "[putDirectory g/a/ [g/a/maven-metadata.xml, g/a/1.0/a-1.0.jar], "
+            + "putDirectory g/a/ [g/a/1.0/a-1.0.pom, g/a/2.0/a-2.0.jar], putDirectory g/a/2.0/ [g/a/2.0/a-2.0.pom]]",
+                      batches.toString() );
+        assertFalse( batches.get( 0 ).isWholeSubtree() );
+
+        batches = CommitPlanner.batch( steps, lengths, 0, 50 );
+        assertEquals( "[putDirectory g/a/ [g/a/maven-metadata.xml], putDirectory g/a/1.0/ [g/a/1.0/a-1.0.jar], "
+            + "putDirectory g/a/1.0/ [g/a/1.0/a-1.0.pom], putDirectory g/a/2.0/ [g/a/2.0/a-2.0.jar], "
+            + "putDirectory g/a/2.0/ [g/a/2.0/a-2.0.pom]]", batches.toString() );
+    }
+
+    private void checkPlan( int maxSubtrees, String[] expectedSteps, String... files )
+    {
+        Set<String> addedResources = new HashSet<String>();
+        for ( String s : files )
+        {
+            for ( ;; )
+            {
+                addedResources.add( s );
+                int i = s.lastIndexOf( '/' );
+                if ( i == -1 )
+                {
+                    break;
+                }
+                addedResources.add( s.substring( 0, i + 1 ) );
+                s = s.substring( 0, i );
+            }
+        }
+
+        int nFiles = 0;
+        List<String> actualSteps = new ArrayList<String>();
+        for ( CommitPlanner.Step step : CommitPlanner.plan( addedResources, maxSubtrees ) )
+        {
+            actualSteps.add( ( step.isPutDirectory() ? "putDirectory " : "put " ) + step.getDirectory() );
+            nFiles += step.getFiles().size();
+            for ( String file : step.getFiles() )
+            {
+                assertTrue( file, file.startsWith( step.getDirectory() ) );
+            }
+        }
+        assertEquals( Arrays.asList( expectedSteps ), actualSteps );
+        assertEquals( files.length, nFiles );
+    }
+}
@@ -0,0 +1,148 @@
+package org.apache.maven.wagon.providers.delayed;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.apache.maven.wagon.repository.Repository;
+import org.codehaus.plexus.util.FileUtils;
+
+/**
+ * nope.
+ */
+public class CommitWarmerTest
+    extends TestCase
+{
+    private File tmp;
+
+    private MemoryWagon remote;
+
+    private DelayedWagon wagon;
+
+    private final List<String> warmed = Collections.synchronizedList( new ArrayList<String>() );
+
+    private final CountDownLatch started = new CountDownLatch( 1 );
+
+    private final CountDownLatch release = new CountDownLatch( 1 );
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        tmp = Files.createTempDirectory( "commit-warmer-test" ).toFile();
+        remote = new MemoryWagon();
+        wagon = new DelayedWagon( remote );
+        wagon.setCommitWarmer( new CommitWarmer()
+        {
+            @Override
+            public void warm( DelayedWagon w, String directory )
+                throws Exception
+            {
+                warmed.add( directory );
+                started.countDown();
+                release.await( 10, TimeUnit.SECONDS );
+            }
+        } );
+        wagon.connect( new Repository( "r", "scm:svn:file:///commit-warmer-test" ) );
+    }
+
+    @Override
+    protected void tearDown()
+        throws Exception
+    {
+        release.countDown();
+        FileUtils.deleteDirectory( tmp );
+    }
+
+    private void put( String dir, int count )
+        throws Exception
+    {
+        for ( int i = 0; i < count; i++ )
+        {
+            File source = File.createTempFile( "put", ".txt", tmp );
+            FileUtils.fileWrite( source, dir + i );
+            wagon.put( source, dir + "/" + i + ".txt" );
+        }
+    }
+
+    /**
+     * @throws Exception nope.
+     */
+    public void testNoWarmupBeforeThePrefixIsStable()
+        throws Exception
+    {
+        put( "g/a", 7 );
+        wagon.disconnect();
+
+        assertTrue( warmed.isEmpty() );
+        assertEquals( 7, remote.files.size() );
+    }
+
+    /**
+     * @throws Exception nope.
+     */
+    public void testWarmupIsSkippedWhenACommitWaits()
+        throws Exception
+    {
+        put( "g/a", 8 );
+        assertTrue( started.await( 10, TimeUnit.SECONDS ) );
+        assertEquals( Collections.singletonList( "g/a" ), warmed );
+
+        // a second warm-up is queued behind the running one
+        put( "g/b", 8 );
+        Thread commit = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    wagon.disconnect();
+                }
+                catch ( Exception e )
+                {
+                    throw new IllegalStateException( e );
+                }
+            }
+        };
+        commit.start();
+        // the commit waits for the running warm-up
+        for ( int i = 0; i < 1000 && commit.getState() != Thread.State.WAITING; i++ )
+        {
+            Thread.sleep( 10 );
+        }
+        assertEquals( Thread.State.WAITING, commit.getState() );
+        release.countDown();
+        commit.join( 10000 );
+
+        assertFalse( commit.isAlive() );
+        assertEquals( 16, remote.files.size() );
+        // the queued warm-up gets the read lock past the waiting commit, but sees it and skips
+        assertEquals( Collections.singletonList( "g/a" ), warmed );
+    }
+}
@@ -0,0 +1,199 @@
+package org.apache.maven.wagon.providers.delayed;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import junit.framework.TestCase;
+
+import org.apache.maven.wagon.repository.Repository;
+import org.codehaus.plexus.util.FileUtils;
+
+/**
+ * nope.
+ */
+public class ConcurrentSessionTest
+    extends TestCase
+{
+    private static final int THREADS = 8;
+
+    private File tmp;
+
+    private MemoryWagon remote;
+
+    private DelayedWagon wagon;
+
+    /**
+     * The work of one thread.
+     */
+    interface Task
+    {
+        void run( int thread )
+            throws Exception;
+    }
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        tmp = Files.createTempDirectory( "concurrent-session-test" ).toFile();
+        remote = new MemoryWagon();
+        wagon = new DelayedWagon( remote );
+    }
+
+    @Override
+    protected void tearDown()
+        throws Exception
+    {
+        FileUtils.deleteDirectory( tmp );
+    }
+
+    /**
+     * Run the task on {@link #THREADS} threads started together and rethrow the first failure.
+     */
+    private void runConcurrently( final Task task )
+        throws Exception
+    {
+        final CyclicBarrier start = new CyclicBarrier( THREADS );
+        ExecutorService executor = Executors.newFixedThreadPool( THREADS );
+        try
+        {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for ( int t = 0; t < THREADS; t++ )
+            {
+                final int thread = t;
+                futures.add( executor.submit( new Callable<Void>()
+                {
+                    @Override
+                    public Void call()
+                        throws Exception
+                    {
+                        start.await();
+                        task.run( thread );
+                        return null;
+                    }
+                } ) );
+            }
+            for ( Future<Void> future : futures )
+            {
+                future.get();
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @throws Exception nope.
+     */
+    public void testConcurrentChecksShareOneRemoteCall()
+        throws Exception
+    {
+        for ( int i = 0; i < 20; i++ )
+        {
+            remote.files.put( "g/e/" + i + ".txt", "e" + i );
+        }
+        remote.existsMillis = 5;
+        wagon.connect( new Repository( "r", "scm:svn:file:///concurrent-session-test" ) );
+        runConcurrently( new Task()
+        {
+            @Override
+            public void run( int thread )
+                throws Exception
+            {
+                for ( int i = 0; i < 20; i++ )
+                {
+                    // staggered, so that some threads arrive as a flight ends
+                    Thread.sleep( thread % 3 );
+                    assertTrue( wagon.resourceExists( "g/e/" + i + ".txt" ) );
+                    assertFalse( wagon.resourceExists( "g/m/" + i + ".txt" ) );
+                }
+            }
+        } );
+        wagon.disconnect();
+
+        assertEquals( 40, remote.existsCalls.get() );
+    }
+
+    /**
+     * @throws Exception nope.
+     */
+    public void testConcurrentPutGetAndExists()
+        throws Exception
+    {
+        for ( int i = 0; i < 20; i++ )
+        {
+            remote.files.put( "g/e/" + i + ".txt", "e" + i );
+            remote.files.put( "g/g/" + i + ".txt", "g" + i );
+        }
+        wagon.connect( new Repository( "r", "scm:svn:file:///concurrent-session-test" ) );
+        runConcurrently( new Task()
+        {
+            @Override
+            public void run( int thread )
+                throws Exception
+            {
+                for ( int i = 0; i < 20; i++ )
+                {
+                    assertTrue( wagon.resourceExists( "g/e/" + i + ".txt" ) );
+                    assertFalse( wagon.resourceExists( "g/m/" + i + ".txt" ) );
+
+                    File got = new File( tmp, thread + "/g" + i + ".txt" );
+                    wagon.get( "g/g/" + i + ".txt", got );
+                    assertEquals( "g" + i, FileUtils.fileRead( got ) );
+
+                    String own = "t" + thread + "/" + i + ".txt";
+                    File source = new File( tmp, thread + "/" + i + ".txt" );
+                    FileUtils.fileWrite( source, thread + ":" + i );
+                    wagon.put( source, own );
+                    assertTrue( wagon.resourceExists( own ) );
+                    File back = new File( tmp, thread + "/back" + i + ".txt" );
+                    wagon.get( own, back );
+                    assertEquals( thread + ":" + i, FileUtils.fileRead( back ) );
+                }
+            }
+        } );
+        assertEquals( 0, remote.puts.get() );
+        wagon.disconnect();
+
+        assertEquals( 40 + THREADS * 20, remote.files.size() );
+        for ( int t = 0; t < THREADS; t++ )
+        {
+            for ( int i = 0; i < 20; i++ )
+            {
+                assertEquals( t + ":" + i, remote.files.get( "t" + t + "/" + i + ".txt" ) );
+            }
+        }
+        // one remote call per distinct remote resource, none for the session's own puts
+        assertEquals( 40, remote.existsCalls.get() );
+        assertEquals( 20, remote.gets.get() );
+        assertEquals( THREADS * 20, remote.puts.get() );
+    }
+}
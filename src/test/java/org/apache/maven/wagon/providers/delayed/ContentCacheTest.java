@@ -0,0 +1,124 @@
+package org.apache.maven.wagon.providers.delayed;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+
+import org.codehaus.plexus.util.FileUtils;
+
+import junit.framework.TestCase;
+
+/**
+ * Test the content cache.
+ */
+public class ContentCacheTest
+    extends TestCase
+{
+    private File dir;
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        super.setUp();
+        dir = new File( System.getProperty( "java.io.tmpdir" ), "wagon-delayed-" + getName() );
+        FileUtils.deleteDirectory( dir );
+    }
+
+    /**
+     * @throws Exception nope.
+     */
+    public void testEviction()
+        throws Exception
+    {
+        File src = new File( dir, "src" );
+        FileUtils.fileWrite( src, "0123456789" );
+        File dst = new File( dir, "dst" );
+
+        ContentCache cache = new ContentCache( new File( dir, "cache" ), "file:///repo", 25, true );
+        cache.put( "a/1", 100, src );
+        cache.put( "a/2", 200, src );
+        assertTrue( cache.get( "a/1", 100, dst ) );
+        assertFalse( cache.get( "a/1", 101, dst ) );
+        // evicts the least recently used a/2
+        cache.put( "a/3", 300, src );
+        assertEquals( 20, cache.getSize() );
+        assertNull( cache.getStamp( "a/2" ) );
+        cache.save();
+
+        cache = new ContentCache( new File( dir, "cache" ), "file:///repo", 25, true );
+        cache.load();
+        assertEquals( Long.valueOf( 100 ), cache.getStamp( "a/1" ) );
+        assertEquals( Long.valueOf( 300 ), cache.getStamp( "a/3" ) );
+        assertTrue( cache.get( "a/3", 300, dst ) );
+        assertEquals( "0123456789", FileUtils.fileRead( dst ) );
+
+        cache = new ContentCache( new File( dir, "cache" ), "file:///other", 25, true );
+        cache.load();
+        assertNull( cache.getStamp( "a/1" ) );
+    }
+
+    /**
+     * @throws Exception nope.
+     */
+    public void testCorruptCopyIsDropped()
+        throws Exception
+    {
+        File src = new File( dir, "src" );
+        FileUtils.fileWrite( src, "0123456789" );
+        File dst = new File( dir, "dst" );
+
+        ContentCache cache = new ContentCache( new File( dir, "cache" ), "file:///repo", 25, false );
+        cache.put( "a/1", 100, src );
+        cache.save();
+        // same length, other content
+        File data = new File( dir, "cache/" + MetadataCache.digestHex( "file:///repo" ) + "/data/a/1" );
+        FileUtils.fileWrite( data, "9876543210" );
+
+        cache = new ContentCache( new File( dir, "cache" ), "file:///repo", 25, false );
+        cache.load();
+        assertEquals( Long.valueOf( 100 ), cache.getStamp( "a/1" ) );
+        assertFalse( cache.get( "a/1", 100, dst ) );
+        assertFalse( dst.exists() );
+        assertNull( cache.getStamp( "a/1" ) );
+        assertEquals( 0, cache.getSize() );
+    }
+
+    /**
+     * @throws Exception nope.
+     */
+    public void testBuildsSharingTheCacheLeaveNoTemporaryFiles()
+        throws Exception
+    {
+        File src = new File( dir, "src" );
+        FileUtils.fileWrite( src, "0123456789" );
+        File other = new File( dir, "other" );
+        FileUtils.fileWrite( other, "9876543210" );
+
+        ContentCache first = new ContentCache( new File( dir, "cache" ), "file:///repo", 25, false );
+        ContentCache second = new ContentCache( new File( dir, "cache" ), "file:///repo", 25, false );
+        first.put( "a/1", 100, src );
+        second.put( "a/1", 200, other );
+
+        File data = new File( dir, "cache/" + MetadataCache.digestHex( "file:///repo" ) + "/data/a" );
+        assertEquals( 1, data.list().length );
+        assertEquals( "9876543210", FileUtils.fileRead( new File( data, "1" ) ) );
+    }
+}
@@ -0,0 +1,119 @@
+package org.apache.maven.wagon.providers.delayed;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.ObjectName;
+
+import junit.framework.TestCase;
+
+/**
+ * nope.
+ */
+public class DelayedWagonMetricsTest
+    extends TestCase
+{
+    /**
+     * @throws Exception nope.
+     */
+    public void testCountersAndRegistry()
+        throws Exception
+    {
+        final List<String> updates = new ArrayList<String>();
+        DelayedWagonMetrics metrics = new DelayedWagonMetrics();
+        metrics.setRegistry( new MetricsRegistry()
+        {
+            @Override
+            public void count( String counter, long delta )
+            {
+                updates.add( counter + "+" + delta );
+            }
+
+            @Override
+            public void time( String phase, long nanos )
+            {
+                updates.add( phase );
+            }
+        } );
+
+        metrics.count( DelayedWagonMetrics.GET_HITS );
+        metrics.count( DelayedWagonMetrics.GET_HITS );
+        metrics.count( DelayedWagonMetrics.STAGED_BYTES, 100 );
+        metrics.time( DelayedWagonMetrics.COMMIT, System.nanoTime() - 5000000 );
+
+        assertEquals( 2, metrics.getGetHits() );
+        assertEquals( 0, metrics.getGetMisses() );
+        assertEquals( 100, metrics.getStagedBytes() );
+        assertEquals( 1, metrics.getCommits() );
+        assertTrue( metrics.getCommitMillis() >= 5 );
+        assertEquals( "[get.hits+1, get.hits+1, staged.bytes+100, commit]", updates.toString() );
+
+        metrics.reset();
+        assertEquals( 0, metrics.getGetHits() );
+        assertEquals( 0, metrics.getCommitMillis() );
+        assertEquals( 0, metrics.getCommits() );
+    }
+
+    /**
+     * nope.
+     */
+    public static class NullRegistry
+        implements MetricsRegistry
+    {
+        @Override
+        public void count( String counter, long delta )
+        {
+        }
+
+        @Override
+        public void time( String phase, long nanos )
+        {
+        }
+    }
+
+    /**
+     * @throws Exception nope.
+     */
+    public void testRegistryFallback()
+        throws Exception
+    {
+        assertNull( DelayedWagonMetrics.newRegistry( null ) );
+        assertNull( DelayedWagonMetrics.newRegistry( "org.example.NoSuchRegistry" ) );
+        assertNull( DelayedWagonMetrics.newRegistry( String.class.getName() ) );
+        assertTrue( DelayedWagonMetrics.newRegistry( NullRegistry.class.getName() ) instanceof NullRegistry );
+    }
+
+    /**
+     * @throws Exception nope.
+     */
+    public void testDefaultIsRegistered()
+        throws Exception
+    {
+        DelayedWagonMetrics metrics = DelayedWagonMetrics.getDefault();
+        assertSame( metrics, DelayedWagonMetrics.getDefault() );
+        metrics.count( DelayedWagonMetrics.NEGATIVE_HITS );
+        Object hits = ManagementFactory.getPlatformMBeanServer()
+            .getAttribute( new ObjectName( DelayedWagonMetrics.OBJECT_NAME ), "NegativeHits" );
+        assertEquals( metrics.getNegativeHits(), hits );
+    }
+}
@@ -0,0 +1,71 @@
+package org.apache.maven.wagon.providers.delayed;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.maven.wagon.events.TransferEvent;
+import org.apache.maven.wagon.events.TransferListener;
+
+/**
+ * Records the transfer events.
+ */
+class EventRecorder
+    implements TransferListener
+{
+    final List<String> events = new ArrayList<String>();
+
+    @Override
+    public void transferInitiated( TransferEvent transferEvent )
+    {
+        events.add( "initiated " + transferEvent.getResource().getName() );
+    }
+
+    @Override
+    public void transferStarted( TransferEvent transferEvent )
+    {
+        events.add( "started " + transferEvent.getResource().getName() );
+    }
+
+    @Override
+    public void transferProgress( TransferEvent transferEvent, byte[] buffer, int length )
+    {
+        // not needed
+    }
+
+    @Override
+    public void transferCompleted( TransferEvent transferEvent )
+    {
+        events.add( "completed " + transferEvent.getResource().getName() );
+    }
+
+    @Override
+    public void transferError( TransferEvent transferEvent )
+    {
+        events.add( "error " + transferEvent.getResource().getName() );
+    }
+
+    @Override
+    public void debug( String message )
+    {
+        // not needed
+    }
+}
@@ -0,0 +1,123 @@
+package org.apache.maven.wagon.providers.delayed;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.codehaus.plexus.util.FileUtils;
+
+/**
+ * nope.
+ */
+public class FileTransferTest
+    extends TestCase
+{
+    private static final long MTIME = 1500000000000L;
+
+    private File tmp;
+
+    private File source;
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        tmp = Files.createTempDirectory( "file-transfer-test" ).toFile();
+        source = new File( tmp, "source.txt" );
+        FileUtils.fileWrite( source, "content" );
+        assertTrue( source.setLastModified( MTIME ) );
+    }
+
+    @Override
+    protected void tearDown()
+        throws Exception
+    {
+        FileUtils.deleteDirectory( tmp );
+    }
+
+    /**
+     * @throws Exception nope.
+     */
+    public void testCopyWithoutLink()
+        throws Exception
+    {
+        File destination = new File( tmp, "a/b/destination.txt" );
+        FileUtils.fileWrite( destination, "old" );
+        FileTransfer.copy( source, destination, false );
+
+        assertEquals( "content", FileUtils.fileRead( destination ) );
+        assertFalse( Files.isSameFile( source.toPath(), destination.toPath() ) );
+        assertEquals( MTIME, destination.lastModified() );
+    }
+
+    /**
+     * @throws Exception nope.
+     */
+    public void testCopyWithDigestsKeepsTheModificationTime()
+        throws Exception
+    {
+        File destination = new File( tmp, "destination.txt" );
+        Map<String, String> digests = FileTransfer.copyWithDigests( source, destination, false );
+
+        assertEquals( "content", FileUtils.fileRead( destination ) );
+        assertEquals( MTIME, destination.lastModified() );
+        assertEquals( Digests.digest( source, "SHA-1" ), digests.get( "SHA-1" ) );
+        assertFalse( Files.isSameFile( source.toPath(), destination.toPath() ) );
+    }
+
+    /**
+     * @throws Exception nope.
+     */
+    public void testLinkedCopyIsReplacedNotModified()
+        throws Exception
+    {
+        File destination = new File( tmp, "destination.txt" );
+        FileTransfer.copy( source, destination, true );
+        assertEquals( "content", FileUtils.fileRead( destination ) );
+        assertEquals( MTIME, destination.lastModified() );
+
+        File other = new File( tmp, "other.txt" );
+        FileUtils.fileWrite( other, "other" );
+        FileTransfer.copy( other, destination, true );
+        assertEquals( "other", FileUtils.fileRead( destination ) );
+        assertEquals( "content", FileUtils.fileRead( source ) );
+    }
+
+    /**
+     * @throws Exception nope.
+     */
+    public void testOnlyUnsupportedLinksAreRemembered()
+        throws Exception
+    {
+        String path = source.getPath();
+        assertTrue( FileTransfer.isUnsupported( new FileSystemException( path, null, "Operation not supported" ) ) );
+        assertFalse( FileTransfer.isUnsupported( new AccessDeniedException( path, null, "Permission denied" ) ) );
+        assertFalse( FileTransfer.isUnsupported( new FileSystemException( path, null, "Too many links" ) ) );
+        assertFalse( FileTransfer.isUnsupported( new FileSystemException( path, null, "Operation not permitted" ) ) );
+        assertFalse( FileTransfer.isUnsupported( new IOException( "not supported" ) ) );
+    }
+}
@@ -0,0 +1,87 @@
+package org.apache.maven.wagon.providers.delayed;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * Test the write-behind tracker.
+ */
+public class FlushTrackerTest
+    extends TestCase
+{
+    /**
+     * @throws Exception nope.
+     */
+    public void testQuietAndSize()
+        throws Exception
+    {
+        FlushTracker tracker = new FlushTracker();
+        tracker.staged( "g/a/1.0/", "g/a/1.0/a-1.0.jar", 100, 1000 );
+        assertEquals( 110, tracker.staged( "g/a/1.0/", "g/a/1.0/a-1.0.pom", 10, 1500 ) );
+        assertNull( tracker.take( "g/a/1.0/", 1000, 0, 2000 ) );
+        assertNull( tracker.take( "g/a/", 1000, 0, 5000 ) );
+
+        Map<String, Long> versions = tracker.take( "g/a/1.0/", 1000, 0, 2500 );
+        assertEquals( Arrays.asList( "g/a/1.0/a-1.0.jar", "g/a/1.0/a-1.0.pom" ),
+                      new ArrayList<String>( versions.keySet() ) );
+        assertNull( tracker.take( "g/a/1.0/", 1000, 0, 2500 ) );
+
+        // staged again during the flush
+        tracker.staged( "g/a/1.0/", "g/a/1.0/a-1.0.pom", 10, 2600 );
+        assertTrue( tracker.isCurrent( "g/a/1.0/a-1.0.jar", versions.get( "g/a/1.0/a-1.0.jar" ) ) );
+        assertFalse( tracker.isCurrent( "g/a/1.0/a-1.0.pom", versions.get( "g/a/1.0/a-1.0.pom" ) ) );
+        tracker.flushed( "g/a/1.0/a-1.0.jar" );
+        assertFalse( tracker.isCurrent( "g/a/1.0/a-1.0.jar", versions.get( "g/a/1.0/a-1.0.jar" ) ) );
+
+        assertNull( tracker.take( "g/a/1.0/", 0, 100, 2600 ) );
+        tracker.staged( "g/a/1.0/", "g/a/1.0/a-1.0.jar", 100, 2700 );
+        assertEquals( 2, tracker.take( "g/a/1.0/", 0, 100, 2700 ).size() );
+    }
+
+    /**
+     * @throws Exception nope.
+     */
+    public void testOneTaskPerDirectory()
+        throws Exception
+    {
+        FlushTracker tracker = new FlushTracker();
+        tracker.staged( "g/a/", "g/a/1.txt", 10, 1000 );
+        assertTrue( tracker.claimTask( "g/a/", false ) );
+        tracker.staged( "g/a/", "g/a/2.txt", 10, 1200 );
+        assertFalse( tracker.claimTask( "g/a/", false ) );
+        // the size-triggered flush is claimed separately
+        assertTrue( tracker.claimTask( "g/a/", true ) );
+        assertFalse( tracker.claimTask( "g/a/", true ) );
+        assertTrue( tracker.claimTask( "g/b/", false ) );
+
+        // the timer of the first put fires before the directory is quiet
+        assertEquals( 200, tracker.releaseTask( "g/a/", false, 1000, 2000 ) );
+        assertTrue( tracker.claimTask( "g/a/", false ) );
+        assertEquals( 0, tracker.releaseTask( "g/a/", false, 1000, 2200 ) );
+        assertEquals( 2, tracker.take( "g/a/", 1000, 0, 2200 ).size() );
+        assertEquals( 0, tracker.releaseTask( "g/a/", true, 1000, 2200 ) );
+        assertTrue( tracker.claimTask( "g/a/", true ) );
+    }
+}
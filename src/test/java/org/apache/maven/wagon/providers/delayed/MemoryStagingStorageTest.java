@@ -0,0 +1,90 @@
+package org.apache.maven.wagon.providers.delayed;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.util.Map;
+
+import org.codehaus.plexus.util.FileUtils;
+
+import junit.framework.TestCase;
+/**
+ * Test the memory staging storage.
+ */
+public class MemoryStagingStorageTest
+    extends TestCase
+{
+    private File dir;
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        super.setUp();
+        dir = new File( System.getProperty( "java.io.tmpdir" ), "wagon-delayed-" + getName() );
+        FileUtils.deleteDirectory( dir );
+    }
+
+    /**
+     * @throws Exception nope.
+     */
+    public void testSpill()
+        throws Exception
+    {
+        File small = new File( dir, "small" );
+        FileUtils.fileWrite( small, "0123" );
+        File large = new File( dir, "large" );
+        FileUtils.fileWrite( large, "0123456789" );
+        File staging = new File( dir, "staging" );
+
+        MemoryStagingStorage storage =
+            new MemoryStagingStorage( 10, 8, new FileStagingStorage( staging, false ) );
+        assertEquals( "c4b5c86bd577da3d93fea7c89cba61c78b48e589", storage.store( "a/1", small ).get( "SHA-1" ) );
+        Map<String, String> digests = storage.store( "a/2", large );
+        assertEquals( "87acec17cd9dcd20a716cc2cf67417b71c8a7016", digests.get( "SHA-1" ) );
+        assertEquals( "781e5e245d69b566979b86e28d23f2c7", digests.get( "MD5" ) );
+        storage.store( "a/3", small );
+        // over the budget
+        storage.store( "a/4", small );
+        assertEquals( 8, storage.getUsed() );
+        assertFalse( new File( staging, "a/1" ).exists() );
+        assertTrue( new File( staging, "a/2" ).isFile() );
+        assertTrue( new File( staging, "a/4" ).isFile() );
+        assertTrue( storage.contains( "a/4" ) );
+        assertFalse( storage.contains( "a/5" ) );
+
+        // replacing releases the old buffer
+        storage.store( "a/1", small );
+        assertEquals( 8, storage.getUsed() );
+
+        File dst = new File( dir, "dst" );
+        storage.retrieve( "a/3", dst );
+        assertEquals( "0123", FileUtils.fileRead( dst ) );
+
+        // buffered resources have no file
+        assertNull( storage.getFile( "a/1" ) );
+        assertEquals( new File( staging, "a/2" ), storage.getFile( "a/2" ) );
+        assertNull( storage.getFile( "a/5" ) );
+
+        storage.clear();
+        assertEquals( 0, storage.getUsed() );
+        assertFalse( storage.contains( "a/2" ) );
+    }
+}
@@ -0,0 +1,329 @@
+package org.apache.maven.wagon.providers.delayed;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.maven.wagon.AbstractWagon;
+import org.apache.maven.wagon.ConnectionException;
+import org.apache.maven.wagon.ResourceDoesNotExistException;
+import org.apache.maven.wagon.StreamingWagon;
+import org.apache.maven.wagon.TransferFailedException;
+import org.apache.maven.wagon.authentication.AuthenticationException;
+import org.apache.maven.wagon.resource.Resource;
+
+/**
+ * Underlying wagon keeping the remote files in memory, for tests that do not need a real repository.
+ */
+class MemoryWagon
+    extends AbstractWagon
+    implements StreamingWagon
+{
+    /**
+     * remote content by resource name
+     */
+    final Map<String, String> files;
+
+    /**
+     * put() of this resource fails
+     */
+    volatile String failingResource;
+
+    /**
+     * put() sleeps this long
+     */
+    volatile long putMillis;
+
+    /**
+     * number of put() and putFromStream() calls
+     */
+    final AtomicInteger puts;
+
+    /**
+     * number of putFromStream() calls
+     */
+    final AtomicInteger streamedPuts;
+
+    /**
+     * number of get() and getIfNewer() calls
+     */
+    final AtomicInteger gets;
+
+    /**
+     * number of resourceExists() calls
+     */
+    final AtomicInteger existsCalls;
+
+    /**
+     * resourceExists() sleeps this long
+     */
+    volatile long existsMillis;
+
+    /**
+     * supportsDirectoryCopy() answers this
+     */
+    volatile boolean directoryCopy;
+
+    MemoryWagon()
+    {
+        files = new ConcurrentHashMap<String, String>();
+        puts = new AtomicInteger();
+        streamedPuts = new AtomicInteger();
+        gets = new AtomicInteger();
+        existsCalls = new AtomicInteger();
+    }
+
+    /**
+     * Another connection to the same remote files, counting the calls together.
+     *
+     * @param remote the first connection
+     */
+    MemoryWagon( MemoryWagon remote )
+    {
+        files = remote.files;
+        puts = remote.puts;
+        streamedPuts = remote.streamedPuts;
+        gets = remote.gets;
+        existsCalls = remote.existsCalls;
+    }
+
+    @Override
+    protected void openConnectionInternal()
+        throws ConnectionException, AuthenticationException
+    {
+        // nothing to open
+    }
+
+    @Override
+    protected void closeConnection()
+        throws ConnectionException
+    {
+        // nothing to close
+    }
+
+    @Override
+    public void get( String resourceName, File destination )
+        throws TransferFailedException, ResourceDoesNotExistException
+    {
+        gets.incrementAndGet();
+        String content = files.get( resourceName );
+        if ( content == null )
+        {
+            throw new ResourceDoesNotExistException( "missing: " + resourceName );
+        }
+        fireGetStarted( new Resource( resourceName ), destination );
+        try
+        {
+            Files.write( destination.toPath(), content.getBytes( "UTF-8" ) );
+        }
+        catch ( IOException e )
+        {
+            throw new TransferFailedException( "write failed", e );
+        }
+    }
+
+    @Override
+    public boolean getIfNewer( String resourceName, File destination, long timestamp )
+        throws TransferFailedException, ResourceDoesNotExistException
+    {
+        // counted by get()
+        get( resourceName, destination );
+        return true;
+    }
+
+    @Override
+    public void getToStream( String resourceName, OutputStream stream )
+        throws TransferFailedException, ResourceDoesNotExistException
+    {
+        String content = files.get( resourceName );
+        if ( content == null )
+        {
+            throw new ResourceDoesNotExistException( "missing: " + resourceName );
+        }
+        try
+        {
+            stream.write( content.getBytes( "UTF-8" ) );
+        }
+        catch ( IOException e )
+        {
+            throw new TransferFailedException( "write failed", e );
+        }
+    }
+
+    @Override
+    public boolean getIfNewerToStream( String resourceName, OutputStream stream, long timestamp )
+        throws TransferFailedException, ResourceDoesNotExistException
+    {
+        getToStream( resourceName, stream );
+        return true;
+    }
+
+    @Override
+    public void put( File source, String destination )
+        throws TransferFailedException
+    {
+        try
+        {
+            store( destination, Files.readAllBytes( source.toPath() ) );
+        }
+        catch ( IOException e )
+        {
+            throw new TransferFailedException( "read failed", e );
+        }
+    }
+
+    @Override
+    public boolean supportsDirectoryCopy()
+    {
+        return directoryCopy;
+    }
+
+    @Override
+    public void putDirectory( File sourceDirectory, String destinationDirectory )
+        throws TransferFailedException
+    {
+        String prefix = destinationDirectory.length() == 0 || destinationDirectory.endsWith( "/" )
+                        ? destinationDirectory : destinationDirectory + "/";
+        for ( File file : sourceDirectory.listFiles() )
+        {
+            if ( file.isDirectory() )
+            {
+                putDirectory( file, prefix + file.getName() );
+            }
+            else
+            {
+                put( file, prefix + file.getName() );
+            }
+        }
+    }
+
+    @Override
+    public void putFromStream( InputStream stream, String destination )
+        throws TransferFailedException
+    {
+        putFromStream( stream, destination, -1, 0 );
+    }
+
+    @Override
+    public void putFromStream( InputStream stream, String destination, long contentLength, long lastModified )
+        throws TransferFailedException
+    {
+        streamedPuts.incrementAndGet();
+        try
+        {
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int n;
+            while ( ( n = stream.read( buf ) ) != -1 )
+            {
+                content.write( buf, 0, n );
+            }
+            store( destination, content.toByteArray() );
+        }
+        catch ( IOException e )
+        {
+            throw new TransferFailedException( "read failed", e );
+        }
+    }
+
+    private void store( String destination, byte[] content )
+        throws TransferFailedException, IOException
+    {
+        puts.incrementAndGet();
+        try
+        {
+            Thread.sleep( putMillis );
+        }
+        catch ( InterruptedException e )
+        {
+            throw new TransferFailedException( "interrupted", e );
+        }
+        if ( destination.equals( failingResource ) )
+        {
+            throw new TransferFailedException( "injected: " + destination );
+        }
+        files.put( destination, new String( content, "UTF-8" ) );
+    }
+
+    @Override
+    public boolean resourceExists( String resourceName )
+        throws TransferFailedException
+    {
+        existsCalls.incrementAndGet();
+        try
+        {
+            Thread.sleep( existsMillis );
+        }
+        catch ( InterruptedException e )
+        {
+            throw new TransferFailedException( "interrupted", e );
+        }
+        if ( files.containsKey( resourceName ) )
+        {
+            return true;
+        }
+        String prefix = resourceName.endsWith( "/" ) ? resourceName : resourceName + "/";
+        for ( String name : files.keySet() )
+        {
+            if ( name.startsWith( prefix ) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public List<String> getFileList( String destinationDirectory )
+        throws ResourceDoesNotExistException
+    {
+        String prefix = destinationDirectory.length() == 0 || destinationDirectory.endsWith( "/" )
+                        ? destinationDirectory : destinationDirectory + "/";
+        List<String> res = new ArrayList<String>();
+        for ( String name : files.keySet() )
+        {
+            if ( name.startsWith( prefix ) )
+            {
+                String rest = name.substring( prefix.length() );
+                int i = rest.indexOf( '/' );
+                String entry = i == -1 ? rest : rest.substring( 0, i + 1 );
+                if ( !res.contains( entry ) )
+                {
+                    res.add( entry );
+                }
+            }
+        }
+        if ( res.isEmpty() )
+        {
+            throw new ResourceDoesNotExistException( "missing: " + destinationDirectory );
+        }
+        return res;
+    }
+}
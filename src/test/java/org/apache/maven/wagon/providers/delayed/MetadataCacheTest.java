@@ -0,0 +1,134 @@
+package org.apache.maven.wagon.providers.delayed;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.codehaus.plexus.util.FileUtils;
+
+import junit.framework.TestCase;
+
+/**
+ * Test the persistent metadata cache.
+ */
+public class MetadataCacheTest
+    extends TestCase
+{
+    private File dir;
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        super.setUp();
+        dir = new File( System.getProperty( "java.io.tmpdir" ), "wagon-delayed-" + getName() );
+        FileUtils.deleteDirectory( dir );
+    }
+
+    /**
+     * @throws Exception nope.
+     */
+    public void testRoundTrip()
+        throws Exception
+    {
+        Map<String, Long> hi = new HashMap<String, Long>();
+        hi.put( "a/maven-metadata.xml", 1000L );
+        hi.put( "a/", Long.MAX_VALUE );
+        hi.put( "a/b.pom", 2000L );
+        Map<String, Long> lo = new HashMap<String, Long>();
+        lo.put( "a/maven-metadata.xml", 500L );
+        lo.put( "a/b.pom", 2000L );
+        Set<String> missing = new HashSet<String>( Arrays.asList( "a/missing.jar", "b/maven-metadata.xml.sha1" ) );
+
+        MetadataCache cache = new MetadataCache( dir, 60000, "scm:svn:file:///repo" );
+        cache.load();
+        cache.save( hi, lo, missing, Collections.singleton( "a/b.pom" ) );
+
+        cache = new MetadataCache( dir, 60000, "scm:svn:file:///repo" );
+        cache.load();
+        // another build may deploy before the next session
+        assertNull( cache.getStampHi( "a/maven-metadata.xml" ) );
+        assertEquals( Long.valueOf( 500L ), cache.getStampLo( "a/maven-metadata.xml" ) );
+        assertEquals( Long.valueOf( Long.MAX_VALUE ), cache.getStampHi( "a/" ) );
+        // committed: exists, timestamp unknown
+        assertEquals( Long.valueOf( Long.MAX_VALUE ), cache.getStampHi( "a/b.pom" ) );
+        assertNull( cache.getStampLo( "a/b.pom" ) );
+        assertEquals( Collections.singleton( "a/missing.jar" ), cache.getMissingResources() );
+
+        // a later put of the missing resource
+        cache.save( Collections.<String, Long>emptyMap(), Collections.<String, Long>emptyMap(),
+                    Collections.<String>emptySet(), Collections.singleton( "a/missing.jar" ) );
+        cache.load();
+        assertTrue( cache.getMissingResources().isEmpty() );
+        assertEquals( Long.valueOf( Long.MAX_VALUE ), cache.getStampHi( "a/missing.jar" ) );
+
+        // another repository
+        cache = new MetadataCache( dir, 60000, "scm:svn:file:///other" );
+        cache.load();
+        assertTrue( cache.getStampHiResources().isEmpty() );
+
+        // expired
+        cache = new MetadataCache( dir, -1, "scm:svn:file:///repo" );
+        cache.load();
+        assertTrue( cache.getStampHiResources().isEmpty() );
+
+        cache.invalidate();
+        assertFalse( cache.getFile().exists() );
+    }
+
+    /**
+     * @throws Exception nope.
+     */
+    public void testDeployBelowMissingDirectory()
+        throws Exception
+    {
+        MetadataCache cache = new MetadataCache( dir, 60000, "scm:svn:file:///repo" );
+        cache.load();
+        cache.save( Collections.<String, Long>emptyMap(), Collections.<String, Long>emptyMap(),
+                    new HashSet<String>( Arrays.asList( "g/", "g/a/", "g/b/" ) ), Collections.<String>emptySet() );
+
+        // another build deploys below g/a/
+        MetadataCache other = new MetadataCache( dir, 60000, "scm:svn:file:///repo" );
+        other.load();
+        other.save( Collections.<String, Long>emptyMap(), Collections.<String, Long>emptyMap(),
+                    Collections.<String>emptySet(), Collections.singleton( "g/a/1/a-1.jar" ) );
+        cache.load();
+        assertEquals( Collections.singleton( "g/b/" ), cache.getMissingResources() );
+
+        // found missing and deployed by the same session
+        cache.save( Collections.<String, Long>emptyMap(), Collections.<String, Long>emptyMap(),
+                    new HashSet<String>( Arrays.asList( "g/c/", "g/d/" ) ), Collections.singleton( "g/d/1/d-1.jar" ) );
+        cache.load();
+        assertEquals( new HashSet<String>( Arrays.asList( "g/b/", "g/c/" ) ), cache.getMissingResources() );
+
+        // only the metadata deployed
+        cache.save( Collections.<String, Long>emptyMap(), Collections.<String, Long>emptyMap(),
+                    Collections.<String>emptySet(), Collections.singleton( "g/c/maven-metadata.xml" ) );
+        cache.load();
+        assertEquals( Collections.singleton( "g/b/" ), cache.getMissingResources() );
+        assertNull( cache.getStampHi( "g/c/maven-metadata.xml" ) );
+    }
+}
@@ -0,0 +1,190 @@
+package org.apache.maven.wagon.providers.delayed;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.apache.maven.wagon.TransferFailedException;
+import org.apache.maven.wagon.Wagon;
+import org.apache.maven.wagon.repository.Repository;
+import org.codehaus.plexus.util.FileUtils;
+
+/**
+ * nope.
+ */
+public class ParallelCommitTest
+    extends TestCase
+{
+    private File tmp;
+
+    private MemoryWagon remote;
+
+    private final List<String> resources = new ArrayList<String>();
+
+    private final Set<String> committed = Collections.synchronizedSet( new HashSet<String>() );
+
+    private final AtomicInteger opened = new AtomicInteger();
+
+    private final AtomicInteger closed = new AtomicInteger();
+
+    /**
+     * openWagon() fails once this many workers are open
+     */
+    private int maxWorkers = Integer.MAX_VALUE;
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        tmp = Files.createTempDirectory( "parallel-commit-test" ).toFile();
+        remote = new MemoryWagon();
+        remote.connect( new Repository( "r", "scm:svn:file:///parallel-commit-test" ) );
+        for ( int i = 0; i < 10; i++ )
+        {
+            String resName = "r/" + i + ".txt";
+            File file = new File( tmp, resName );
+            file.getParentFile().mkdirs();
+            FileUtils.fileWrite( file, "c" + i );
+            resources.add( resName );
+        }
+    }
+
+    @Override
+    protected void tearDown()
+        throws Exception
+    {
+        FileUtils.deleteDirectory( tmp );
+    }
+
+    private void commit( int threads )
+        throws TransferFailedException
+    {
+        new ParallelCommit( threads )
+        {
+            @Override
+            Wagon openWagon()
+                throws Exception
+            {
+                if ( opened.get() >= maxWorkers )
+                {
+                    throw new IllegalStateException( "refused" );
+                }
+                opened.incrementAndGet();
+                MemoryWagon w = new MemoryWagon( remote );
+                w.putMillis = remote.putMillis;
+                w.failingResource = remote.failingResource;
+                w.connect( new Repository( "r", "scm:svn:file:///parallel-commit-test" ) );
+                return w;
+            }
+
+            @Override
+            void closeWagon( Wagon wagon )
+            {
+                closed.incrementAndGet();
+            }
+
+            @Override
+            void committed( String resName )
+            {
+                committed.add( resName );
+            }
+        }.run( remote, tmp, resources );
+    }
+
+    /**
+     * @throws Exception nope.
+     */
+    public void testCommitsEveryResource()
+        throws Exception
+    {
+        commit( 3 );
+
+        assertEquals( 10, remote.files.size() );
+        assertEquals( "c7", remote.files.get( "r/7.txt" ) );
+        assertEquals( new HashSet<String>( resources ), committed );
+        assertEquals( 2, opened.get() );
+        assertEquals( 2, closed.get() );
+    }
+
+    /**
+     * @throws Exception nope.
+     */
+    public void testPartialFailure()
+        throws Exception
+    {
+        remote.putMillis = 50;
+        remote.failingResource = "r/3.txt";
+        try
+        {
+            commit( 2 );
+            fail( "the failure is lost" );
+        }
+        catch ( CommitException e )
+        {
+            assertEquals( Collections.singleton( "r/3.txt" ), e.getFailures().keySet() );
+            assertEquals( "injected: r/3.txt", e.getFailures().get( "r/3.txt" ).getMessage() );
+            assertSame( e.getFailures().get( "r/3.txt" ), e.getCause() );
+        }
+
+        // not atomic: the resources taken before the failure are committed, and reported, no new one is started
+        assertEquals( committed, remote.files.keySet() );
+        assertTrue( committed.containsAll( resources.subList( 0, 3 ) ) );
+        assertFalse( committed.contains( "r/3.txt" ) );
+        assertTrue( committed.toString(), committed.size() < 9 );
+        assertEquals( 1, closed.get() );
+    }
+
+    /**
+     * @throws Exception nope.
+     */
+    public void testWorkerConnectFailure()
+        throws Exception
+    {
+        maxWorkers = 1;
+        try
+        {
+            commit( 3 );
+            fail( "the failure is lost" );
+        }
+        catch ( CommitException e )
+        {
+            fail( "not a failure of a resource" );
+        }
+        catch ( TransferFailedException e )
+        {
+            assertEquals( "refused", e.getCause().getMessage() );
+        }
+
+        // nothing is put before all workers are connected
+        assertEquals( 0, remote.puts.get() );
+        assertTrue( committed.isEmpty() );
+        assertEquals( 1, opened.get() );
+        assertEquals( 1, closed.get() );
+    }
+}
@@ -0,0 +1,229 @@
+package org.apache.maven.wagon.providers.delayed;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.apache.maven.wagon.ResourceDoesNotExistException;
+import org.apache.maven.wagon.TransferFailedException;
+import org.apache.maven.wagon.Wagon;
+import org.apache.maven.wagon.repository.Repository;
+
+/**
+ * nope.
+ */
+public class ParallelListingTest
+    extends TestCase
+{
+    private static final String URL = "scm:svn:file:///parallel-listing-test";
+
+    private final MemoryWagon remote = new MemoryWagon();
+
+    private final Map<String, List<String>> listed =
+        Collections.synchronizedMap( new TreeMap<String, List<String>>() );
+
+    private final AtomicInteger opened = new AtomicInteger();
+
+    private final AtomicInteger closed = new AtomicInteger();
+
+    /**
+     * openWagon() fails once this many workers are open
+     */
+    private int maxWorkers = Integer.MAX_VALUE;
+
+    /**
+     * getFileList() of this directory fails
+     */
+    private volatile String failingDir;
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        remote.files.put( "g/a/1.0/a-1.0.jar", "jar" );
+        remote.files.put( "g/a/1.0/a-1.0.pom", "pom" );
+        remote.files.put( "g/a/maven-metadata.xml", "md" );
+        remote.files.put( "g/b/1.0/b-1.0.pom", "pom" );
+        // a chain of single subdirectories, listed one after the other by any worker
+        remote.files.put( "g/c/d/e/f/g/h/i.txt", "i" );
+    }
+
+    private MemoryWagon newWagon()
+    {
+        return new MemoryWagon( remote )
+        {
+            @Override
+            public List<String> getFileList( String destinationDirectory )
+                throws ResourceDoesNotExistException
+            {
+                if ( destinationDirectory.equals( failingDir ) )
+                {
+                    throw new IllegalStateException( "injected: " + destinationDirectory );
+                }
+                return super.getFileList( destinationDirectory );
+            }
+        };
+    }
+
+    private void list( int threads, String dir )
+        throws Exception
+    {
+        Wagon wagon = newWagon();
+        wagon.connect( new Repository( "r", URL ) );
+        new ParallelListing( threads )
+        {
+            @Override
+            Wagon openWagon()
+                throws Exception
+            {
+                if ( opened.get() >= maxWorkers )
+                {
+                    throw new IllegalStateException( "refused" );
+                }
+                opened.incrementAndGet();
+                Wagon w = newWagon();
+                w.connect( new Repository( "r", URL ) );
+                return w;
+            }
+
+            @Override
+            void closeWagon( Wagon w )
+            {
+                closed.incrementAndGet();
+            }
+
+            @Override
+            void listed( String listedDir, List<String> entries )
+            {
+                List<String> sorted = new ArrayList<String>( entries );
+                Collections.sort( sorted );
+                listed.put( listedDir, sorted );
+            }
+        }.run( wagon, dir );
+    }
+
+    /**
+     * @throws Exception nope.
+     */
+    public void testListsTheSubtree()
+        throws Exception
+    {
+        list( 4, "g" );
+
+        assertEquals( Arrays.asList( "g", "g/a", "g/a/1.0", "g/b", "g/b/1.0", "g/c", "g/c/d", "g/c/d/e", "g/c/d/e/f",
+                                     "g/c/d/e/f/g", "g/c/d/e/f/g/h" ),
+                      new ArrayList<String>( listed.keySet() ) );
+        assertEquals( Arrays.asList( "1.0/", "maven-metadata.xml" ), listed.get( "g/a" ) );
+        assertEquals( 3, opened.get() );
+        assertEquals( 3, closed.get() );
+    }
+
+    /**
+     * @throws Exception nope.
+     */
+    public void testMissingDirectoryEndsTheListing()
+        throws Exception
+    {
+        // the pending counter drops to 0 without a listing, the workers stop polling
+        list( 4, "missing" );
+
+        assertTrue( listed.isEmpty() );
+        assertEquals( 3, closed.get() );
+    }
+
+    /**
+     * @throws Exception nope.
+     */
+    public void testFailureStopsTheListing()
+        throws Exception
+    {
+        failingDir = "g/c/d/e";
+        try
+        {
+            list( 4, "g" );
+            fail( "the failure is lost" );
+        }
+        catch ( TransferFailedException e )
+        {
+            assertEquals( "injected: g/c/d/e", e.getCause().getMessage() );
+        }
+
+        assertTrue( listed.containsKey( "g/c/d" ) );
+        assertFalse( listed.containsKey( "g/c/d/e" ) );
+        assertFalse( listed.containsKey( "g/c/d/e/f" ) );
+        assertEquals( 3, closed.get() );
+    }
+
+    /**
+     * @throws Exception nope.
+     */
+    public void testFewerWorkersWhenConnectFails()
+        throws Exception
+    {
+        maxWorkers = 1;
+        list( 4, "" );
+
+        assertEquals( 12, listed.size() );
+        assertEquals( Arrays.asList( "g/" ), listed.get( "" ) );
+        assertEquals( 1, closed.get() );
+    }
+
+    /**
+     * @throws Exception nope.
+     */
+    public void testSnapshotAnswersMissingResources()
+        throws Exception
+    {
+        DelayedWagon wagon = new DelayedWagon( remote );
+        wagon.setSnapshotDirectory( "g" );
+        wagon.connect( new Repository( "r", URL ) );
+        remote.existsCalls.set( 0 );
+        assertFalse( wagon.resourceExists( "g/a/1.0/a-1.0.sha1" ) );
+        assertTrue( wagon.resourceExists( "g/a/1.0/a-1.0.jar" ) );
+        wagon.disconnect();
+
+        assertEquals( 0, remote.existsCalls.get() );
+    }
+
+    /**
+     * @throws Exception nope.
+     */
+    public void testOrdinaryListingIsNotTrusted()
+        throws Exception
+    {
+        DelayedWagon wagon = new DelayedWagon( remote );
+        wagon.connect( new Repository( "r", URL ) );
+        assertEquals( 2, wagon.getFileList( "g/a/1.0" ).size() );
+        // deployed by another client
+        remote.files.put( "g/a/1.0/a-1.0.jar.sha1", "sha1" );
+        assertTrue( wagon.resourceExists( "g/a/1.0/a-1.0.jar.sha1" ) );
+        wagon.disconnect();
+
+        assertEquals( 1, remote.existsCalls.get() );
+    }
+}
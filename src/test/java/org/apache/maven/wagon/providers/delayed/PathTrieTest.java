@@ -0,0 +1,146 @@
+package org.apache.maven.wagon.providers.delayed;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * Test the resource name index.
+ */
+public class PathTrieTest
+    extends TestCase
+{
+    /**
+     * @throws Exception nope.
+     */
+    public void testIsParent()
+        throws Exception
+    {
+        PathTrie trie = new PathTrie();
+        trie.add( "foo/bar/baz.jar" );
+        trie.add( "dir/" );
+
+        assertTrue( trie.isParent( "" ) );
+        assertTrue( trie.isParent( "foo" ) );
+        assertTrue( trie.isParent( "foo/bar" ) );
+        assertFalse( trie.isParent( "foo/bar/baz.jar" ) );
+        assertFalse( trie.isParent( "fo" ) );
+        assertTrue( trie.isParent( "dir" ) );
+        assertFalse( trie.isParent( "dir2" ) );
+
+        assertTrue( trie.contains( "foo/bar/baz.jar" ) );
+        assertTrue( trie.contains( "dir/" ) );
+        assertFalse( trie.contains( "dir" ) );
+        assertFalse( trie.contains( "foo/bar" ) );
+
+        trie.clear();
+        assertFalse( trie.isParent( "foo" ) );
+    }
+
+    /**
+     * @throws Exception nope.
+     */
+    public void testListChildren()
+        throws Exception
+    {
+        PathTrie trie = new PathTrie();
+        trie.add( "" );
+        trie.add( "/" );
+        trie.add( "file.txt" );
+        trie.add( "dir" );
+        trie.add( "dir/" );
+        trie.add( "dir/file-2.txt" );
+        trie.add( "dir/sub/file-3.txt" );
+        trie.add( "dir/empty/" );
+
+        checkListChildren( trie, "", "dir", "file.txt" );
+        checkListChildren( trie, "dir", "file-2.txt", "sub" );
+        checkListChildren( trie, "dir/sub", "file-3.txt" );
+        checkListChildren( trie, "dir/empty" );
+        checkListChildren( trie, "nodir" );
+    }
+
+    private void checkListChildren( PathTrie trie, String dir, String... expected )
+    {
+        List<String> actual = trie.listChildren( dir );
+        Collections.sort( actual );
+        assertEquals( Arrays.asList( expected ), actual );
+    }
+
+    /**
+     * @throws Exception nope.
+     */
+    public void testReadersDuringWrites()
+        throws Exception
+    {
+        final PathTrie trie = new PathTrie();
+        final int n = 20000;
+        final AtomicInteger failures = new AtomicInteger();
+        Thread writer = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                for ( int i = 0; i < n; i++ )
+                {
+                    trie.add( "g/a/" + i + "/a.pom" );
+                }
+            }
+        };
+        Thread reader = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                int seen = 0;
+                while ( seen < n )
+                {
+                    // what was seen once stays visible
+                    int children = trie.listChildren( "g/a" ).size();
+                    if ( children < seen )
+                    {
+                        failures.incrementAndGet();
+                    }
+                    for ( int i = seen; i < children; i++ )
+                    {
+                        if ( !trie.isParent( "g/a/" + i ) )
+                        {
+                            failures.incrementAndGet();
+                        }
+                    }
+                    seen = Math.max( seen, children );
+                }
+            }
+        };
+        writer.start();
+        reader.start();
+        writer.join();
+        reader.join( 60000 );
+
+        assertFalse( reader.isAlive() );
+        assertEquals( 0, failures.get() );
+        assertTrue( trie.contains( "g/a/" + ( n - 1 ) + "/a.pom" ) );
+    }
+}
@@ -0,0 +1,73 @@
+package org.apache.maven.wagon.providers.delayed;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import junit.framework.TestCase;
+
+/**
+ * Test the canonical resource paths.
+ */
+public class ResourcePathTest
+    extends TestCase
+{
+    /**
+     * @throws Exception nope.
+     */
+    public void testCanonical()
+        throws Exception
+    {
+        String s = "g/a/1.0/a-1.0.jar";
+        assertSame( s, ResourcePath.canonical( s ) );
+        assertEquals( "", ResourcePath.canonical( "" ) );
+        assertEquals( "", ResourcePath.canonical( "/" ) );
+        assertEquals( "g/a", ResourcePath.canonical( "/g/a/" ) );
+        assertEquals( "g/a", ResourcePath.canonical( "g//a" ) );
+        assertEquals( "g/a", ResourcePath.canonical( "g/./a" ) );
+        assertEquals( "a", ResourcePath.canonical( "g/../a" ) );
+        assertEquals( ".a/..b", ResourcePath.canonical( ".a/..b" ) );
+    }
+
+    /**
+     * @throws Exception nope.
+     */
+    public void testInterner()
+        throws Exception
+    {
+        ResourcePath.Interner interner = new ResourcePath.Interner();
+        ResourcePath jar = interner.intern( "g/a/1.0/a-1.0.jar" );
+        ResourcePath pom = interner.intern( "g/a/1.0/a-1.0.pom" );
+        ResourcePath other = interner.intern( "g/b/x.txt" );
+        assertSame( jar, interner.intern( "g/a/1.0/a-1.0.jar" ) );
+        assertSame( jar.getParent(), pom.getParent() );
+        assertSame( interner.intern( "g/a/1.0" ), jar.getParent() );
+        assertEquals( 7, interner.size() );
+
+        assertEquals( 4, jar.getDepth() );
+        assertEquals( "g/a/1.0/", jar.getParent().getDirName() );
+        assertEquals( "", ResourcePath.ROOT.getDirName() );
+        assertSame( ResourcePath.ROOT, interner.intern( "" ) );
+        assertSame( ResourcePath.ROOT, ResourcePath.ROOT.getParent() );
+
+        assertEquals( "g/a/1.0", jar.commonAncestor( pom ).getName() );
+        assertEquals( "g", jar.commonAncestor( other ).getName() );
+        assertSame( jar, jar.commonAncestor( jar ) );
+        assertSame( ResourcePath.ROOT, jar.commonAncestor( interner.intern( "h" ) ) );
+    }
+}
@@ -0,0 +1,176 @@
+package org.apache.maven.wagon.providers.delayed;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * Test the resource state table.
+ */
+public class ResourceStateTableTest
+    extends TestCase
+{
+    /**
+     * @throws Exception nope.
+     */
+    public void testFlags()
+        throws Exception
+    {
+        ResourceStateTable states = new ResourceStateTable();
+        assertEquals( ResourceStateTable.NONE, states.getStampHi( "g/a" ) );
+        assertTrue( states.putStampHi( "g/a", 5 ) );
+        assertFalse( states.putStampHi( "g/a", 7 ) );
+        assertEquals( 7, states.getStampHi( "g/a" ) );
+        assertFalse( states.isKnown( "g/a/" ) );
+        assertTrue( states.putStampHi( "g/a/", 0 ) );
+        assertEquals( Long.MAX_VALUE, states.getStampHi( "g/a/" ) );
+        assertEquals( ResourceStateTable.NONE, states.getStampLo( "g/a" ) );
+        states.putStampLo( "g/a", 3 );
+        assertEquals( 3, states.getStampLo( "g/a" ) );
+        states.removeStampLo( "g/a" );
+        assertEquals( ResourceStateTable.NONE, states.getStampLo( "g/a" ) );
+        assertEquals( 7, states.getStampHi( "g/a" ) );
+
+        states.putMissing( "x", null );
+        states.putMissing( "y/", "boom" );
+        assertEquals( "cached: missing resource: x", states.getMissingMessage( "x" ) );
+        assertEquals( "cached: boom", states.getMissingMessage( "y/" ) );
+        assertNull( states.getMissingMessage( "y" ) );
+        assertEquals( new HashSet<String>( Arrays.asList( "x", "y/" ) ), states.getMissing() );
+        states.removeMissing( "y/" );
+        assertFalse( states.isMissing( "y/" ) );
+
+        states.add( "g/a/1.0/a.jar" );
+        states.add( "g/a/1.0/" );
+        states.add( "g/a/1.0/" );
+        assertEquals( 2, states.getAddedCount() );
+        assertTrue( states.isAdded( "g/a/1.0/" ) );
+        assertFalse( states.isAdded( "g/a/1.0" ) );
+        states.remove( "g/a/1.0/a.jar" );
+        states.remove( "g/a/1.0/a.jar" );
+        assertEquals( 1, states.getAddedCount() );
+        assertEquals( new HashSet<String>( Arrays.asList( "g/a/1.0/" ) ), states.getAdded() );
+        states.clearAdded();
+        assertEquals( 0, states.getAddedCount() );
+
+        assertFalse( states.isListed( "g/a/" ) );
+        states.setListed( "g/a/" );
+        assertTrue( states.isListed( "g/a/" ) );
+
+        states.clear();
+        assertEquals( 0, states.size() );
+        assertFalse( states.isKnown( "g/a" ) );
+    }
+
+    /**
+     * @throws Exception nope.
+     */
+    public void testGrow()
+        throws Exception
+    {
+        ResourceStateTable states = new ResourceStateTable();
+        for ( int i = 0; i < 10000; i++ )
+        {
+            states.putStampHi( "r/" + i, i );
+            if ( i % 2 == 0 )
+            {
+                states.putStampLo( "r/" + i, -i );
+            }
+        }
+        assertEquals( 10000, states.size() );
+        assertEquals( 10000, states.getStampsHi().size() );
+        assertEquals( 5000, states.getStampsLo().size() );
+        for ( int i = 0; i < 10000; i++ )
+        {
+            assertEquals( i, states.getStampHi( "r/" + i ) );
+            assertEquals( i % 2 == 0 ? -i : ResourceStateTable.NONE, states.getStampLo( "r/" + i ) );
+        }
+    }
+
+    /**
+     * @throws Exception nope.
+     */
+    public void testConcurrentUpdates()
+        throws Exception
+    {
+        final ResourceStateTable states = new ResourceStateTable();
+        final int perThread = 5000;
+        final CountDownLatch start = new CountDownLatch( 1 );
+        final AtomicInteger failures = new AtomicInteger();
+        List<Thread> threads = new ArrayList<Thread>();
+        for ( int t = 0; t < 8; t++ )
+        {
+            final String prefix = "t" + t + "/";
+            Thread thread = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                    }
+                    catch ( InterruptedException e )
+                    {
+                        failures.incrementAndGet();
+                        return;
+                    }
+                    for ( int i = 0; i < perThread; i++ )
+                    {
+                        String name = prefix + i;
+                        states.putStampHi( name, i );
+                        states.add( name );
+                        states.putMissing( name + ".asc", null );
+                        if ( i % 2 == 0 )
+                        {
+                            states.remove( name );
+                        }
+                        if ( states.getStampHi( name ) != i || !states.isMissing( name + ".asc" )
+                            || states.isAdded( name ) != ( i % 2 != 0 ) )
+                        {
+                            failures.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            thread.start();
+            threads.add( thread );
+        }
+        start.countDown();
+        for ( Thread thread : threads )
+        {
+            thread.join();
+        }
+
+        assertEquals( 0, failures.get() );
+        assertEquals( 8 * perThread, states.getStampsHi().size() );
+        assertEquals( 8 * perThread, states.getMissing().size() );
+        assertEquals( 8 * perThread / 2, states.getAddedCount() );
+        assertEquals( 8 * perThread / 2, states.getAdded().size() );
+        assertEquals( 2 * 8 * perThread, states.size() );
+    }
+}
@@ -0,0 +1,338 @@
+package org.apache.maven.wagon.providers.delayed;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+import org.apache.maven.wagon.ConnectionException;
+import org.apache.maven.wagon.authentication.AuthenticationInfo;
+import org.apache.maven.wagon.repository.Repository;
+import org.codehaus.plexus.util.FileUtils;
+
+/**
+ * nope.
+ */
+public class SharedSessionsTest
+    extends TestCase
+{
+    private final List<MemoryWagon> remotes = Collections.synchronizedList( new ArrayList<MemoryWagon>() );
+
+    private final List<DelayedWagon> released = Collections.synchronizedList( new ArrayList<DelayedWagon>() );
+
+    /**
+     * released when a "slow" wagon may connect
+     */
+    private final CountDownLatch slowConnect = new CountDownLatch( 1 );
+
+    private boolean commitOnLastRelease;
+
+    private File tmp;
+
+    private SharedSessions sessions;
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        tmp = Files.createTempDirectory( "shared-sessions-test" ).toFile();
+        sessions = new SharedSessions()
+        {
+            @Override
+            DelayedWagon newSessionWagon( String roleHint )
+                throws InterruptedException
+            {
+                if ( "slow".equals( roleHint ) )
+                {
+                    slowConnect.await();
+                }
+                MemoryWagon remote = new MemoryWagon();
+                remotes.add( remote );
+                return new DelayedWagon( remote );
+            }
+
+            @Override
+            void releaseSessionWagon( DelayedWagon wagon )
+            {
+                released.add( wagon );
+            }
+
+            @Override
+            boolean isCommitOnLastRelease()
+            {
+                return commitOnLastRelease;
+            }
+        };
+    }
+
+    @Override
+    protected void tearDown()
+        throws Exception
+    {
+        FileUtils.deleteDirectory( tmp );
+    }
+
+    private SharedDelayedWagon handle()
+    {
+        return new SharedDelayedWagon( sessions, "scm" );
+    }
+
+    private void put( SharedDelayedWagon handle, String content, String destination )
+        throws Exception
+    {
+        File source = File.createTempFile( "put", ".txt", tmp );
+        FileUtils.fileWrite( source, content );
+        handle.put( source, destination );
+    }
+
+    private static AuthenticationInfo user( String name )
+    {
+        AuthenticationInfo res = new AuthenticationInfo();
+        res.setUserName( name );
+        return res;
+    }
+
+    /**
+     * @throws Exception nope.
+     */
+    public void testKeyMatching()
+        throws Exception
+    {
+        SharedDelayedWagon a = handle();
+        SharedDelayedWagon b = handle();
+        SharedDelayedWagon c = handle();
+        SharedDelayedWagon d = handle();
+        a.connect( new Repository( "r", "scm:svn:file:///repo" ), user( "u" ) );
+        b.connect( new Repository( "other-id", "scm:svn:file:///repo" ), user( "u" ) );
+        c.connect( new Repository( "r", "scm:svn:file:///repo" ), user( "v" ) );
+        d.connect( new Repository( "r", "scm:svn:file:///other" ), user( "u" ) );
+        assertEquals( 3, sessions.size() );
+        assertEquals( 3, remotes.size() );
+
+        put( a, "a", "g/a.txt" );
+        put( b, "b", "g/b.txt" );
+        a.disconnect();
+        b.disconnect();
+        c.disconnect();
+        d.disconnect();
+        assertEquals( "uncommitted until the build ends", 0, remotes.get( 0 ).files.size() );
+
+        sessions.commitAll();
+        assertEquals( 0, sessions.size() );
+        assertEquals( "a", remotes.get( 0 ).files.get( "g/a.txt" ) );
+        assertEquals( "b", remotes.get( 0 ).files.get( "g/b.txt" ) );
+        assertEquals( 3, released.size() );
+    }
+
+    /**
+     * @throws Exception nope.
+     */
+    public void testEventsRoutedPerHandle()
+        throws Exception
+    {
+        SharedDelayedWagon a = handle();
+        SharedDelayedWagon b = handle();
+        EventRecorder aEvents = new EventRecorder();
+        EventRecorder bEvents = new EventRecorder();
+        a.addTransferListener( aEvents );
+        b.addTransferListener( bEvents );
+        a.connect( new Repository( "r", "scm:svn:file:///repo" ) );
+        b.connect( new Repository( "r", "scm:svn:file:///repo" ) );
+
+        put( a, "a", "g/a.txt" );
+        assertEquals( "[initiated g/a.txt, started g/a.txt, completed g/a.txt]", aEvents.events.toString() );
+        assertEquals( "[]", bEvents.events.toString() );
+
+        put( b, "b", "g/b.txt" );
+        assertEquals( 3, aEvents.events.size() );
+        assertEquals( "[initiated g/b.txt, started g/b.txt, completed g/b.txt]", bEvents.events.toString() );
+
+        a.disconnect();
+        b.disconnect();
+        sessions.commitAll();
+    }
+
+    /**
+     * @throws Exception nope.
+     */
+    public void testCommitOnLastRelease()
+        throws Exception
+    {
+        commitOnLastRelease = true;
+        SharedDelayedWagon a = handle();
+        SharedDelayedWagon b = handle();
+        a.connect( new Repository( "r", "scm:svn:file:///repo" ) );
+        b.connect( new Repository( "r", "scm:svn:file:///repo" ) );
+        put( a, "a", "g/a.txt" );
+        put( b, "b", "g/b.txt" );
+
+        a.disconnect();
+        a.validateCleanRelease();
+        assertEquals( 1, sessions.size() );
+        assertEquals( 0, remotes.get( 0 ).files.size() );
+
+        b.disconnect();
+        b.validateCleanRelease();
+        assertEquals( 0, sessions.size() );
+        assertEquals( 2, remotes.get( 0 ).files.size() );
+        assertEquals( 1, released.size() );
+    }
+
+    /**
+     * @throws Exception nope.
+     */
+    public void testFailedCommitOnLastReleaseFailsTheRelease()
+        throws Exception
+    {
+        commitOnLastRelease = true;
+        SharedDelayedWagon a = handle();
+        a.connect( new Repository( "r", "scm:svn:file:///repo" ) );
+        put( a, "a", "g/a.txt" );
+        remotes.get( 0 ).failingResource = "g/a.txt";
+        try
+        {
+            a.disconnect();
+            fail( "commit failure not reported" );
+        }
+        catch ( ConnectionException e )
+        {
+            // expected
+        }
+        try
+        {
+            a.validateCleanRelease();
+            fail( "unclean release not reported" );
+        }
+        catch ( IllegalStateException e )
+        {
+            assertTrue( e.getCause() instanceof ConnectionException );
+        }
+        assertEquals( 1, released.size() );
+    }
+
+    /**
+     * @throws Exception nope.
+     */
+    public void testCommitAllAfterFailure()
+        throws Exception
+    {
+        SharedDelayedWagon a = handle();
+        SharedDelayedWagon b = handle();
+        a.connect( new Repository( "r", "scm:svn:file:///failing" ) );
+        b.connect( new Repository( "r", "scm:svn:file:///repo" ) );
+        put( a, "a", "g/a.txt" );
+        put( b, "b", "g/b.txt" );
+        a.disconnect();
+        b.disconnect();
+        remotes.get( 0 ).failingResource = "g/a.txt";
+
+        try
+        {
+            sessions.commitAll();
+            fail( "commit failure not reported" );
+        }
+        catch ( ConnectionException e )
+        {
+            // expected, once
+        }
+        assertEquals( 0, sessions.size() );
+        assertEquals( "b", remotes.get( 1 ).files.get( "g/b.txt" ) );
+        assertEquals( 2, released.size() );
+    }
+
+    /**
+     * @throws Exception nope.
+     */
+    public void testSlowConnectDoesNotBlockOtherRepositories()
+        throws Exception
+    {
+        final Repository repository = new Repository( "r", "scm:svn:file:///slow" );
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        final List<SharedSessions.Session> attached =
+            Collections.synchronizedList( new ArrayList<SharedSessions.Session>() );
+        List<Thread> threads = new ArrayList<Thread>();
+        for ( int i = 0; i < 2; i++ )
+        {
+            Thread thread = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        attached.add( sessions.attach( "slow", repository, null, null, null ) );
+                    }
+                    catch ( Exception e )
+                    {
+                        failure.set( e );
+                    }
+                }
+            };
+            thread.start();
+            threads.add( thread );
+        }
+
+        SharedDelayedWagon other = handle();
+        other.connect( new Repository( "r", "scm:svn:file:///repo" ) );
+        put( other, "a", "g/a.txt" );
+        other.disconnect();
+        assertEquals( 0, attached.size() );
+
+        slowConnect.countDown();
+        for ( Thread thread : threads )
+        {
+            thread.join();
+        }
+        assertNull( failure.get() );
+        assertEquals( 2, attached.size() );
+        assertSame( attached.get( 0 ), attached.get( 1 ) );
+        assertEquals( 2, remotes.size() );
+
+        sessions.detach( attached.get( 0 ) );
+        sessions.detach( attached.get( 1 ) );
+        sessions.commitAll();
+        assertEquals( 0, sessions.size() );
+        assertEquals( 2, released.size() );
+    }
+
+    /**
+     * @throws Exception nope.
+     */
+    public void testDetachAfterCommitAllDoesNotCommitTwice()
+        throws Exception
+    {
+        commitOnLastRelease = true;
+        SharedSessions.Session session = sessions.attach( "scm", new Repository( "r", "scm:svn:file:///repo" ), null,
+                                                          null, null );
+        sessions.commitAll();
+        assertEquals( 1, released.size() );
+
+        sessions.detach( session );
+        assertEquals( 1, released.size() );
+        assertEquals( 0, sessions.size() );
+    }
+}
@@ -0,0 +1,125 @@
+package org.apache.maven.wagon.providers.delayed;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * Test the in-flight call table.
+ */
+public class SingleFlightTest
+    extends TestCase
+{
+    /**
+     * @throws Exception nope.
+     */
+    public void testSharedResult()
+        throws Exception
+    {
+        final SingleFlight<String> flights = new SingleFlight<String>();
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch( 1 );
+        final Callable<String> call = new Callable<String>()
+        {
+            @Override
+            public String call()
+                throws Exception
+            {
+                calls.incrementAndGet();
+                release.await();
+                return "result";
+            }
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool( 4 );
+        try
+        {
+            Future<?>[] futures = new Future<?>[4];
+            for ( int i = 0; i < futures.length; i++ )
+            {
+                futures[i] = executor.submit( new Callable<String>()
+                {
+                    @Override
+                    public String call()
+                        throws Exception
+                    {
+                        return flights.run( "a", call );
+                    }
+                } );
+            }
+            while ( calls.get() == 0 )
+            {
+                Thread.sleep( 1 );
+            }
+            Thread.sleep( 50 );
+            release.countDown();
+            for ( Future<?> future : futures )
+            {
+                assertEquals( "result", future.get( 10, TimeUnit.SECONDS ) );
+            }
+            assertEquals( 1, calls.get() );
+            assertEquals( 0, flights.size() );
+
+            // not in flight anymore
+            assertEquals( "result", flights.run( "a", call ) );
+            assertEquals( 2, calls.get() );
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * @throws Exception nope.
+     */
+    public void testSharedException()
+        throws Exception
+    {
+        SingleFlight<String> flights = new SingleFlight<String>();
+        try
+        {
+            flights.run( "a", new Callable<String>()
+            {
+                @Override
+                public String call()
+                    throws Exception
+                {
+                    throw new IOException( "nope" );
+                }
+            } );
+            fail();
+        }
+        catch ( IOException e )
+        {
+            assertEquals( "nope", e.getMessage() );
+        }
+        assertEquals( 0, flights.size() );
+    }
+}
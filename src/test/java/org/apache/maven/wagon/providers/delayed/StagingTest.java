@@ -0,0 +1,253 @@
+package org.apache.maven.wagon.providers.delayed;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.maven.wagon.ConnectionException;
+import org.apache.maven.wagon.Wagon;
+import org.apache.maven.wagon.repository.Repository;
+import org.codehaus.plexus.util.FileUtils;
+
+/**
+ * nope.
+ */
+public class StagingTest
+    extends TestCase
+{
+    private File tmp;
+
+    private MemoryWagon remote;
+
+    private DelayedWagon wagon;
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        tmp = Files.createTempDirectory( "staging-test" ).toFile();
+        remote = new MemoryWagon();
+        wagon = new DelayedWagon( remote );
+    }
+
+    @Override
+    protected void tearDown()
+        throws Exception
+    {
+        FileUtils.deleteDirectory( tmp );
+    }
+
+    private void put( String content, String destination )
+        throws Exception
+    {
+        File source = File.createTempFile( "put", ".txt", tmp );
+        FileUtils.fileWrite( source, content );
+        wagon.put( source, destination );
+    }
+
+    /**
+     * @throws Exception nope.
+     */
+    public void testMemoryStagedResourcesAreStreamed()
+        throws Exception
+    {
+        wagon.setStagingMemoryBudget( 6 );
+        wagon.connect( new Repository( "r", "scm:svn:file:///staging-test" ) );
+        put( "pom", "g/a/1.0/a-1.0.pom" );
+        put( "sha1", "g/a/1.0/a-1.0.pom.sha1" );
+        wagon.disconnect();
+
+        assertEquals( "pom", remote.files.get( "g/a/1.0/a-1.0.pom" ) );
+        assertEquals( "sha1", remote.files.get( "g/a/1.0/a-1.0.pom.sha1" ) );
+        assertEquals( 2, remote.puts.get() );
+        // the second one is over the budget and staged as a file
+        assertEquals( 1, remote.streamedPuts.get() );
+        wagon.validateCleanRelease();
+    }
+
+    /**
+     * @throws Exception nope.
+     */
+    public void testDedupSkipsUnchangedResources()
+        throws Exception
+    {
+        remote.files.put( "g/a.txt", "a" );
+        remote.files.put( "g/b.txt", "b" );
+        remote.files.put( "g/c.txt", "c" );
+        wagon.setDedupMaxBytes( 1024 );
+        wagon.connect( new Repository( "r", "scm:svn:file:///staging-test" ) );
+        // downloaded, compared for free
+        wagon.get( "g/a.txt", new File( tmp, "a.txt" ) );
+        // known to exist, fetched for the comparison
+        assertTrue( wagon.resourceExists( "g/b.txt" ) );
+        assertTrue( wagon.resourceExists( "g/c.txt" ) );
+        put( "a", "g/a.txt" );
+        put( "b", "g/b.txt" );
+        put( "changed", "g/c.txt" );
+        wagon.disconnect();
+
+        assertEquals( 1, remote.puts.get() );
+        assertEquals( "changed", remote.files.get( "g/c.txt" ) );
+        wagon.validateCleanRelease();
+    }
+
+    /**
+     * @throws Exception nope.
+     */
+    public void testNoDedupByDefault()
+        throws Exception
+    {
+        remote.files.put( "g/a.txt", "a" );
+        wagon.connect( new Repository( "r", "scm:svn:file:///staging-test" ) );
+        assertTrue( wagon.resourceExists( "g/a.txt" ) );
+        put( "a", "g/a.txt" );
+        wagon.disconnect();
+
+        assertEquals( 1, remote.puts.get() );
+        wagon.validateCleanRelease();
+    }
+
+    /**
+     * @throws Exception nope.
+     */
+    public void testDedupComparesTheRemoteChecksumFile()
+        throws Exception
+    {
+        String content = "larger than the limit";
+        String sha1 = Digests.digest( new ByteArrayInputStream( content.getBytes( "UTF-8" ) ), "SHA-1" );
+        remote.files.put( "g/a.jar", content );
+        remote.files.put( "g/a.jar.sha1", sha1 );
+        wagon.setDedupMaxBytes( 40 );
+        wagon.connect( new Repository( "r", "scm:svn:file:///staging-test" ) );
+        assertTrue( wagon.resourceExists( "g/a.jar" ) );
+        assertTrue( wagon.resourceExists( "g/a.jar.sha1" ) );
+        put( content, "g/a.jar" );
+        put( sha1, "g/a.jar.sha1" );
+        wagon.disconnect();
+
+        // the checksum file is fetched once, for itself and for the jar
+        assertEquals( 0, remote.puts.get() );
+        assertEquals( 1, remote.gets.get() );
+        wagon.validateCleanRelease();
+    }
+
+    /**
+     * @throws Exception nope.
+     */
+    public void testDedupDownloadsAreNotReported()
+        throws Exception
+    {
+        EventRecorder recorder = new EventRecorder();
+        wagon.addTransferListener( recorder );
+        remote.files.put( "g/a.txt", "a" );
+        wagon.setDedupMaxBytes( 1024 );
+        wagon.connect( new Repository( "r", "scm:svn:file:///staging-test" ) );
+        assertTrue( wagon.resourceExists( "g/a.txt" ) );
+        put( "a", "g/a.txt" );
+        int events = recorder.events.size();
+        wagon.disconnect();
+
+        assertEquals( 0, remote.puts.get() );
+        assertEquals( 1, remote.gets.get() );
+        assertEquals( events, recorder.events.size() );
+        assertFalse( new File( wagon.getCacheDir(), "dedup" ).exists() );
+        wagon.validateCleanRelease();
+    }
+
+    /**
+     * @throws Exception nope.
+     */
+    public void testDedupFetchesThroughTheCommitWorkers()
+        throws Exception
+    {
+        final List<Wagon> workers = new ArrayList<Wagon>();
+        wagon.setWagonLookup( new WagonLookup()
+        {
+            @Override
+            public Wagon lookup()
+            {
+                Wagon worker = new MemoryWagon( remote );
+                workers.add( worker );
+                return worker;
+            }
+
+            @Override
+            public void release( Wagon w )
+            {
+                // nothing to release
+            }
+        } );
+        wagon.setCommitThreads( 2 );
+        remote.files.put( "g/a.txt", "a" );
+        remote.files.put( "g/b.txt", "b" );
+        wagon.setDedupMaxBytes( 1024 );
+        wagon.connect( new Repository( "r", "scm:svn:file:///staging-test" ) );
+        assertTrue( wagon.resourceExists( "g/a.txt" ) );
+        assertTrue( wagon.resourceExists( "g/b.txt" ) );
+        put( "a", "g/a.txt" );
+        put( "b", "g/b.txt" );
+        wagon.disconnect();
+
+        assertEquals( 1, workers.size() );
+        assertEquals( 0, remote.puts.get() );
+        assertEquals( 2, remote.gets.get() );
+        wagon.validateCleanRelease();
+    }
+
+    /**
+     * @throws Exception nope.
+     */
+    public void testFlushClearsTheEmptyDirectories()
+        throws Exception
+    {
+        EventRecorder recorder = new EventRecorder();
+        wagon.addTransferListener( recorder );
+        remote.directoryCopy = true;
+        wagon.setFlushQuietMillis( 20 );
+        wagon.connect( new Repository( "r", "scm:svn:file:///staging-test" ) );
+        put( "1", "g/a/1.txt" );
+        put( "2", "g/a/2.txt" );
+        for ( int i = 0; i < 1000 && remote.files.size() < 2; i++ )
+        {
+            Thread.sleep( 10 );
+        }
+        assertEquals( 2, remote.files.size() );
+
+        remote.failingResource = "g/b/x.txt";
+        put( "x", "g/b/x.txt" );
+        try
+        {
+            wagon.disconnect();
+            fail( "the failure is lost" );
+        }
+        catch ( ConnectionException e )
+        {
+            // ok
+        }
+        // the commit covers g/b/ only, g/a/ is no longer added
+        assertEquals( "error g/b", recorder.events.get( recorder.events.size() - 1 ) );
+    }
+}